@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ *  Command and response chaining of ISO-DEP APDUs (ISO/IEC 7816-4).
+ */
+#include "ApduChaining.h"
+
+#include <android-base/logging.h>
+#include <android-base/stringprintf.h>
+
+#include <algorithm>
+
+using android::base::StringPrintf;
+
+bool ApduChaining::split(const std::vector<uint8_t>& apdu, size_t maxFrame,
+                         std::vector<std::vector<uint8_t>>& frames) {
+  size_t lc, dataOffset, leLength;
+  if (apdu.size() > 7 && apdu[4] == 0x00) {
+    // Extended length: Lc on 3 bytes, optional Le on 2 bytes
+    lc = (apdu[5] << 8) | apdu[6];
+    dataOffset = 7;
+  } else if (apdu.size() > 5) {
+    lc = apdu[4];
+    dataOffset = 5;
+  } else {
+    return false;
+  }
+  if (lc == 0 || apdu.size() < dataOffset + lc) return false;
+  leLength = apdu.size() - dataOffset - lc;
+  size_t maxLeLength = dataOffset == 7 ? 2 : 1;
+  if (leLength > maxLeLength || (maxLeLength == 2 && leLength == 1)) {
+    return false;
+  }
+  // An extended Le becomes 00 (256 bytes) unless it asks for less
+  uint8_t le = 0x00;
+  if (leLength == 1) {
+    le = apdu.back();
+  } else if (leLength == 2 && apdu[apdu.size() - 2] == 0x00) {
+    le = apdu.back();
+  }
+  // Header, Lc and Le take 6 bytes of each frame
+  if (maxFrame <= 6) return false;
+  size_t chunk = std::min<size_t>(255, maxFrame - 6);
+
+  frames.clear();
+  for (size_t offset = 0; offset < lc; offset += chunk) {
+    size_t n = std::min(chunk, lc - offset);
+    bool last = offset + n == lc;
+    std::vector<uint8_t> frame = {
+        static_cast<uint8_t>(last ? apdu[0] : apdu[0] | 0x10), apdu[1],
+        apdu[2], apdu[3], static_cast<uint8_t>(n)};
+    frame.insert(frame.end(), apdu.begin() + dataOffset + offset,
+                 apdu.begin() + dataOffset + offset + n);
+    if (last && leLength > 0) frame.push_back(le);
+    frames.push_back(std::move(frame));
+  }
+  return true;
+}
+
+uint8_t ApduChaining::getResponseCla(uint8_t cla) {
+  // First interindustry CLA: channels 0-3 in b2-b1.
+  // Further interindustry CLA: b7 set, channels 4-19 in b4-b1.
+  return (cla & 0x40) == 0 ? (cla & 0x03) : (0x40 | (cla & 0x0F));
+}
+
+bool ApduChaining::hasShortLe(const std::vector<uint8_t>& frame) {
+  if (frame.size() == 5) return true;  // case 2
+  // Short case 4: Lc, Lc bytes of data and Le; Lc 00 starts an extended APDU
+  return frame.size() > 5 && frame[4] != 0x00 &&
+         frame.size() == 5 + static_cast<size_t>(frame[4]) + 1;
+}
+
+ApduChaining::Status ApduChaining::transceive(
+    const std::vector<uint8_t>& apdu, size_t maxFrame, size_t maxResponse,
+    const FrameTransceiver& transceiveFrame, std::vector<uint8_t>& result) {
+  std::vector<std::vector<uint8_t>> frames;
+  std::vector<uint8_t> response;
+  result.clear();
+
+  if (apdu.size() < 4 || maxFrame == 0) return FAILED;
+  if (apdu.size() <= maxFrame) {
+    frames.push_back(apdu);
+  } else if (!split(apdu, maxFrame, frames)) {
+    LOG(ERROR) << StringPrintf("%s: cannot chain %zu bytes", __func__,
+                               apdu.size());
+    return FAILED;
+  }
+
+  // All chained frames but the last must be accepted with 9000
+  for (size_t i = 0; i + 1 < frames.size(); i++) {
+    if (!transceiveFrame(frames[i], response)) return FAILED;
+    size_t n = response.size();
+    if (n < 2 || response[n - 2] != 0x90 || response[n - 1] != 0x00) {
+      result.swap(response);
+      return OK;
+    }
+  }
+
+  std::vector<uint8_t> frame = frames.back();
+  for (int i = 0; i < MAX_CHAINED_RESPONSES; i++) {
+    if (!transceiveFrame(frame, response)) return FAILED;
+    size_t n = response.size();
+    if (n >= 2 && response[n - 2] == 0x61) {
+      // More data available: GET RESPONSE on the same logical channel
+      if (result.size() + n - 2 > maxResponse) return OVERFLOW;
+      result.insert(result.end(), response.begin(), response.end() - 2);
+      frame = {getResponseCla(frame[0]), 0xC0, 0x00, 0x00, response[n - 1]};
+      continue;
+    }
+    if (n == 2 && response[0] == 0x6C && hasShortLe(frame)) {
+      // Wrong Le: send the same command with the exact Le
+      frame.back() = response[1];
+      continue;
+    }
+    // Any other status word, including 6Cxx to a command without a short
+    // Le, ends the exchange and is returned to the caller
+    if (result.size() + n > maxResponse) return OVERFLOW;
+    result.insert(result.end(), response.begin(), response.end());
+    return OK;
+  }
+  LOG(ERROR) << StringPrintf("%s: too many chained responses", __func__);
+  return FAILED;
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ *  Command and response chaining of ISO-DEP APDUs (ISO/IEC 7816-4).
+ */
+#pragma once
+#include <stddef.h>
+#include <stdint.h>
+
+#include <functional>
+#include <vector>
+
+class ApduChaining {
+ public:
+  enum Status { OK, FAILED, OVERFLOW };
+
+  // Sends one frame and receives the response; false on failure.
+  typedef std::function<bool(std::vector<uint8_t>& frame,
+                             std::vector<uint8_t>& response)>
+      FrameTransceiver;
+
+  // Bound on GET RESPONSE and 6Cxx rounds of a single APDU exchange
+  static const int MAX_CHAINED_RESPONSES = 256;
+
+  /*****************************************************************************
+  **
+  ** Function:        transceive
+  **
+  ** Description:     Exchange a command APDU with an ISO-DEP tag. Command
+  **                  chaining is used for APDUs longer than maxFrame, and
+  **                  response chaining (61xx, 6Cxx) is followed until the
+  **                  last status word.
+  **                  apdu: Command APDU.
+  **                  maxFrame: Largest frame the tag accepts.
+  **                  maxResponse: Largest response accepted in result.
+  **                  transceiveFrame: Sends one frame to the tag.
+  **                  result: Receives the response data and last status word.
+  **
+  ** Returns:         OK, FAILED, or OVERFLOW if the response is too long.
+  **
+  *****************************************************************************/
+  static Status transceive(const std::vector<uint8_t>& apdu, size_t maxFrame,
+                           size_t maxResponse,
+                           const FrameTransceiver& transceiveFrame,
+                           std::vector<uint8_t>& result);
+
+  /*****************************************************************************
+  **
+  ** Function:        split
+  **
+  ** Description:     Split a command APDU longer than maxFrame in short APDUs
+  **                  chained with the CLA bit b5 (ISO/IEC 7816-4, 5.3.3).
+  **                  apdu: Short or extended case 3 or 4 command APDU.
+  **                  maxFrame: Largest frame the tag accepts.
+  **                  frames: Receives the chained APDUs, in order.
+  **
+  ** Returns:         False if the APDU cannot be chained.
+  **
+  *****************************************************************************/
+  static bool split(const std::vector<uint8_t>& apdu, size_t maxFrame,
+                    std::vector<std::vector<uint8_t>>& frames);
+
+  /*****************************************************************************
+  **
+  ** Function:        getResponseCla
+  **
+  ** Description:     Inter-industry CLA of a GET RESPONSE on the logical
+  **                  channel of a command, without chaining, secure
+  **                  messaging or proprietary bits.
+  **                  cla: CLA of the command.
+  **
+  ** Returns:         CLA of the GET RESPONSE command.
+  **
+  *****************************************************************************/
+  static uint8_t getResponseCla(uint8_t cla);
+
+  /*****************************************************************************
+  **
+  ** Function:        hasShortLe
+  **
+  ** Description:     Whether a command APDU is a short case 2 or case 4
+  **                  APDU, whose last byte is Le.
+  **                  frame: Command APDU.
+  **
+  ** Returns:         True if the last byte of the frame is a short Le.
+  **
+  *****************************************************************************/
+  static bool hasShortLe(const std::vector<uint8_t>& frame);
+};
@@ -0,0 +1,148 @@
+#include <gtest/gtest.h>
+
+#include <deque>
+
+#include "ApduChaining.h"
+
+class ApduChainingTest : public ::testing::Test {
+ protected:
+  std::vector<std::vector<uint8_t>> mSent;
+  std::deque<std::vector<uint8_t>> mResponses;
+
+  ApduChaining::FrameTransceiver card() {
+    return [this](std::vector<uint8_t>& frame, std::vector<uint8_t>& response) {
+      mSent.push_back(frame);
+      if (mResponses.empty()) return false;
+      response = mResponses.front();
+      mResponses.pop_front();
+      return true;
+    };
+  }
+};
+
+TEST_F(ApduChainingTest, SplitShortCase4) {
+  std::vector<uint8_t> apdu = {0x00, 0xD6, 0x00, 0x00, 10};
+  for (int i = 0; i < 10; i++) apdu.push_back(i);
+  apdu.push_back(0x20);
+
+  std::vector<std::vector<uint8_t>> frames;
+  ASSERT_TRUE(ApduChaining::split(apdu, 10, frames));
+
+  ASSERT_EQ(3u, frames.size());
+  EXPECT_EQ(std::vector<uint8_t>({0x10, 0xD6, 0x00, 0x00, 4, 0, 1, 2, 3}),
+            frames[0]);
+  EXPECT_EQ(std::vector<uint8_t>({0x10, 0xD6, 0x00, 0x00, 4, 4, 5, 6, 7}),
+            frames[1]);
+  EXPECT_EQ(std::vector<uint8_t>({0x00, 0xD6, 0x00, 0x00, 2, 8, 9, 0x20}),
+            frames[2]);
+}
+
+TEST_F(ApduChainingTest, SplitExtendedLength) {
+  std::vector<uint8_t> apdu = {0x00, 0xDA, 0x00, 0x00, 0x00, 0x01, 0x2C};
+  apdu.resize(apdu.size() + 300, 0xAB);
+  apdu.push_back(0x00);
+  apdu.push_back(0x00);
+
+  std::vector<std::vector<uint8_t>> frames;
+  ASSERT_TRUE(ApduChaining::split(apdu, 261, frames));
+
+  ASSERT_EQ(2u, frames.size());
+  EXPECT_EQ(5u + 255, frames[0].size());
+  EXPECT_EQ(0x10, frames[0][0]);
+  // The remaining 45 bytes and Le 00
+  EXPECT_EQ(5u + 45 + 1, frames[1].size());
+  EXPECT_EQ(0x00, frames[1].back());
+}
+
+TEST_F(ApduChainingTest, SplitRejectsApdusWithoutData) {
+  std::vector<std::vector<uint8_t>> frames;
+  EXPECT_FALSE(ApduChaining::split({0x00, 0xB0, 0x00, 0x00, 0x00}, 4, frames));
+  EXPECT_FALSE(
+      ApduChaining::split({0x00, 0xD6, 0x00, 0x00, 0x05, 0x01}, 4, frames));
+}
+
+TEST_F(ApduChainingTest, GetResponseClaKeepsOnlyTheLogicalChannel) {
+  EXPECT_EQ(0x00, ApduChaining::getResponseCla(0x00));
+  // Chaining, secure messaging and proprietary bits are dropped
+  EXPECT_EQ(0x02, ApduChaining::getResponseCla(0x1E));
+  EXPECT_EQ(0x01, ApduChaining::getResponseCla(0x81));
+  // Further interindustry CLA
+  EXPECT_EQ(0x45, ApduChaining::getResponseCla(0x75));
+}
+
+TEST_F(ApduChainingTest, HasShortLe) {
+  EXPECT_TRUE(ApduChaining::hasShortLe({0x00, 0xB0, 0x00, 0x00, 0x10}));
+  EXPECT_TRUE(
+      ApduChaining::hasShortLe({0x00, 0xA4, 0x04, 0x00, 0x02, 0xA0, 0x00, 0x00}));
+  // Case 3
+  EXPECT_FALSE(
+      ApduChaining::hasShortLe({0x00, 0xD6, 0x00, 0x00, 0x02, 0x01, 0x02}));
+  // Extended case 2
+  EXPECT_FALSE(
+      ApduChaining::hasShortLe({0x00, 0xB0, 0x00, 0x00, 0x00, 0x01, 0x00}));
+}
+
+TEST_F(ApduChainingTest, FollowsGetResponseOnTheSameChannel) {
+  mResponses = {{0x01, 0x02, 0x61, 0x03}, {0x03, 0x04, 0x05, 0x90, 0x00}};
+  std::vector<uint8_t> result;
+
+  ASSERT_EQ(ApduChaining::OK,
+            ApduChaining::transceive({0x83, 0xB0, 0x00, 0x00, 0x00}, 255, 1024,
+                                     card(), result));
+
+  EXPECT_EQ(std::vector<uint8_t>({0x01, 0x02, 0x03, 0x04, 0x05, 0x90, 0x00}),
+            result);
+  ASSERT_EQ(2u, mSent.size());
+  EXPECT_EQ(std::vector<uint8_t>({0x03, 0xC0, 0x00, 0x00, 0x03}), mSent[1]);
+}
+
+TEST_F(ApduChainingTest, RetriesWithExactShortLe) {
+  mResponses = {{0x6C, 0x04}, {0x0A, 0x0B, 0x0C, 0x0D, 0x90, 0x00}};
+  std::vector<uint8_t> result;
+
+  ASSERT_EQ(ApduChaining::OK,
+            ApduChaining::transceive({0x00, 0xB0, 0x00, 0x00, 0x10}, 255, 1024,
+                                     card(), result));
+
+  EXPECT_EQ(std::vector<uint8_t>({0x00, 0xB0, 0x00, 0x00, 0x04}), mSent[1]);
+  EXPECT_EQ(6u, result.size());
+}
+
+TEST_F(ApduChainingTest, Returns6CxxWithoutShortLe) {
+  mResponses = {{0x6C, 0x04}};
+  std::vector<uint8_t> result;
+
+  // Case 3 has no Le to correct
+  ASSERT_EQ(ApduChaining::OK,
+            ApduChaining::transceive({0x00, 0xD6, 0x00, 0x00, 0x01, 0x55}, 255,
+                                     1024, card(), result));
+
+  EXPECT_EQ(1u, mSent.size());
+  EXPECT_EQ(std::vector<uint8_t>({0x6C, 0x04}), result);
+}
+
+TEST_F(ApduChainingTest, SendsChainedCommandsUntilRefused) {
+  std::vector<uint8_t> apdu = {0x00, 0xD6, 0x00, 0x00, 20};
+  apdu.resize(apdu.size() + 20, 0x11);
+  mResponses = {{0x90, 0x00}, {0x6A, 0x82}};
+  std::vector<uint8_t> result;
+
+  ASSERT_EQ(ApduChaining::OK,
+            ApduChaining::transceive(apdu, 10, 1024, card(), result));
+
+  EXPECT_EQ(2u, mSent.size());
+  EXPECT_EQ(std::vector<uint8_t>({0x6A, 0x82}), result);
+}
+
+TEST_F(ApduChainingTest, ReportsOverflowAndFailure) {
+  mResponses = {{0x01, 0x02, 0x61, 0x00}, {0x03, 0x04, 0x90, 0x00}};
+  std::vector<uint8_t> result;
+  EXPECT_EQ(ApduChaining::OVERFLOW,
+            ApduChaining::transceive({0x00, 0xB0, 0x00, 0x00, 0x00}, 255, 4,
+                                     card(), result));
+
+  mResponses.clear();
+  EXPECT_EQ(ApduChaining::FAILED,
+            ApduChaining::transceive({0x00, 0xB0, 0x00, 0x00, 0x00}, 255, 1024,
+                                     card(), result));
+}
@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 
+#include <algorithm>
 #include <android-base/logging.h>
 #include <android-base/stringprintf.h>
 #include <errno.h>
@@ -25,6 +26,7 @@
 #include <string.h>
 #include <time.h>
 
+#include "ApduChaining.h"
 #include "IntervalTimer.h"
 #include "JavaClassConstants.h"
 #include "Mutex.h"
@@ -103,6 +105,16 @@ static SyncEvent sPresenceCheckEvent;
 static sem_t sMakeReadonlySem;
 static IntervalTimer sSwitchBackTimer;  // timer used to tell us to switch back
                                         // to ISO_DEP frame interface
+// Extended Ne of 65536 bytes and the status word
+static const size_t MAX_APDU_RESPONSE_LENGTH = 65538;
+// Response of doTransceiveDirect, swapped with sRxDataBuffer so that the
+// vectors keep their storage from frame to frame
+static std::vector<uint8_t> sDirectRxBuffer;
+// Status of doTransceiveDirect and doTransceiveApdu, must match
+// DeviceHost.TagEndpoint
+static const jint TRANSCEIVE_FAILED = -1;
+static const jint TRANSCEIVE_TAG_LOST = -2;
+static const jint TRANSCEIVE_OVERFLOW = -3;
 uint8_t RW_TAG_SLP_REQ[] = {0x50, 0x00};
 uint8_t RW_DESELECT_REQ[] = {0xC2};
 static jboolean sWriteOk = JNI_FALSE;
@@ -865,56 +877,29 @@ void nativeNfcTag_notifyRfTimeout() {
 
 /*******************************************************************************
 **
-** Function:        nativeNfcTag_doTransceive
+** Function:        transceiveFrame
 **
-** Description:     Send raw data to the tag; receive tag's response.
-**                  e: JVM environment.
-**                  o: Java object.
-**                  raw: Not used.
-**                  statusTargetLost: Whether tag responds or times out.
+** Description:     Send one frame to the tag; wait for the tag's response.
+**                  buf: Frame to send.
+**                  bufLen: Length of the frame.
+**                  response: Receives the response; empty on failure.
+**                  targetLost: Set when the tag times out or is deactivated.
 **
-** Returns:         Response from tag.
+** Returns:         True if the tag responded with data.
 **
 *******************************************************************************/
-static jbyteArray nativeNfcTag_doTransceive(JNIEnv* e, jobject o,
-                                            jbyteArray data, jboolean raw,
-                                            jintArray statusTargetLost) {
+static bool transceiveFrame(uint8_t* buf, size_t bufLen,
+                            std::vector<uint8_t>& response, bool& targetLost) {
   int timeout =
       NfcTag::getInstance().getTransceiveTimeout(sCurrentConnectedTargetType);
-  LOG(DEBUG) << StringPrintf("%s: enter; raw=%u; timeout = %d", __func__, raw,
-                             timeout);
-
   bool waitOk = false;
   bool isNack = false;
-  jint* targetLost = NULL;
   tNFA_STATUS status;
-
-  if (NfcTag::getInstance().getActivationState() != NfcTag::Active) {
-    if (statusTargetLost) {
-      targetLost = e->GetIntArrayElements(statusTargetLost, 0);
-      if (targetLost)
-        *targetLost = 1;  // causes NFC service to throw TagLostException
-      e->ReleaseIntArrayElements(statusTargetLost, targetLost, 0);
-    }
-    LOG(DEBUG) << StringPrintf("%s: tag not active", __func__);
-    return NULL;
-  }
-
   NfcTag& natTag = NfcTag::getInstance();
 
-  // get input buffer and length from java call
-  ScopedByteArrayRO bytes(e, data);
-  uint8_t* buf = const_cast<uint8_t*>(reinterpret_cast<const uint8_t*>(
-      &bytes[0]));  // TODO: API bug; NFA_SendRawFrame should take const*!
-  size_t bufLen = bytes.size();
-
-  if (statusTargetLost) {
-    targetLost = e->GetIntArrayElements(statusTargetLost, 0);
-    if (targetLost) *targetLost = 0;  // success, tag is still present
-  }
-
+  response.clear();
+  targetLost = false;
   sSwitchBackTimer.kill();
-  ScopedLocalRef<jbyteArray> result(e, NULL);
   do {
     {
       SyncEventGuard g(sTransceiveEvent);
@@ -935,15 +920,13 @@ static jbyteArray nativeNfcTag_doTransceive(JNIEnv* e, jobject o,
     if (waitOk == false || sTransceiveRfTimeout)  // if timeout occurred
     {
       LOG(ERROR) << StringPrintf("%s: wait response timeout", __func__);
-      if (targetLost)
-        *targetLost = 1;  // causes NFC service to throw TagLostException
+      targetLost = true;  // causes NFC service to throw TagLostException
       break;
     }
 
     if (NfcTag::getInstance().getActivationState() != NfcTag::Active) {
       LOG(ERROR) << StringPrintf("%s: already deactivated", __func__);
-      if (targetLost)
-        *targetLost = 1;  // causes NFC service to throw TagLostException
+      targetLost = true;  // causes NFC service to throw TagLostException
       break;
     }
 
@@ -964,35 +947,13 @@ static jbyteArray nativeNfcTag_doTransceive(JNIEnv* e, jobject o,
         nativeNfcTag_doReconnect(NULL, NULL);
         LOG(DEBUG) << StringPrintf("%s: reconnect finish", __func__);
       } else if (sCurrentConnectedTargetProtocol == NFC_PROTOCOL_MIFARE) {
-        uint32_t transDataLen = static_cast<uint32_t>(sRxDataBuffer.size());
-        uint8_t* transData = (uint8_t*)sRxDataBuffer.data();
-        bool doReconnect = false;
-
-        doReconnect =
-            ((transDataLen == 1) && (transData[0] != 0x00)) ? true : false;
-
-        if (doReconnect) {
-          nativeNfcTag_doReconnect(e, o);
+        if (sRxDataBuffer.size() == 1 && sRxDataBuffer[0] != 0x00) {
+          nativeNfcTag_doReconnect(NULL, NULL);
         } else {
-          if (transDataLen != 0) {
-            result.reset(e->NewByteArray(transDataLen));
-            if (result.get() != NULL) {
-              e->SetByteArrayRegion(result.get(), 0, transDataLen,
-                                  (const jbyte*)transData);
-            } else
-              LOG(ERROR) << StringPrintf("%s: Failed to allocate java byte array",
-                                       __func__);
-          }
+          response.swap(sRxDataBuffer);
         }
       } else {
-        // marshall data to java for return
-        result.reset(e->NewByteArray(sRxDataBuffer.size()));
-        if (result.get() != NULL) {
-          e->SetByteArrayRegion(result.get(), 0, sRxDataBuffer.size(),
-                                (const jbyte*)sRxDataBuffer.data());
-        } else
-          LOG(ERROR) << StringPrintf("%s: Failed to allocate java byte array",
-                                     __func__);
+        response.swap(sRxDataBuffer);
       }  // else a nack is treated as a transceive failure to the upper layers
 
       sRxDataBuffer.clear();
@@ -1000,12 +961,195 @@ static jbyteArray nativeNfcTag_doTransceive(JNIEnv* e, jobject o,
   } while (0);
 
   sWaitingForTransceive = false;
-  if (targetLost) e->ReleaseIntArrayElements(statusTargetLost, targetLost, 0);
+  return !response.empty();
+}
+
+/*******************************************************************************
+**
+** Function:        nativeNfcTag_doTransceive
+**
+** Description:     Send raw data to the tag; receive tag's response.
+**                  e: JVM environment.
+**                  o: Java object.
+**                  raw: Not used.
+**                  statusTargetLost: Whether tag responds or times out.
+**
+** Returns:         Response from tag.
+**
+*******************************************************************************/
+static jbyteArray nativeNfcTag_doTransceive(JNIEnv* e, jobject,
+                                            jbyteArray data, jboolean raw,
+                                            jintArray statusTargetLost) {
+  LOG(DEBUG) << StringPrintf("%s: enter; raw=%u", __func__, raw);
+
+  jint* targetLost = NULL;
+
+  if (NfcTag::getInstance().getActivationState() != NfcTag::Active) {
+    if (statusTargetLost) {
+      targetLost = e->GetIntArrayElements(statusTargetLost, 0);
+      if (targetLost)
+        *targetLost = 1;  // causes NFC service to throw TagLostException
+      e->ReleaseIntArrayElements(statusTargetLost, targetLost, 0);
+    }
+    LOG(DEBUG) << StringPrintf("%s: tag not active", __func__);
+    return NULL;
+  }
+
+  // get input buffer and length from java call
+  ScopedByteArrayRO bytes(e, data);
+  uint8_t* buf = const_cast<uint8_t*>(reinterpret_cast<const uint8_t*>(
+      &bytes[0]));  // TODO: API bug; NFA_SendRawFrame should take const*!
+  size_t bufLen = bytes.size();
+
+  std::vector<uint8_t> response;
+  bool lost = false;
+  ScopedLocalRef<jbyteArray> result(e, NULL);
+  if (transceiveFrame(buf, bufLen, response, lost)) {
+    // marshall data to java for return
+    result.reset(e->NewByteArray(response.size()));
+    if (result.get() != NULL) {
+      e->SetByteArrayRegion(result.get(), 0, response.size(),
+                            (const jbyte*)response.data());
+    } else
+      LOG(ERROR) << StringPrintf("%s: Failed to allocate java byte array",
+                                 __func__);
+  }
+
+  if (statusTargetLost) {
+    targetLost = e->GetIntArrayElements(statusTargetLost, 0);
+    if (targetLost) *targetLost = lost ? 1 : 0;
+    e->ReleaseIntArrayElements(statusTargetLost, targetLost, 0);
+  }
 
   LOG(DEBUG) << StringPrintf("%s: exit", __func__);
   return result.release();
 }
 
+/*******************************************************************************
+**
+** Function:        nativeNfcTag_doTransceiveDirect
+**
+** Description:     Send raw data to the tag; receive tag's response, both
+**                  read and written in place in direct ByteBuffers.
+**                  e: JVM environment.
+**                  o: Java object.
+**                  request: Direct buffer holding the frame to send.
+**                  requestOffset: Offset of the frame in request.
+**                  requestLength: Length of the frame.
+**                  response: Direct buffer receiving the response.
+**                  responseOffset: Offset of the response in response.
+**                  responseLength: Room for the response.
+**
+** Returns:         Length of the response, or a negative TRANSCEIVE_* status
+**                  of TagEndpoint.
+**
+*******************************************************************************/
+static jint nativeNfcTag_doTransceiveDirect(JNIEnv* e, jobject,
+                                            jobject request, jint requestOffset,
+                                            jint requestLength, jobject response,
+                                            jint responseOffset,
+                                            jint responseLength) {
+  uint8_t* requestData =
+      static_cast<uint8_t*>(e->GetDirectBufferAddress(request));
+  uint8_t* responseData =
+      static_cast<uint8_t*>(e->GetDirectBufferAddress(response));
+  if (requestData == NULL || responseData == NULL || requestOffset < 0 ||
+      requestLength <= 0 || responseOffset < 0 || responseLength < 0 ||
+      requestOffset + requestLength > e->GetDirectBufferCapacity(request) ||
+      responseOffset + responseLength > e->GetDirectBufferCapacity(response)) {
+    LOG(ERROR) << StringPrintf("%s: invalid buffers", __func__);
+    return TRANSCEIVE_FAILED;
+  }
+
+  if (NfcTag::getInstance().getActivationState() != NfcTag::Active) {
+    LOG(DEBUG) << StringPrintf("%s: tag not active", __func__);
+    return TRANSCEIVE_TAG_LOST;
+  }
+
+  bool lost = false;
+  if (!transceiveFrame(requestData + requestOffset, requestLength,
+                       sDirectRxBuffer, lost)) {
+    return lost ? TRANSCEIVE_TAG_LOST : TRANSCEIVE_FAILED;
+  }
+  if (sDirectRxBuffer.size() > static_cast<size_t>(responseLength)) {
+    LOG(ERROR) << StringPrintf("%s: response of %zu bytes too long", __func__,
+                               sDirectRxBuffer.size());
+    return TRANSCEIVE_OVERFLOW;
+  }
+  memcpy(responseData + responseOffset, sDirectRxBuffer.data(),
+         sDirectRxBuffer.size());
+  return sDirectRxBuffer.size();
+}
+
+/*******************************************************************************
+**
+** Function:        nativeNfcTag_doTransceiveApdu
+**
+** Description:     Exchange a command APDU with an ISO-DEP tag. Command
+**                  chaining is used for APDUs longer than maxFrame, and
+**                  response chaining (61xx, 6Cxx) is followed until the
+**                  last status word, without going back to Java.
+**                  e: JVM environment.
+**                  o: Java object.
+**                  apdu: Command APDU.
+**                  maxFrame: Largest frame the tag accepts.
+**                  status: Receives 0 or a negative TRANSCEIVE_* status.
+**
+** Returns:         The data of all responses and the last status word, or
+**                  NULL on failure.
+**
+*******************************************************************************/
+static jbyteArray nativeNfcTag_doTransceiveApdu(JNIEnv* e, jobject,
+                                                jbyteArray apdu, jint maxFrame,
+                                                jintArray status) {
+  LOG(DEBUG) << StringPrintf("%s: enter; maxFrame=%d", __func__, maxFrame);
+  ScopedByteArrayRO bytes(e, apdu);
+  std::vector<uint8_t> command(
+      reinterpret_cast<const uint8_t*>(bytes.get()),
+      reinterpret_cast<const uint8_t*>(bytes.get()) + bytes.size());
+  std::vector<uint8_t> response;
+  bool lost = false;
+  jint result = TRANSCEIVE_FAILED;
+  ScopedLocalRef<jbyteArray> out(e, NULL);
+
+  if (NfcTag::getInstance().getActivationState() != NfcTag::Active) {
+    LOG(DEBUG) << StringPrintf("%s: tag not active", __func__);
+    result = TRANSCEIVE_TAG_LOST;
+  } else if (maxFrame > 0) {
+    ApduChaining::Status chained = ApduChaining::transceive(
+        command, maxFrame, MAX_APDU_RESPONSE_LENGTH,
+        [&lost](std::vector<uint8_t>& frame, std::vector<uint8_t>& rx) {
+          return transceiveFrame(frame.data(), frame.size(), rx, lost);
+        },
+        response);
+    if (chained == ApduChaining::OK) {
+      out.reset(e->NewByteArray(response.size()));
+      if (out.get() != NULL) {
+        e->SetByteArrayRegion(out.get(), 0, response.size(),
+                              (const jbyte*)response.data());
+        result = 0;
+      } else {
+        LOG(ERROR) << StringPrintf("%s: Failed to allocate java byte array",
+                                   __func__);
+      }
+    } else if (chained == ApduChaining::OVERFLOW) {
+      LOG(ERROR) << StringPrintf("%s: response too long", __func__);
+      result = TRANSCEIVE_OVERFLOW;
+    } else if (lost) {
+      result = TRANSCEIVE_TAG_LOST;
+    }
+  }
+
+  if (status) {
+    jint* code = e->GetIntArrayElements(status, 0);
+    if (code) *code = result;
+    e->ReleaseIntArrayElements(status, code, 0);
+  }
+
+  LOG(DEBUG) << StringPrintf("%s: exit; status=%d", __func__, result);
+  return out.release();
+}
+
 /*******************************************************************************
 **
 ** Function:        nativeNfcTag_doGetNdefType
@@ -1705,6 +1849,9 @@ static JNINativeMethod gMethods[] = {
     {"doReconnect", "()I", (void*)nativeNfcTag_doReconnect},
     {"doHandleReconnect", "(I)I", (void*)nativeNfcTag_doHandleReconnect},
     {"doTransceive", "([BZ[I)[B", (void*)nativeNfcTag_doTransceive},
+    {"doTransceiveApdu", "([BI[I)[B", (void*)nativeNfcTag_doTransceiveApdu},
+    {"doTransceiveDirect", "(Ljava/nio/ByteBuffer;IILjava/nio/ByteBuffer;II)I",
+     (void*)nativeNfcTag_doTransceiveDirect},
     {"doGetNdefType", "(II)I", (void*)nativeNfcTag_doGetNdefType},
     {"doCheckNdef", "([I)I", (void*)nativeNfcTag_doCheckNdef},
     {"doRead", "()[B", (void*)nativeNfcTag_doRead},
@@ -34,6 +34,9 @@ import android.util.Log;
 
 import com.android.nfc.DeviceHost;
 import com.android.nfc.DeviceHost.TagEndpoint;
+import com.android.nfc.TagBlockIo;
+
+import java.nio.ByteBuffer;
 
 /** Native interface to the NFC tag functions */
 public class NativeNfcTag implements TagEndpoint {
@@ -71,6 +74,9 @@ public class NativeNfcTag implements TagEndpoint {
 
     private PresenceCheckWatchdog mWatchdog;
 
+    // Created on the first block read or write, guarded by this
+    private TagBlockIo mBlockIo;
+
     class PresenceCheckWatchdog extends Thread {
 
         private final int watchdogTimeout;
@@ -322,6 +328,105 @@ public class NativeNfcTag implements TagEndpoint {
         return result;
     }
 
+    private native byte[] doTransceiveApdu(byte[] apdu, int maxFrame, int[] status);
+
+    @Override
+    public synchronized byte[] transceiveApdu(byte[] apdu, int maxFrame, int[] status) {
+        if (getConnectedTechnology() != TagTechnology.ISO_DEP) {
+            status[0] = TRANSCEIVE_FAILED;
+            return null;
+        }
+        if (mWatchdog != null) {
+            mWatchdog.pause();
+        }
+        try {
+            return doTransceiveApdu(apdu, maxFrame, status);
+        } finally {
+            if (mWatchdog != null) {
+                mWatchdog.doResume();
+            }
+        }
+    }
+
+    @Override
+    public synchronized byte[] readBlocks(int firstBlock, int count, int blockSize,
+            int[] returnCode) {
+        int technology = getConnectedTechnology();
+        boolean nfcV = technology == TagTechnology.NFC_V;
+        if (!nfcV && !(isType2(technology) && blockSize == TagBlockIo.TYPE2_PAGE_SIZE)) {
+            return null;
+        }
+        if (mWatchdog != null) {
+            mWatchdog.pause();
+        }
+        try {
+            return nfcV
+                    ? getBlockIo().readNfcV(mUid, firstBlock, count, blockSize, returnCode)
+                    : getBlockIo().readType2(firstBlock, count, returnCode);
+        } finally {
+            if (mWatchdog != null) {
+                mWatchdog.doResume();
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean writeBlocks(int firstBlock, int blockSize, byte[] data,
+            int[] returnCode) {
+        int technology = getConnectedTechnology();
+        boolean nfcV = technology == TagTechnology.NFC_V;
+        if (!nfcV && !(isType2(technology) && blockSize == TagBlockIo.TYPE2_PAGE_SIZE)) {
+            return false;
+        }
+        if (mWatchdog != null) {
+            mWatchdog.pause();
+        }
+        try {
+            return nfcV
+                    ? getBlockIo().writeNfcV(mUid, firstBlock, blockSize, data, returnCode)
+                    : getBlockIo().writeType2(firstBlock, data, returnCode);
+        } finally {
+            if (mWatchdog != null) {
+                mWatchdog.doResume();
+            }
+        }
+    }
+
+    private boolean isType2(int technology) {
+        return technology == TagTechnology.MIFARE_ULTRALIGHT
+                || (technology == TagTechnology.NFC_A
+                        && hasTechOnHandle(TagTechnology.MIFARE_ULTRALIGHT, mConnectedHandle));
+    }
+
+    private native int doTransceiveDirect(ByteBuffer request, int requestOffset,
+            int requestLength, ByteBuffer response, int responseOffset, int responseLength);
+
+    /**
+     * Sends one frame from direct buffers, read and written in place by native code.
+     * Returns the response length, or a negative TRANSCEIVE_* status.
+     */
+    private int transceiveDirect(ByteBuffer request, ByteBuffer response) {
+        if (!request.isDirect() || !response.isDirect() || response.isReadOnly()
+                || !request.hasRemaining()) {
+            return TRANSCEIVE_FAILED;
+        }
+        int length = doTransceiveDirect(request, request.position(), request.remaining(),
+                response, response.position(), response.remaining());
+        if (length >= 0) {
+            request.position(request.limit());
+            response.position(response.position() + length);
+        }
+        return length;
+    }
+
+    // Block reads and writes reuse the direct buffers of this instance for every frame
+    private TagBlockIo getBlockIo() {
+        if (mBlockIo == null) {
+            mBlockIo = new TagBlockIo(this::transceiveDirect);
+        }
+        return mBlockIo;
+    }
+
     private native int doCheckNdef(int[] ndefinfo);
 
     private synchronized int checkNdefWithStatus(int[] ndefinfo) {
@@ -51,6 +51,11 @@ public interface DeviceHost {
     }
 
     public interface TagEndpoint {
+        /** Status of {@link #transceiveApdu} and of direct buffer transceives */
+        int TRANSCEIVE_FAILED = -1;
+        int TRANSCEIVE_TAG_LOST = -2;
+        int TRANSCEIVE_OVERFLOW = -3;
+
         boolean connect(int technology);
         boolean reconnect();
         boolean disconnect();
@@ -69,6 +74,23 @@ public interface DeviceHost {
 
         byte[] transceive(byte[] data, boolean raw, int[] returnCode);
 
+        /**
+         * Reads {@code count} blocks of an NFC-V tag, or pages of a Type 2 tag, in as
+         * few frames as the tag allows. Returns null on failure or for other tags.
+         */
+        byte[] readBlocks(int firstBlock, int count, int blockSize, int[] returnCode);
+
+        /** Writes whole blocks of an NFC-V tag, or pages of a Type 2 tag. */
+        boolean writeBlocks(int firstBlock, int blockSize, byte[] data, int[] returnCode);
+
+        /**
+         * Exchanges an APDU with an ISO-DEP tag, chaining commands longer than
+         * {@code maxFrame} and following 61xx/6Cxx response chaining. Returns the data of
+         * all responses and the last status word, or null with a TRANSCEIVE_* status in
+         * {@code status[0]}.
+         */
+        byte[] transceiveApdu(byte[] apdu, int maxFrame, int[] status);
+
         boolean checkNdef(int[] out);
         byte[] readNdef();
         boolean writeNdef(byte[] data);
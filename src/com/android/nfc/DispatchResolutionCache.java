@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.ResolveInfoFlags;
+import android.content.pm.ResolveInfo;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cache of the activities resolved for the intents of a tag dispatch.
+ *
+ * Entries are keyed by the user and everything of the intent that takes part in the
+ * query: action, MIME type, full data URI, package, component and categories.
+ * Repeated taps of the same kind of tag are then resolved without going through
+ * PackageManager. The cache is cleared on package changes, and entries also expire
+ * after {@link #MAX_AGE_MS} as a safety net for state that is not tracked. Only
+ * queries are cached: resolving to a single activity also depends on preferred
+ * activities, which change without any package event.
+ */
+class DispatchResolutionCache {
+    static final int MAX_ENTRIES = 32;
+    static final long MAX_AGE_MS = 10 * 60 * 1000;
+
+    private static final class Entry {
+        final List<ResolveInfo> activities;
+        final long createdMs;
+
+        Entry(List<ResolveInfo> activities, long createdMs) {
+            this.activities = activities;
+            this.createdMs = createdMs;
+        }
+    }
+
+    // All fields synchronized on this.
+    private final LruCache<String, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+    private final long mMaxAgeMs;
+    private int mGeneration;
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    DispatchResolutionCache() {
+        this(MAX_AGE_MS);
+    }
+
+    DispatchResolutionCache(long maxAgeMs) {
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    static String makeKey(Intent intent, int userId) {
+        StringBuilder key = new StringBuilder().append(userId)
+                .append('|').append(intent.getAction())
+                .append('|').append(intent.getType())
+                .append('|').append(intent.getData())
+                .append('|').append(intent.getPackage())
+                .append('|').append(intent.getComponent());
+        if (intent.getCategories() != null) {
+            key.append('|').append(intent.getCategories());
+        }
+        return key.toString();
+    }
+
+    /** Returns the exported activities matching the intent for this user. */
+    List<ResolveInfo> queryExportedActivities(PackageManager pm, Intent intent,
+            UserHandle user) {
+        String key = makeKey(intent, user.getIdentifier());
+        int generation;
+        synchronized (this) {
+            List<ResolveInfo> activities = getLocked(key);
+            if (activities != null) {
+                return activities;
+            }
+            generation = mGeneration;
+        }
+        List<ResolveInfo> activities = new ArrayList<>();
+        for (ResolveInfo ri : pm.queryIntentActivitiesAsUser(intent,
+                ResolveInfoFlags.of(PackageManager.MATCH_DEFAULT_ONLY), user)) {
+            if (ri.activityInfo.exported) {
+                activities.add(ri);
+            }
+        }
+        activities = Collections.unmodifiableList(activities);
+        put(key, activities, generation);
+        return activities;
+    }
+
+    private List<ResolveInfo> getLocked(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.createdMs < mMaxAgeMs) {
+            mHits++;
+            return entry.activities;
+        }
+        mMisses++;
+        return null;
+    }
+
+    private synchronized void put(String key, List<ResolveInfo> activities, int generation) {
+        // Lookups started before an invalidation may have missed the change.
+        if (generation == mGeneration) {
+            mEntries.put(key, new Entry(activities, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    synchronized void invalidate() {
+        mGeneration++;
+        mEntries.evictAll();
+        mInvalidations++;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Dispatch resolution cache: size=" + mEntries.size() + " hits=" + mHits
+                + " misses=" + mMisses + " invalidations=" + mInvalidations);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Rolling window of the stages walked by the last tag dispatches.
+ *
+ * Each trace records which stages ran, how long each took and whether it matched,
+ * fell through or stopped the dispatch, with a constant reason. Traces are recycled
+ * once the window is full, so tracing a dispatch does not allocate.
+ */
+class DispatchTraceLog {
+    static final int MAX_TRACES = 20;
+
+    static final int STAGE_PREPARE = 0;
+    static final int STAGE_UNLOCK = 1;
+    static final int STAGE_OVERRIDES = 2;
+    static final int STAGE_HANDOVER = 3;
+    static final int STAGE_WIFI = 4;
+    static final int STAGE_PROVISIONING = 5;
+    static final int STAGE_NDEF = 6;
+    static final int STAGE_TECH = 7;
+    static final int STAGE_TAG = 8;
+    private static final String[] STAGE_NAMES = {
+            "prepare", "unlock", "overrides", "handover", "wifi", "provisioning", "ndef",
+            "tech", "tag",
+    };
+
+    static final int OUTCOME_FELL_THROUGH = 0;
+    static final int OUTCOME_MATCHED = 1;
+    static final int OUTCOME_STOPPED = 2;
+    private static final String[] OUTCOME_NAMES = {"fell-through", "matched", "stopped"};
+
+    /** The stages of a single dispatch. */
+    static final class Trace {
+        private final int[] mStages = new int[STAGE_NAMES.length];
+        private final int[] mOutcomes = new int[STAGE_NAMES.length];
+        private final long[] mDurationsNanos = new long[STAGE_NAMES.length];
+        private final String[] mReasons = new String[STAGE_NAMES.length];
+        private int mCount;
+        private long mStartWallMs;
+        private long mStartNanos;
+        private long mTotalNanos;
+        private int mResult;
+
+        private void reset() {
+            mCount = 0;
+            mStartWallMs = System.currentTimeMillis();
+            mStartNanos = SystemClock.elapsedRealtimeNanos();
+            mTotalNanos = 0;
+        }
+
+        /** Returns the start time to pass to {@link #record}. */
+        long now() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        /** Records a stage that started at {@code startNanos} and ends now. */
+        void record(int stage, long startNanos, int outcome, String reason) {
+            if (mCount == mStages.length) {
+                return;
+            }
+            mStages[mCount] = stage;
+            mOutcomes[mCount] = outcome;
+            mDurationsNanos[mCount] = SystemClock.elapsedRealtimeNanos() - startNanos;
+            mReasons[mCount] = reason;
+            mCount++;
+        }
+
+        private void dump(PrintWriter pw, SimpleDateFormat format) {
+            pw.println(format.format(new Date(mStartWallMs)) + " result=" + mResult
+                    + " total=" + mTotalNanos / 1000 + "us");
+            for (int i = 0; i < mCount; i++) {
+                pw.println("    " + STAGE_NAMES[mStages[i]] + " "
+                        + mDurationsNanos[i] / 1000 + "us " + OUTCOME_NAMES[mOutcomes[i]]
+                        + (mReasons[i] != null ? " (" + mReasons[i] + ")" : ""));
+            }
+        }
+    }
+
+    // All fields synchronized on this. Oldest trace first.
+    private final ArrayDeque<Trace> mTraces = new ArrayDeque<>(MAX_TRACES);
+    private int mInFlight;
+    private long mDispatches;
+
+    /** Returns an empty trace for a new dispatch, recycling the oldest one if possible. */
+    synchronized Trace begin() {
+        Trace trace = mTraces.size() + mInFlight >= MAX_TRACES && !mTraces.isEmpty()
+                ? mTraces.pollFirst() : new Trace();
+        mInFlight++;
+        trace.reset();
+        return trace;
+    }
+
+    /** Adds a finished trace to the window. */
+    synchronized void end(Trace trace, int result) {
+        trace.mResult = result;
+        trace.mTotalNanos = SystemClock.elapsedRealtimeNanos() - trace.mStartNanos;
+        mInFlight--;
+        mDispatches++;
+        mTraces.addLast(trace);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Dispatch traces (last " + mTraces.size() + " of " + mDispatches + "):");
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        for (Trace trace : mTraces) {
+            pw.print("  ");
+            trace.dump(pw, format);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Foreground dispatch registration compiled for matching tags.
+ *
+ * The tech lists are turned into {@link TechListIndex} masks, so a tech override is
+ * checked with a few bit operations. The intent filters are grouped by action and by
+ * MIME type or data scheme, so only the filters that can match an intent are run
+ * through {@link IntentFilter#match}. Instances are immutable and replaced as a
+ * whole when the registration changes.
+ */
+class ForegroundDispatchMatcher {
+    private static final IntentFilter[] NO_FILTERS = new IntentFilter[0];
+
+    final PendingIntent intent;
+    final IntentFilter[] filters;
+    final String[][] techLists;
+
+    // Masks of the non-empty tech lists with known techs only
+    private final int[] mTechMasks;
+    // True if a tech list has a tech missing from TechListIndex.KNOWN_TECHS
+    private final boolean mHasUnknownTechs;
+    // Filters declaring MIME types, by action
+    private final HashMap<String, IntentFilter[]> mTypeFilters = new HashMap<>();
+    // Filters without MIME types, by action and data scheme ("" for no data)
+    private final HashMap<String, IntentFilter[]> mSchemeFilters = new HashMap<>();
+
+    ForegroundDispatchMatcher(PendingIntent intent, IntentFilter[] filters,
+            String[][] techLists) {
+        this.intent = intent;
+        this.filters = filters;
+        this.techLists = techLists;
+
+        int[] techMasks = new int[techLists != null ? techLists.length : 0];
+        int count = 0;
+        boolean hasUnknownTechs = false;
+        for (int i = 0; i < techMasks.length; i++) {
+            String[] techs = techLists[i];
+            if (techs == null || techs.length == 0) {
+                continue;
+            }
+            int mask = TechListIndex.maskOf(techs);
+            if (mask < 0) {
+                hasUnknownTechs = true;
+            } else {
+                techMasks[count++] = mask;
+            }
+        }
+        mTechMasks = Arrays.copyOf(techMasks, count);
+        mHasUnknownTechs = hasUnknownTechs;
+
+        if (filters == null) {
+            return;
+        }
+        HashMap<String, ArrayList<IntentFilter>> typeFilters = new HashMap<>();
+        HashMap<String, ArrayList<IntentFilter>> schemeFilters = new HashMap<>();
+        for (IntentFilter filter : filters) {
+            if (filter == null) {
+                continue;
+            }
+            Iterator<String> actions = filter.actionsIterator();
+            while (actions != null && actions.hasNext()) {
+                String action = actions.next();
+                if (filter.countDataTypes() > 0) {
+                    // Only intents with a type can match.
+                    add(typeFilters, action, filter);
+                } else if (filter.countDataSchemes() > 0) {
+                    for (int i = 0; i < filter.countDataSchemes(); i++) {
+                        add(schemeFilters, schemeKey(action, filter.getDataScheme(i)), filter);
+                    }
+                } else {
+                    // Without types and schemes, only intents without data match.
+                    add(schemeFilters, schemeKey(action, ""), filter);
+                }
+            }
+        }
+        publish(typeFilters, mTypeFilters);
+        publish(schemeFilters, mSchemeFilters);
+    }
+
+    private static String schemeKey(String action, String scheme) {
+        return action + "|" + scheme;
+    }
+
+    private static void add(HashMap<String, ArrayList<IntentFilter>> map, String key,
+            IntentFilter filter) {
+        ArrayList<IntentFilter> list = map.computeIfAbsent(key, k -> new ArrayList<>());
+        if (!list.contains(filter)) {
+            list.add(filter);
+        }
+    }
+
+    private static void publish(HashMap<String, ArrayList<IntentFilter>> from,
+            HashMap<String, IntentFilter[]> to) {
+        for (Map.Entry<String, ArrayList<IntentFilter>> entry : from.entrySet()) {
+            to.put(entry.getKey(), entry.getValue().toArray(NO_FILTERS));
+        }
+    }
+
+    /** Returns true if the intent matches the filters, as {@link IntentFilter#match} does. */
+    boolean isFilterMatch(ContentResolver resolver, Intent dispatchIntent, String tag) {
+        if (filters == null) {
+            // always match if both filters and techlists are null
+            return techLists == null;
+        }
+        String action = dispatchIntent.getAction();
+        IntentFilter[] candidates;
+        if (dispatchIntent.getType() != null) {
+            candidates = mTypeFilters.get(action);
+        } else {
+            Uri data = dispatchIntent.getData();
+            String scheme = data != null ? data.getScheme() : null;
+            candidates = mSchemeFilters.get(schemeKey(action, scheme != null ? scheme : ""));
+        }
+        if (candidates == null) {
+            return false;
+        }
+        for (IntentFilter filter : candidates) {
+            if (filter.match(resolver, dispatchIntent, false, tag) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a tech list is covered by the tag techs.
+     *
+     * @param tagMask the {@link TechListIndex#maskOf} of the tag techs
+     * @param sortedTagTechs the sorted tag techs, used if a mask is not enough
+     */
+    boolean isTechMatch(int tagMask, String[] sortedTagTechs) {
+        if (tagMask >= 0) {
+            for (int mask : mTechMasks) {
+                if ((mask & ~tagMask) == 0) {
+                    return true;
+                }
+            }
+            if (!mHasUnknownTechs) {
+                return false;
+            }
+        }
+        if (techLists == null) {
+            return false;
+        }
+        for (String[] filterTechs : techLists) {
+            if (filterTechs == null || filterTechs.length == 0) {
+                continue;
+            }
+            boolean match = true;
+            for (String tech : filterTechs) {
+                if (Arrays.binarySearch(sortedTagTechs, tech) < 0) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
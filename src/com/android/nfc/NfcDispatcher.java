@@ -18,6 +18,19 @@ package com.android.nfc;
 
 import static android.nfc.Flags.enableNfcMainline;
 
+import static com.android.nfc.DispatchTraceLog.OUTCOME_FELL_THROUGH;
+import static com.android.nfc.DispatchTraceLog.OUTCOME_MATCHED;
+import static com.android.nfc.DispatchTraceLog.OUTCOME_STOPPED;
+import static com.android.nfc.DispatchTraceLog.STAGE_HANDOVER;
+import static com.android.nfc.DispatchTraceLog.STAGE_NDEF;
+import static com.android.nfc.DispatchTraceLog.STAGE_OVERRIDES;
+import static com.android.nfc.DispatchTraceLog.STAGE_PREPARE;
+import static com.android.nfc.DispatchTraceLog.STAGE_PROVISIONING;
+import static com.android.nfc.DispatchTraceLog.STAGE_TAG;
+import static com.android.nfc.DispatchTraceLog.STAGE_TECH;
+import static com.android.nfc.DispatchTraceLog.STAGE_UNLOCK;
+import static com.android.nfc.DispatchTraceLog.STAGE_WIFI;
+
 import android.app.Activity;
 import android.app.ActivityManager;
 import android.app.AlertDialog;
@@ -42,8 +55,17 @@ import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+import android.nfc.tech.MifareClassic;
+import android.nfc.tech.MifareUltralight;
 import android.nfc.tech.Ndef;
+import android.nfc.tech.NdefFormatable;
+import android.nfc.tech.NfcA;
+import android.nfc.tech.NfcB;
 import android.nfc.tech.NfcBarcode;
+import android.nfc.tech.NfcF;
+import android.nfc.tech.NfcV;
+import android.nfc.tech.TagTechnology;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.Message;
@@ -69,11 +91,17 @@ import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
@@ -91,6 +119,18 @@ class NfcDispatcher {
 
     private final Context mContext;
     private final RegisteredComponentCache mTechListFilters;
+    private final UserContextCache mUserContextCache;
+    private final DispatchResolutionCache mResolutionCache = new DispatchResolutionCache();
+    private final DispatchTraceLog mDispatchTraces = new DispatchTraceLog();
+    // Any installed, removed or changed activity may change the resolved intents.
+    private final PackageChangeMonitor.Listener mPackageListener = deltas -> {
+        for (PackageChangeMonitor.PackageDelta delta : deltas) {
+            if (delta.fullRescan || !delta.getInstalledOrComponentChanges().isEmpty()) {
+                mResolutionCache.invalidate();
+                return;
+            }
+        }
+    };
     private final ContentResolver mContentResolver;
     private final HandoverDataParser mHandoverDataParser;
     private final String[] mProvisioningMimes;
@@ -100,21 +140,29 @@ class NfcDispatcher {
     private final Handler mMessageHandler = new MessageHandler();
     private final Messenger mMessenger = new Messenger(mMessageHandler);
     private AtomicBoolean mBluetoothEnabledByNfc = new AtomicBoolean();
+    // Resolves tech dispatch candidates while the NDEF read is still in flight
+    private final ExecutorService mTechCandidateExecutor = Executors.newSingleThreadExecutor();
 
+    // Replaced as a whole, read without the lock at dispatch time
+    private volatile ForegroundDispatchMatcher mForegroundDispatch;
     // Locked on this
-    private PendingIntent mOverrideIntent;
-    private IntentFilter[] mOverrideFilters;
-    private String[][] mOverrideTechLists;
     private int mForegroundUid;
     private ForegroundUtils mForegroundUtils;
     private boolean mProvisioningOnly;
-    private NfcAdapter mNfcAdapter;
     private boolean mIsTagAppPrefSupported;
+    // Tag app preferences kept by the service, read without a binder call
+    private volatile TagAppPrefs.Store mTagAppPrefStore;
+    private Future<TechCandidates> mPendingTechCandidates;
+    private int mSpeculativeTechHits;
+    private int mSpeculativeTechMisses;
+    // Tech lookups of tags with a tech that is not in the index
+    private volatile int mUnindexedTechLookups;
 
     NfcDispatcher(Context context,
                   HandoverDataParser handoverDataParser,
                   boolean provisionOnly) {
         mContext = context;
+        mUserContextCache = new UserContextCache(mContext);
         mTechListFilters = new RegisteredComponentCache(mContext,
                 NfcAdapter.ACTION_TECH_DISCOVERED, NfcAdapter.ACTION_TECH_DISCOVERED);
         mContentResolver = context.getContentResolver();
@@ -144,22 +192,55 @@ class NfcDispatcher {
 
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         mContext.registerReceiver(mBluetoothStatusReceiver, filter);
+        PackageChangeMonitor.getInstance(mContext).addListener(mPackageListener);
     }
 
     @Override
     protected void finalize() throws Throwable {
         mContext.unregisterReceiver(mBluetoothStatusReceiver);
+        PackageChangeMonitor.getInstance(mContext).removeListener(mPackageListener);
         super.finalize();
     }
 
+    /** Scans the activities filtering on tech lists, which tech dispatch waits for. */
+    void initializeTechListFilters() {
+        mTechListFilters.initialize();
+    }
+
+    /** Sets the in-process store of the tag app preferences. */
+    void setTagAppPrefStore(TagAppPrefs.Store store) {
+        mTagAppPrefStore = store;
+    }
+
+    /** Returns the tag app preference store, going through NfcAdapter if none was set. */
+    private TagAppPrefs.Store getTagAppPrefStore() {
+        TagAppPrefs.Store store = mTagAppPrefStore;
+        if (store != null) {
+            return store;
+        }
+        NfcAdapter adapter = NfcAdapter.getDefaultAdapter(mContext.getApplicationContext());
+        return new TagAppPrefs.Store() {
+            @Override
+            public Map<String, Boolean> getTagAppPrefs(int userId) {
+                return adapter.getTagIntentAppPreferenceForUser(userId);
+            }
+
+            @Override
+            public void addAllowedTagApps(int userId, Set<String> packages) {
+                for (String pkg : packages) {
+                    adapter.setTagIntentAppPreferenceForUser(userId, pkg, true);
+                }
+            }
+        };
+    }
+
     public synchronized void setForegroundDispatch(PendingIntent intent,
             IntentFilter[] filters, String[][] techLists) {
         if (DBG) Log.d(TAG, "Set Foreground Dispatch");
-        mOverrideIntent = intent;
-        mOverrideFilters = filters;
-        mOverrideTechLists = techLists;
+        mForegroundDispatch = intent != null
+                ? new ForegroundDispatchMatcher(intent, filters, techLists) : null;
 
-        if (mOverrideIntent != null) {
+        if (intent != null) {
             int callingUid = Binder.getCallingUid();
             if (mForegroundUid != callingUid) {
                 mForegroundUtils.registerUidToBackgroundCallback(mForegroundCallback, callingUid);
@@ -187,6 +268,172 @@ class NfcDispatcher {
        mProvisioningOnly = false;
     }
 
+    /**
+     * Tech dispatch candidates resolved from the tech list alone, before the NDEF
+     * read finished. The tech list is a superset of what the tag can end up with,
+     * so the exact matching is still done at dispatch time.
+     */
+    static class TechCandidates {
+        final String[] techs;
+        final List<ComponentInfo> registered;
+        final List<UserHandle> users;
+        final List<List<ComponentInfo>> enabled;
+
+        TechCandidates(String[] techs, List<ComponentInfo> registered, List<UserHandle> users,
+                List<List<ComponentInfo>> enabled) {
+            this.techs = techs;
+            this.registered = registered;
+            this.users = users;
+            this.enabled = enabled;
+        }
+
+        /** Returns true if these candidates cover every tech on the tag. */
+        boolean covers(String[] tagTechs) {
+            for (String tech : tagTechs) {
+                if (Arrays.binarySearch(techs, tech) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Returns the enabled candidates for this user, or null if unknown. */
+        List<ComponentInfo> getEnabled(UserHandle uh) {
+            int index = users.indexOf(uh);
+            return index < 0 ? null : enabled.get(index);
+        }
+    }
+
+    static String techCodeToName(int tech) {
+        switch (tech) {
+            case TagTechnology.NFC_A: return NfcA.class.getName();
+            case TagTechnology.NFC_B: return NfcB.class.getName();
+            case TagTechnology.ISO_DEP: return IsoDep.class.getName();
+            case TagTechnology.NFC_F: return NfcF.class.getName();
+            case TagTechnology.NFC_V: return NfcV.class.getName();
+            case TagTechnology.NDEF: return Ndef.class.getName();
+            case TagTechnology.NDEF_FORMATABLE: return NdefFormatable.class.getName();
+            case TagTechnology.MIFARE_CLASSIC: return MifareClassic.class.getName();
+            case TagTechnology.MIFARE_ULTRALIGHT: return MifareUltralight.class.getName();
+            case TagTechnology.NFC_BARCODE: return NfcBarcode.class.getName();
+            default: return null;
+        }
+    }
+
+    /**
+     * Starts resolving tech dispatch candidates for a tag whose NDEF contents
+     * are still being read. The NDEF read can only add Ndef or NdefFormatable
+     * to the tech list, so both are assumed present.
+     */
+    void prefetchTechCandidates(int[] techCodes) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (int tech : techCodes) {
+            String name = techCodeToName(tech);
+            if (name != null && !names.contains(name)) {
+                names.add(name);
+            }
+        }
+        if (!names.contains(Ndef.class.getName())) names.add(Ndef.class.getName());
+        if (!names.contains(NdefFormatable.class.getName())) {
+            names.add(NdefFormatable.class.getName());
+        }
+        final String[] techs = names.toArray(new String[names.size()]);
+        Arrays.sort(techs);
+        synchronized (this) {
+            if (mPendingTechCandidates != null) {
+                mPendingTechCandidates.cancel(false);
+            }
+            mPendingTechCandidates = mTechCandidateExecutor.submit(
+                    () -> resolveAllTechCandidates(techs));
+        }
+    }
+
+    /** Drops the pending candidates of a tag that will not be dispatched. */
+    void cancelTechCandidates() {
+        synchronized (this) {
+            if (mPendingTechCandidates != null) {
+                mPendingTechCandidates.cancel(false);
+                mPendingTechCandidates = null;
+            }
+        }
+    }
+
+    private TechCandidates resolveAllTechCandidates(String[] techs)
+            throws NameNotFoundException {
+        TechListIndex index = mTechListFilters.getTechListIndex();
+        List<UserHandle> users = mUserContextCache.getActiveUserHandles();
+        List<List<ComponentInfo>> enabled = new ArrayList<List<ComponentInfo>>();
+        for (UserHandle uh : users) {
+            enabled.add(resolveTechCandidates(techs, index, uh));
+        }
+        return new TechCandidates(techs, index.components, users, enabled);
+    }
+
+    /**
+     * Returns the registered components of this user that are enabled, exported and
+     * whose tech filter is covered by {@code techs}.
+     */
+    private List<ComponentInfo> resolveTechCandidates(String[] techs,
+            TechListIndex index, UserHandle uh) throws NameNotFoundException {
+        PackageManager pm = mUserContextCache.getPackageManager(uh);
+        List<ComponentInfo> matching = index.getCandidates(techs);
+        boolean indexed = matching != null;
+        if (!indexed) {
+            mUnindexedTechLookups++;
+            matching = index.components;
+        }
+        List<ComponentInfo> candidates = new ArrayList<ComponentInfo>();
+        for (ComponentInfo info : matching) {
+            // Don't allow wild card matching
+            // Check if exported flag is not explicitly set to false to prevent
+            // SecurityExceptions.
+            if ((indexed || (filterMatch(techs, info.techs)
+                    && info.resolveInfo.activityInfo.exported))
+                    && isComponentEnabled(pm, info.resolveInfo)) {
+                candidates.add(info);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the speculative candidates if they are still valid for this tag,
+     * or null if the tech dispatch has to be resolved from scratch.
+     */
+    private TechCandidates takeTechCandidates(Tag tag) {
+        Future<TechCandidates> pending;
+        synchronized (this) {
+            pending = mPendingTechCandidates;
+            mPendingTechCandidates = null;
+        }
+        if (pending == null) {
+            return null;
+        }
+        TechCandidates candidates = null;
+        try {
+            candidates = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            Log.w(TAG, "Speculative tech resolution failed", e);
+        }
+        String[] tagTechs = tag.getTechList();
+        Arrays.sort(tagTechs);
+        // Profiles may have been started, stopped or paused since the prefetch.
+        List<UserHandle> users = candidates != null
+                ? mUserContextCache.getActiveUserHandles() : null;
+        synchronized (this) {
+            if (candidates != null && candidates.covers(tagTechs)
+                    && candidates.registered == mTechListFilters.getComponents()
+                    && candidates.users.equals(users)) {
+                mSpeculativeTechHits++;
+                return candidates;
+            }
+            mSpeculativeTechMisses++;
+        }
+        return null;
+    }
+
     private static Intent createNfcResolverIntent(
             Intent target,
             CharSequence title,
@@ -212,10 +459,14 @@ class NfcDispatcher {
         final String ndefMimeType;
         final PackageManager packageManager;
         final Context context;
-        final NfcAdapter mNfcAdapter;
+        final TagAppPrefs tagAppPrefs;
         final boolean mIsTagAppPrefSupported;
+        final UserContextCache userContextCache;
+        final DispatchResolutionCache resolutionCache;
 
-        public DispatchInfo(Context context, Tag tag, NdefMessage message) {
+        public DispatchInfo(Context context, Tag tag, NdefMessage message,
+                TagAppPrefs tagAppPrefs, UserContextCache userContextCache,
+                DispatchResolutionCache resolutionCache) {
             intent = new Intent();
             intent.putExtra(NfcAdapter.EXTRA_TAG, tag);
             intent.putExtra(NfcAdapter.EXTRA_ID, tag.getId());
@@ -235,13 +486,10 @@ class NfcDispatcher {
 
             this.context = context;
             packageManager = context.getPackageManager();
-            mIsTagAppPrefSupported =
-                    context.getResources().getBoolean(R.bool.tag_intent_app_pref_supported);
-            if (mIsTagAppPrefSupported) {
-                mNfcAdapter = NfcAdapter.getDefaultAdapter(context.getApplicationContext());
-            } else {
-                mNfcAdapter = null;
-            }
+            this.tagAppPrefs = tagAppPrefs;
+            mIsTagAppPrefSupported = tagAppPrefs != null;
+            this.userContextCache = userContextCache;
+            this.resolutionCache = resolutionCache;
         }
 
         public Intent setNdefIntent() {
@@ -274,10 +522,7 @@ class NfcDispatcher {
             boolean status = false;
             List<UserHandle> luh = getCurrentActiveUserHandles();
             for (UserHandle uh : luh) {
-                List<ResolveInfo> activities = packageManager.queryIntentActivitiesAsUser(intent,
-                        ResolveInfoFlags.of(PackageManager.MATCH_DEFAULT_ONLY), uh);
-                activities = activities.stream().filter(activity -> activity.activityInfo.exported)
-                        .collect(Collectors.toList());
+                List<ResolveInfo> activities = queryExportedActivities(intent, uh);
                 if (activities.size() > 0) {
                     status = true;
                 }
@@ -306,19 +551,11 @@ class NfcDispatcher {
                     Log.d(TAG, "activityInfo.name= " + activityInfo.name);
                     Log.d(TAG, "cmp.flattenToString= " + cmp.flattenToString());
                 }
-                Map<String, Boolean> preflist =
-                        mNfcAdapter.getTagIntentAppPreferenceForUser(userId);
-                if (preflist.containsKey(activityInfo.packageName)) {
-                    if (!preflist.get(activityInfo.packageName)) {
-                        if (DBG) Log.d(TAG, "mute pkg:" + cmp.flattenToString());
-                        muteAppCount++;
-                        filtered.remove(resolveInfo);
-                        logMuteApp(activityInfo.applicationInfo.uid);
-                    }
-                } else {
-                    // Default sets allow to the preference list
-                    mNfcAdapter.setTagIntentAppPreferenceForUser(userId, activityInfo.packageName,
-                            true);
+                if (!tagAppPrefs.isAllowed(userId, activityInfo.packageName)) {
+                    if (DBG) Log.d(TAG, "mute pkg:" + cmp.flattenToString());
+                    muteAppCount++;
+                    filtered.remove(resolveInfo);
+                    logMuteApp(activityInfo.applicationInfo.uid);
                 }
             }
             if (muteAppCount > 0) {
@@ -351,11 +588,8 @@ class NfcDispatcher {
             // to determine if there is an Activity to handle this intent, and base the
             // result of off that.
             // try current user if there is an Activity to handle this intent
-            List<ResolveInfo> activities = packageManager.queryIntentActivitiesAsUser(intent,
-                    ResolveInfoFlags.of(PackageManager.MATCH_DEFAULT_ONLY),
+            List<ResolveInfo> activities = queryExportedActivities(intent,
                     UserHandle.of(ActivityManager.getCurrentUser()));
-            activities = activities.stream().filter(activity -> activity.activityInfo.exported)
-                    .collect(Collectors.toList());
             if (mIsTagAppPrefSupported) {
                 activities = checkPrefList(activities, ActivityManager.getCurrentUser());
             }
@@ -382,10 +616,7 @@ class NfcDispatcher {
             List<UserHandle> userHandles = getCurrentActiveUserHandles();
             userHandles.remove(UserHandle.of(ActivityManager.getCurrentUser()));
             for (UserHandle uh : userHandles) {
-                activities = packageManager.queryIntentActivitiesAsUser(intent,
-                        ResolveInfoFlags.of(PackageManager.MATCH_DEFAULT_ONLY), uh);
-                activities = activities.stream().filter(activity -> activity.activityInfo.exported)
-                        .collect(Collectors.toList());
+                activities = queryExportedActivities(intent, uh);
                 if (mIsTagAppPrefSupported) {
                     activities = checkPrefList(activities, uh.getIdentifier());
                 }
@@ -414,11 +645,8 @@ class NfcDispatcher {
 
         boolean tryStartActivity(Intent intentToStart) {
             // try current user if there is an Activity to handle this intent
-            List<ResolveInfo> activities = packageManager.queryIntentActivitiesAsUser(
-                    intentToStart, ResolveInfoFlags.of(PackageManager.MATCH_DEFAULT_ONLY),
+            List<ResolveInfo> activities = queryExportedActivities(intentToStart,
                     UserHandle.of(ActivityManager.getCurrentUser()));
-            activities = activities.stream().filter(activity -> activity.activityInfo.exported)
-                    .collect(Collectors.toList());
             if (activities.size() > 0) {
                 if (DBG) Log.d(TAG, "tryStartActivity(Intent) currentUser");
                 rootIntent.putExtra(NfcRootActivity.EXTRA_LAUNCH_INTENT, intentToStart);
@@ -440,10 +668,7 @@ class NfcDispatcher {
             List<UserHandle> userHandles = getCurrentActiveUserHandles();
             userHandles.remove(UserHandle.of(ActivityManager.getCurrentUser()));
             for (UserHandle uh : userHandles) {
-                activities = packageManager.queryIntentActivitiesAsUser(intentToStart,
-                        ResolveInfoFlags.of(PackageManager.MATCH_DEFAULT_ONLY), uh);
-                activities = activities.stream().filter(activity -> activity.activityInfo.exported)
-                        .collect(Collectors.toList());
+                activities = queryExportedActivities(intentToStart, uh);
                 if (mIsTagAppPrefSupported) {
                     activities = checkPrefList(activities, uh.getIdentifier());
                 }
@@ -470,18 +695,18 @@ class NfcDispatcher {
         }
 
         List<UserHandle> getCurrentActiveUserHandles() {
-            UserManager um = context.createContextAsUser(
-                    UserHandle.of(ActivityManager.getCurrentUser()), /*flags=*/0)
-                    .getSystemService(UserManager.class);
-            List<UserHandle> luh = um.getEnabledProfiles();
-            List<UserHandle> rluh = new ArrayList<UserHandle>();
-            for (UserHandle uh : luh) {
-                if (um.isQuietModeEnabled(uh)) {
-                    rluh.add(uh);
-                }
+            return userContextCache.getActiveUserHandles();
+        }
+
+        /** Returns the exported activities of this user matching the intent. */
+        List<ResolveInfo> queryExportedActivities(Intent intentToQuery, UserHandle uh) {
+            if (resolutionCache != null) {
+                return resolutionCache.queryExportedActivities(packageManager, intentToQuery, uh);
             }
-            luh.removeAll(rluh);
-            return luh;
+            return packageManager.queryIntentActivitiesAsUser(intentToQuery,
+                    ResolveInfoFlags.of(PackageManager.MATCH_DEFAULT_ONLY), uh).stream()
+                    .filter(activity -> activity.activityInfo.exported)
+                    .collect(Collectors.toList());
         }
 
         private void logMuteApp(int uid) {
@@ -514,31 +739,49 @@ class NfcDispatcher {
      * </ul>
      */
     public int dispatchTag(Tag tag) {
-        PendingIntent overrideIntent;
-        IntentFilter[] overrideFilters;
-        String[][] overrideTechLists;
+        DispatchTraceLog.Trace trace = mDispatchTraces.begin();
+        TagAppPrefs tagAppPrefs =
+                mIsTagAppPrefSupported ? new TagAppPrefs(getTagAppPrefStore()) : null;
+        int result = DISPATCH_FAIL;
+        try {
+            result = dispatchTag(tag, tagAppPrefs, trace);
+            return result;
+        } finally {
+            if (tagAppPrefs != null) {
+                tagAppPrefs.flush();
+            }
+            mDispatchTraces.end(trace, result);
+        }
+    }
+
+    private int dispatchTag(Tag tag, TagAppPrefs tagAppPrefs, DispatchTraceLog.Trace trace) {
+        long stageStart = trace.now();
+        TechCandidates techCandidates = takeTechCandidates(tag);
+        ForegroundDispatchMatcher foregroundDispatch = mForegroundDispatch;
         String[] provisioningMimes;
         boolean provisioningOnly;
         NdefMessage message = null;
         Ndef ndef = Ndef.get(tag);
-        if (mIsTagAppPrefSupported) {
-            mNfcAdapter = NfcAdapter.getDefaultAdapter(mContext.getApplicationContext());
-        }
 
         synchronized (this) {
-            overrideFilters = mOverrideFilters;
-            overrideIntent = mOverrideIntent;
-            overrideTechLists = mOverrideTechLists;
             provisioningOnly = mProvisioningOnly;
             provisioningMimes = mProvisioningMimes;
         }
 
+        trace.record(STAGE_PREPARE, stageStart, OUTCOME_FELL_THROUGH,
+                techCandidates != null ? "speculative tech hit" : null);
+
         boolean screenUnlocked = false;
+        stageStart = trace.now();
         if (!provisioningOnly &&
                 mScreenStateHelper.checkScreenState() == ScreenStateHelper.SCREEN_STATE_ON_LOCKED) {
             screenUnlocked = handleNfcUnlock(tag);
-            if (!screenUnlocked)
+            if (!screenUnlocked) {
+                trace.record(STAGE_UNLOCK, stageStart, OUTCOME_STOPPED,
+                        "locked, not an unlock tag");
                 return DISPATCH_FAIL;
+            }
+            trace.record(STAGE_UNLOCK, stageStart, OUTCOME_MATCHED, "unlocked");
         }
 
         if (ndef != null) {
@@ -552,12 +795,14 @@ class NfcDispatcher {
 
         if (DBG) Log.d(TAG, "dispatch tag: " + tag.toString() + " message: " + message);
 
-        DispatchInfo dispatch = new DispatchInfo(mContext, tag, message);
+        DispatchInfo dispatch = new DispatchInfo(mContext, tag, message, tagAppPrefs,
+                mUserContextCache, mResolutionCache);
 
         resumeAppSwitches();
 
-        if (tryOverrides(dispatch, tag, message, overrideIntent, overrideFilters,
-                overrideTechLists)) {
+        stageStart = trace.now();
+        if (tryOverrides(dispatch, tag, message, foregroundDispatch)) {
+            trace.record(STAGE_OVERRIDES, stageStart, OUTCOME_MATCHED, "foreground dispatch");
             NfcStatsLog.write(
                     NfcStatsLog.NFC_TAG_OCCURRED,
                     NfcStatsLog.NFC_TAG_OCCURRED__TYPE__FOREGROUND_DISPATCH,
@@ -568,12 +813,21 @@ class NfcDispatcher {
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
+        trace.record(STAGE_OVERRIDES, stageStart, OUTCOME_FELL_THROUGH,
+                foregroundDispatch == null ? "no foreground dispatch" : "no foreground match");
+
+        stageStart = trace.now();
         if (tryPeripheralHandover(message, tag)) {
+            trace.record(STAGE_HANDOVER, stageStart, OUTCOME_MATCHED, "peripheral handover");
             if (DBG) Log.i(TAG, "matched BT HANDOVER");
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
+        trace.record(STAGE_HANDOVER, stageStart, OUTCOME_FELL_THROUGH, null);
+
+        stageStart = trace.now();
         if (NfcWifiProtectedSetup.tryNfcWifiSetup(ndef, mContext)) {
+            trace.record(STAGE_WIFI, stageStart, OUTCOME_MATCHED, "WPS token");
             if (DBG) Log.i(TAG, "matched NFC WPS TOKEN");
             NfcStatsLog.write(
                     NfcStatsLog.NFC_TAG_OCCURRED,
@@ -585,7 +839,10 @@ class NfcDispatcher {
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
+        trace.record(STAGE_WIFI, stageStart, OUTCOME_FELL_THROUGH, null);
+
         if (provisioningOnly) {
+            stageStart = trace.now();
             NfcStatsLog.write(
                     NfcStatsLog.NFC_TAG_OCCURRED,
                     NfcStatsLog.NFC_TAG_OCCURRED__TYPE__PROVISION,
@@ -595,6 +852,7 @@ class NfcDispatcher {
                     "");
             if (message == null) {
                 // We only allow NDEF-message dispatch in provisioning mode
+                trace.record(STAGE_PROVISIONING, stageStart, OUTCOME_STOPPED, "no NDEF");
                 return DISPATCH_FAIL;
             }
             // Restrict to mime-types in allowlist.
@@ -602,29 +860,44 @@ class NfcDispatcher {
             if (provisioningMimes == null ||
                     !(Arrays.asList(provisioningMimes).contains(ndefMimeType))) {
                 Log.e(TAG, "Dropping NFC intent in provisioning mode.");
+                trace.record(STAGE_PROVISIONING, stageStart, OUTCOME_STOPPED,
+                        "MIME type not allowed");
                 return DISPATCH_FAIL;
             }
+            trace.record(STAGE_PROVISIONING, stageStart, OUTCOME_FELL_THROUGH,
+                    "MIME type allowed");
         }
 
+        stageStart = trace.now();
         if (tryNdef(dispatch, message)) {
+            trace.record(STAGE_NDEF, stageStart, OUTCOME_MATCHED, null);
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
         if (screenUnlocked) {
             // We only allow NDEF-based mimeType matching in case of an unlock
+            trace.record(STAGE_NDEF, stageStart, OUTCOME_STOPPED, "NDEF only after unlock");
             return DISPATCH_UNLOCK;
         }
+        trace.record(STAGE_NDEF, stageStart, OUTCOME_FELL_THROUGH,
+                message == null ? "no NDEF" : "no NDEF match");
 
         // Only allow NDEF-based mimeType matching for unlock tags
-        if (tryTech(dispatch, tag)) {
+        stageStart = trace.now();
+        if (tryTech(dispatch, tag, techCandidates)) {
+            trace.record(STAGE_TECH, stageStart, OUTCOME_MATCHED, null);
             return DISPATCH_SUCCESS;
         }
+        trace.record(STAGE_TECH, stageStart, OUTCOME_FELL_THROUGH, null);
 
+        stageStart = trace.now();
         dispatch.setTagIntent();
         if (dispatch.tryStartActivity()) {
+            trace.record(STAGE_TAG, stageStart, OUTCOME_MATCHED, null);
             if (DBG) Log.i(TAG, "matched TAG");
             return DISPATCH_SUCCESS;
         }
+        trace.record(STAGE_TAG, stageStart, OUTCOME_FELL_THROUGH, "no match");
 
         if (DBG) Log.i(TAG, "no match");
         NfcStatsLog.write(NfcStatsLog.NFC_TAG_OCCURRED,
@@ -703,9 +976,9 @@ class NfcDispatcher {
         return message;
     }
 
-    boolean tryOverrides(DispatchInfo dispatch, Tag tag, NdefMessage message, PendingIntent overrideIntent,
-            IntentFilter[] overrideFilters, String[][] overrideTechLists) {
-        if (overrideIntent == null) {
+    boolean tryOverrides(DispatchInfo dispatch, Tag tag, NdefMessage message,
+            ForegroundDispatchMatcher foregroundDispatch) {
+        if (foregroundDispatch == null) {
             return false;
         }
         Intent intent;
@@ -714,9 +987,9 @@ class NfcDispatcher {
         if (message != null) {
             intent = dispatch.setNdefIntent();
             if (intent != null &&
-                    isFilterMatch(intent, overrideFilters, overrideTechLists != null)) {
+                    foregroundDispatch.isFilterMatch(mContentResolver, intent, TAG)) {
                 try {
-                    overrideIntent.send(mContext, Activity.RESULT_OK, intent);
+                    foregroundDispatch.intent.send(mContext, Activity.RESULT_OK, intent);
                     if (DBG) Log.i(TAG, "matched NDEF override");
                     return true;
                 } catch (CanceledException e) {
@@ -727,9 +1000,11 @@ class NfcDispatcher {
 
         // TECH
         intent = dispatch.setTechIntent();
-        if (isTechMatch(tag, overrideTechLists)) {
+        String[] tagTechs = tag.getTechList();
+        Arrays.sort(tagTechs);
+        if (foregroundDispatch.isTechMatch(TechListIndex.maskOf(tagTechs), tagTechs)) {
             try {
-                overrideIntent.send(mContext, Activity.RESULT_OK, intent);
+                foregroundDispatch.intent.send(mContext, Activity.RESULT_OK, intent);
                 if (DBG) Log.i(TAG, "matched TECH override");
                 return true;
             } catch (CanceledException e) {
@@ -739,9 +1014,9 @@ class NfcDispatcher {
 
         // TAG
         intent = dispatch.setTagIntent();
-        if (isFilterMatch(intent, overrideFilters, overrideTechLists != null)) {
+        if (foregroundDispatch.isFilterMatch(mContentResolver, intent, TAG)) {
             try {
-                overrideIntent.send(mContext, Activity.RESULT_OK, intent);
+                foregroundDispatch.intent.send(mContext, Activity.RESULT_OK, intent);
                 if (DBG) Log.i(TAG, "matched TAG override");
                 return true;
             } catch (CanceledException e) {
@@ -751,34 +1026,6 @@ class NfcDispatcher {
         return false;
     }
 
-    boolean isFilterMatch(Intent intent, IntentFilter[] filters, boolean hasTechFilter) {
-        if (filters != null) {
-            for (IntentFilter filter : filters) {
-                if (filter.match(mContentResolver, intent, false, TAG) >= 0) {
-                    return true;
-                }
-            }
-        } else if (!hasTechFilter) {
-            return true;  // always match if both filters and techlists are null
-        }
-        return false;
-    }
-
-    boolean isTechMatch(Tag tag, String[][] techLists) {
-        if (techLists == null) {
-            return false;
-        }
-
-        String[] tagTechs = tag.getTechList();
-        Arrays.sort(tagTechs);
-        for (String[] filterTechs : techLists) {
-            if (filterMatch(tagTechs, filterTechs)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     boolean tryNdef(DispatchInfo dispatch, NdefMessage message) {
         if (message == null) {
             return false;
@@ -805,8 +1052,7 @@ class NfcDispatcher {
             PackageManager pm;
             for (UserHandle uh : luh) {
                 try {
-                    pm = mContext.createPackageContextAsUser("android", 0,
-                            uh).getPackageManager();
+                    pm = mUserContextCache.getPackageManager(uh);
                 } catch (NameNotFoundException e) {
                     Log.e(TAG, "Could not create user package context");
                     return false;
@@ -849,8 +1095,7 @@ class NfcDispatcher {
 
         for (UserHandle uh : luh) {
             try {
-                PackageManager pm = mContext.createPackageContextAsUser("android", 0,
-                        uh).getPackageManager();
+                PackageManager pm = mUserContextCache.getPackageManager(uh);
                 ResolveInfo ri = pm.resolveActivity(intent, 0);
 
                 if (ri != null && ri.activityInfo != null && ri.activityInfo.exported
@@ -877,7 +1122,7 @@ class NfcDispatcher {
         return aarPackages;
     }
 
-    boolean tryTech(DispatchInfo dispatch, Tag tag) {
+    boolean tryTech(DispatchInfo dispatch, Tag tag, TechCandidates techCandidates) {
         dispatch.setTechIntent();
 
         String[] tagTechs = tag.getTechList();
@@ -885,44 +1130,33 @@ class NfcDispatcher {
 
         // Standard tech dispatch path
         ArrayList<ResolveInfo> matches = new ArrayList<ResolveInfo>();
-        List<ComponentInfo> registered = mTechListFilters.getComponents();
+        HashSet<ResolveInfo> matched = new HashSet<ResolveInfo>();
+        TechListIndex index = mTechListFilters.getTechListIndex();
 
-        PackageManager pm;
         List<UserHandle> luh = dispatch.getCurrentActiveUserHandles();
 
         for (UserHandle uh : luh) {
-            try {
-                pm = mContext.createPackageContextAsUser("android", 0,
-                        uh).getPackageManager();
-            } catch (NameNotFoundException e) {
-                Log.e(TAG, "Could not create user package context");
-                return false;
+            List<ComponentInfo> candidates =
+                    techCandidates != null ? techCandidates.getEnabled(uh) : null;
+            // Speculative candidates were resolved for a superset of the tag techs.
+            boolean exact = candidates == null;
+            if (exact) {
+                try {
+                    candidates = resolveTechCandidates(tagTechs, index, uh);
+                } catch (NameNotFoundException e) {
+                    Log.e(TAG, "Could not create user package context");
+                    return false;
+                }
             }
-            // Check each registered activity to see if it matches
-            for (ComponentInfo info : registered) {
-                // Don't allow wild card matching
-                if (filterMatch(tagTechs, info.techs)
-                        && isComponentEnabled(pm, info.resolveInfo)) {
+            // Check each candidate activity to see if it matches
+            for (ComponentInfo info : candidates) {
+                if (exact || filterMatch(tagTechs, info.techs)) {
                     // Add the activity as a match if it's not already in the list
-                    // Check if exported flag is not explicitly set to false to prevent
-                    // SecurityExceptions.
-                    if (!matches.contains(info.resolveInfo)
-                            && info.resolveInfo.activityInfo.exported) {
-                        if (!mIsTagAppPrefSupported) {
+                    if (!matched.contains(info.resolveInfo)) {
+                        if (dispatch.tagAppPrefs == null || dispatch.tagAppPrefs.isAllowed(
+                                uh.getIdentifier(), info.resolveInfo.activityInfo.packageName)) {
                             matches.add(info.resolveInfo);
-                        } else {
-                            String pkgName = info.resolveInfo.activityInfo.packageName;
-                            int userId = uh.getIdentifier();
-                            Map<String, Boolean> preflist =
-                                    mNfcAdapter.getTagIntentAppPreferenceForUser(userId);
-                            if (preflist.getOrDefault(pkgName, true)) {
-                                matches.add(info.resolveInfo);
-                                if (!preflist.containsKey(pkgName)) {
-                                    // Default sets allow to the preference list
-                                    mNfcAdapter.setTagIntentAppPreferenceForUser(userId,
-                                            pkgName, true);
-                                }
-                            }
+                            matched.add(info.resolveInfo);
                         }
                     }
                 }
@@ -1127,11 +1361,29 @@ class NfcDispatcher {
     }
 
     void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        ForegroundDispatchMatcher foregroundDispatch = mForegroundDispatch;
+        if (foregroundDispatch != null) {
+            pw.println("mOverrideIntent=" + foregroundDispatch.intent);
+            pw.println("mOverrideFilters=" + Arrays.toString(foregroundDispatch.filters));
+            pw.println("mOverrideTechLists="
+                    + Arrays.deepToString(foregroundDispatch.techLists));
+        } else {
+            pw.println("mOverrideIntent=null");
+        }
         synchronized (this) {
-            pw.println("mOverrideIntent=" + mOverrideIntent);
-            pw.println("mOverrideFilters=" + Arrays.toString(mOverrideFilters));
-            pw.println("mOverrideTechLists=" + Arrays.deepToString(mOverrideTechLists));
+            pw.println("mSpeculativeTechHits=" + mSpeculativeTechHits
+                    + " mSpeculativeTechMisses=" + mSpeculativeTechMisses
+                    + " mUnindexedTechLookups=" + mUnindexedTechLookups);
         }
+        mTechListFilters.dump(pw);
+        mUserContextCache.dump(pw);
+        mResolutionCache.dump(pw);
+        mDispatchTraces.dump(pw);
+    }
+
+    /** Prints the stages of the last dispatches. */
+    void dumpDispatchTraces(PrintWriter pw) {
+        mDispatchTraces.dump(pw);
     }
 
     void dumpDebug(ProtoOutputStream proto) {
@@ -1140,21 +1392,23 @@ class NfcDispatcher {
 
         synchronized (this) {
             proto.write(NfcDispatcherProto.PROVISIONING_ONLY, mProvisioningOnly);
-            if (mOverrideTechLists != null) {
-                StringJoiner techListsJoiner = new StringJoiner(System.lineSeparator());
-                for (String[] list : mOverrideTechLists) {
-                    techListsJoiner.add(Arrays.toString(list));
-                }
-                proto.write(NfcDispatcherProto.OVERRIDE_TECH_LISTS, techListsJoiner.toString());
-            }
-            if (mOverrideIntent != null) {
-                Utils.dumpDebugPendingIntent(
-                        mOverrideIntent, proto, NfcDispatcherProto.OVERRIDE_INTENT);
+        }
+        ForegroundDispatchMatcher foregroundDispatch = mForegroundDispatch;
+        if (foregroundDispatch == null) {
+            return;
+        }
+        if (foregroundDispatch.techLists != null) {
+            StringJoiner techListsJoiner = new StringJoiner(System.lineSeparator());
+            for (String[] list : foregroundDispatch.techLists) {
+                techListsJoiner.add(Arrays.toString(list));
             }
-            if (mOverrideFilters != null) {
-                for (IntentFilter filter : mOverrideFilters) {
-                    Utils.dumpDebugIntentFilter(filter, proto, NfcDispatcherProto.OVERRIDE_FILTERS);
-                }
+            proto.write(NfcDispatcherProto.OVERRIDE_TECH_LISTS, techListsJoiner.toString());
+        }
+        Utils.dumpDebugPendingIntent(
+                foregroundDispatch.intent, proto, NfcDispatcherProto.OVERRIDE_INTENT);
+        if (foregroundDispatch.filters != null) {
+            for (IntentFilter filter : foregroundDispatch.filters) {
+                Utils.dumpDebugIntentFilter(filter, proto, NfcDispatcherProto.OVERRIDE_FILTERS);
             }
         }
     }
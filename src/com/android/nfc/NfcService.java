@@ -131,6 +131,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -139,6 +140,7 @@ import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.Executors;
@@ -204,6 +206,8 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
     static final int MSG_CLEAR_ROUTING_TABLE = 21;
     static final int MSG_UPDATE_ISODEP_PROTOCOL_ROUTE = 22;
     static final int MSG_UPDATE_TECHNOLOGY_AB_ROUTE = 23;
+    static final int MSG_SETTLE_SCREEN_STATE = 24;
+    static final int MSG_PUBLISH_RF_FIELD = 25;
 
     static final String MSG_ROUTE_AID_PARAM_TAG = "power";
 
@@ -319,6 +323,13 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
 
     // fields below are used in multiple threads and protected by synchronized(this)
     final HashMap<Integer, Object> mObjectMap = new HashMap<Integer, Object>();
+    // Last NDEF message read from each tag handle, dropped on any operation that may change it
+    final HashMap<Integer, NdefMessage> mNdefReadCache = new HashMap<Integer, NdefMessage>();
+    // Bumped on every invalidation of a handle, so reads that raced with it are not cached
+    final HashMap<Integer, Integer> mNdefReadGenerations = new HashMap<Integer, Integer>();
+    int mNdefReadGeneration;
+    int mNdefReadCacheHits;
+    int mNdefReadCacheMisses;
     int mScreenState;
     boolean mInProvisionMode; // whether we're in setup wizard and enabled NFC provisioning
     boolean mIsSecureNfcEnabled;
@@ -336,14 +347,22 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
     private static int mDispatchFailedCount;
     private static int mDispatchFailedMax;
 
-    static final int INVALID_NATIVE_HANDLE = -1;
-    byte mDebounceTagUid[];
-    int mDebounceTagDebounceMs;
-    int mDebounceTagNativeHandle = INVALID_NATIVE_HANDLE;
-    ITagRemovedCallback mDebounceTagRemovedCallback;
+    // Tags ignored by apps, keyed by UID and NDEF message
+    final TagDebounceCache mDebounceCache = new TagDebounceCache();
 
-    // Only accessed on one thread so doesn't need locking
-    NdefMessage mLastReadNdefMessage;
+    // Deadlines for controller operations that may hang
+    final NfcWatchdog mWatchdog = new NfcWatchdog(this::onWatchdogExpired);
+    PackageChangeMonitor mPackageChangeMonitor;
+    final TransactionEventCache mTransactionEventCache = new TransactionEventCache();
+    final TransactionEventDispatcher mTransactionEventDispatcher =
+            new TransactionEventDispatcher();
+    final RfFieldEventPublisher mRfFieldEventPublisher =
+            new RfFieldEventPublisher(this::sendRfFieldEvent);
+
+    // Runs the parts of the enable sequence that do not need the controller
+    private final ExecutorService mEnablePhaseExecutor = Executors.newCachedThreadPool();
+    // Duration in ms of each phase of the last boot/enable, synchronized on itself
+    private final LinkedHashMap<String, Long> mEnablePhaseDurations = new LinkedHashMap<>();
 
     // mState is protected by this, however it is only modified in onCreate()
     // and the default AsyncTask thread so it is read unprotected from that
@@ -395,6 +414,11 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
     private int mPollDelayCount;
     private boolean mPollDelayed;
 
+    // screen state coalescing, only accessed on the main thread
+    private final int mScreenStateSettleTimeMs;
+    private int mScreenStateUpdatesApplied;
+    private int mScreenStateUpdatesSkipped;
+
     boolean mNotifyDispatchFailed;
     boolean mNotifyReadFailed;
 
@@ -494,6 +518,7 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
 
     @Override
     public void onEeUpdated() {
+        mTransactionEventCache.invalidate("onEeUpdated");
         new ApplyRoutingTask().execute();
     }
 
@@ -659,6 +684,29 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         mDeviceConfigFacade = new DeviceConfigFacade(mContext, mHandler);
 
         mNfcDispatcher = new NfcDispatcher(mContext, mHandoverDataParser, mInProvisionMode);
+        // Tags are only dispatched once discovery is enabled, after the controller is up
+        runEnablePhase("techListFilters", mNfcDispatcher::initializeTechListFilters);
+        mNfcDispatcher.setTagAppPrefStore(new TagAppPrefs.Store() {
+            @Override
+            public Map<String, Boolean> getTagAppPrefs(int userId) {
+                synchronized (NfcService.this) {
+                    return new HashMap<>(mTagAppPrefList.getOrDefault(userId, new HashMap<>()));
+                }
+            }
+
+            @Override
+            public void addAllowedTagApps(int userId, Set<String> packages) {
+                if (DBG) Log.i(TAG, "UserId:" + userId + " allow new pkgs:" + packages);
+                synchronized (NfcService.this) {
+                    HashMap<String, Boolean> map = mTagAppPrefList.computeIfAbsent(userId,
+                            key -> new HashMap<String, Boolean>());
+                    for (String pkg : packages) {
+                        map.putIfAbsent(pkg, true);
+                    }
+                }
+                storeTagAppPrefList();
+            }
+        });
 
         mPrefs = mContext.getSharedPreferences(PREF, Context.MODE_PRIVATE);
         mPrefsEditor = mPrefs.edit();
@@ -703,6 +751,7 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         filter.addAction(Intent.ACTION_USER_PRESENT);
         filter.addAction(Intent.ACTION_USER_SWITCHED);
         filter.addAction(Intent.ACTION_USER_ADDED);
+        filter.addAction(Intent.ACTION_USER_REMOVED);
         mContext.registerReceiverForAllUsers(mReceiver, filter, null, null);
 
         // Listen for work profile adds or removes.
@@ -711,19 +760,17 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         managedProfileFilter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
         managedProfileFilter.addAction(Intent.ACTION_MANAGED_PROFILE_AVAILABLE);
         managedProfileFilter.addAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE);
+        // Quiet mode changes of other profiles, e.g. private space, for the active users.
+        managedProfileFilter.addAction(Intent.ACTION_PROFILE_AVAILABLE);
+        managedProfileFilter.addAction(Intent.ACTION_PROFILE_UNAVAILABLE);
         mContext.registerReceiverForAllUsers(mManagedProfileReceiver,
                 managedProfileFilter, null, null);
 
-        IntentFilter ownerFilter = new IntentFilter(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
-        ownerFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
-        ownerFilter.addAction(Intent.ACTION_SHUTDOWN);
+        IntentFilter ownerFilter = new IntentFilter(Intent.ACTION_SHUTDOWN);
         mContext.registerReceiverForAllUsers(mOwnerReceiver, ownerFilter, null, null);
 
-        ownerFilter = new IntentFilter();
-        ownerFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
-        ownerFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
-        ownerFilter.addDataScheme("package");
-        mContext.registerReceiverForAllUsers(mOwnerReceiver, ownerFilter, null, null);
+        mPackageChangeMonitor = PackageChangeMonitor.getInstance(mContext);
+        mPackageChangeMonitor.addListener(mPackageListener);
 
         addKeyguardLockedStateListener();
 
@@ -746,6 +793,8 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 pm.hasSystemFeature(PackageManager.FEATURE_NFC_HOST_CARD_EMULATION_NFCF);
         if (mIsHceCapable) {
             mCardEmulationManager = new CardEmulationManager(mContext);
+            // Parse the services while the controller is being initialized
+            runEnablePhase("serviceCaches", mCardEmulationManager::initializeServiceCaches);
         }
         mForegroundUtils = ForegroundUtils.getInstance(mActivityManager);
 
@@ -781,6 +830,9 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         mPollDelayTimeLong =
                 mContext.getResources().getInteger(R.integer.unknown_tag_polling_delay_long);
 
+        mScreenStateSettleTimeMs =
+                mContext.getResources().getInteger(R.integer.screen_state_settle_time_ms);
+
         mNotifyDispatchFailed = mContext.getResources().getBoolean(R.bool.enable_notify_dispatch_failed);
         mNotifyReadFailed = mContext.getResources().getBoolean(R.bool.enable_notify_read_failed);
 
@@ -971,6 +1023,7 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             }
             mSEService = ISecureElementService.Stub.asInterface(
                     manager.getSeManagerServiceRegisterer().get());
+            mTransactionEventCache.invalidate("SE service connected");
             if (mSEService != null) {
                 IBinder seServiceBinder = mSEService.asBinder();
                 seServiceBinder.linkToDeath(mSeServiceDeathRecipient, 0);
@@ -980,6 +1033,41 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         }
     }
 
+    private Future<?> runEnablePhase(String phase, Runnable task) {
+        return mEnablePhaseExecutor.submit(() -> {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Not every phase is waited for, so failures are logged here
+                Log.e(TAG, "Enable phase " + phase + " failed", e);
+                throw e;
+            }
+            recordEnablePhase(phase, start);
+        });
+    }
+
+    private void waitForEnablePhase(Future<?> phase) {
+        if (phase == null) {
+            return;
+        }
+        try {
+            phase.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already logged by runEnablePhase()
+        }
+    }
+
+    private void recordEnablePhase(String phase, long startMs) {
+        long durationMs = SystemClock.elapsedRealtime() - startMs;
+        if (DBG) Log.d(TAG, "Enable phase " + phase + " took " + durationMs + " ms");
+        synchronized (mEnablePhaseDurations) {
+            mEnablePhaseDurations.put(phase, durationMs);
+        }
+    }
+
     void initSoundPool() {
         synchronized (this) {
             if (mSoundPool == null) {
@@ -1014,6 +1102,8 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         List<UserHandle> luh = um.getEnabledProfiles();
 
         synchronized (this) {
+            // Access rules and receivers depend on the installed packages.
+            mTransactionEventCache.invalidate("package cache update");
             mNfcEventInstalledPackages.clear();
             mNfcPreferredPaymentChangedInstalledPackages.clear();
             for (UserHandle uh : luh) {
@@ -1114,6 +1204,14 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                     break;
                 case TASK_BOOT:
                     boolean initialized;
+                    Future<?> tagAppPrefsReady = null;
+                    if (mIsTagAppPrefSupported) {
+                        tagAppPrefsReady = runEnablePhase("tagAppPrefs", () -> {
+                            synchronized (NfcService.this) {
+                                initTagAppPrefList();
+                            }
+                        });
+                    }
                     if (mPrefs.getBoolean(PREF_FIRST_BOOT, true)) {
                         Log.i(TAG, "First Boot");
                         mPrefsEditor.putBoolean(PREF_FIRST_BOOT, false);
@@ -1127,7 +1225,9 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                         initialized = enableInternal();
                     } else {
                         Log.d(TAG, "NFC is off.  Checking firmware version");
+                        long checkStart = SystemClock.elapsedRealtime();
                         initialized = mDeviceHost.checkFirmware();
+                        recordEnablePhase("checkFirmware", checkStart);
                     }
                     if (initialized) {
                         // TODO(279846422) The system property will be temporary
@@ -1135,11 +1235,7 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                         // Remove this code when a replacement API is added.
                         NfcProperties.initialized(true);
                     }
-                    if (mIsTagAppPrefSupported) {
-                        synchronized (NfcService.this) {
-                            initTagAppPrefList();
-                        }
-                    }
+                    waitForEnablePhase(tagAppPrefsReady);
                     break;
                 case TASK_ENABLE_ALWAYS_ON:
                     enableAlwaysOnInternal();
@@ -1167,9 +1263,12 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                     mIsSecureNfcEnabled ? NfcStatsLog.NFC_STATE_CHANGED__STATE__ON_LOCKED :
                     NfcStatsLog.NFC_STATE_CHANGED__STATE__ON);
             updateState(NfcAdapter.STATE_TURNING_ON);
+            long enableStart = SystemClock.elapsedRealtime();
+
+            // Sounds do not need the controller, load them during its initialization
+            Future<?> soundPoolReady = runEnablePhase("soundPool", () -> initSoundPool());
 
-            WatchDogThread watchDog = new WatchDogThread("enableInternal", INIT_WATCHDOG_MS);
-            watchDog.start();
+            NfcWatchdog.Handle watchDog = mWatchdog.start("enableInternal", INIT_WATCHDOG_MS);
             try {
                 mRoutingWakeLock.acquire();
                 try {
@@ -1195,10 +1294,14 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             } finally {
                 watchDog.cancel();
             }
+            recordEnablePhase("nfccInit", enableStart);
 
             if (mIsHceCapable) {
-                // Generate the initial card emulation routing table
+                long routingStart = SystemClock.elapsedRealtime();
+                // Generate the initial card emulation routing table, once the services
+                // parsed during controller init are ready
                 mCardEmulationManager.onNfcEnabled();
+                recordEnablePhase("cardEmulationRouting", routingStart);
             }
 
             mSkipNdefRead = NfcProperties.skipNdefRead().orElse(false);
@@ -1209,14 +1312,17 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
 
             synchronized (NfcService.this) {
                 mObjectMap.clear();
+                mNdefReadCache.clear();
+                mNdefReadGenerations.clear();
 
                 updateState(NfcAdapter.STATE_ON);
 
                 onPreferredPaymentChanged(NfcAdapter.PREFERRED_PAYMENT_LOADED);
             }
 
-            initSoundPool();
+            waitForEnablePhase(soundPoolReady);
 
+            long discoveryStart = SystemClock.elapsedRealtime();
             mScreenState = mScreenStateHelper.checkScreenState();
             int screen_state_mask = (mNfcUnlockManager.isLockscreenPollingEnabled()) ?
                              (ScreenStateHelper.SCREEN_POLLING_TAG_MASK | mScreenState) : mScreenState;
@@ -1235,6 +1341,8 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 /* Start polling loop */
                 applyRouting(true);
             }
+            recordEnablePhase("discovery", discoveryStart);
+            recordEnablePhase("enableTotal", enableStart);
 
             if (mIsRecovering) {
                  // Intents for all users
@@ -1243,6 +1351,7 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                  filter.addAction(Intent.ACTION_USER_PRESENT);
                  filter.addAction(Intent.ACTION_USER_SWITCHED);
                  filter.addAction(Intent.ACTION_USER_ADDED);
+                 filter.addAction(Intent.ACTION_USER_REMOVED);
                  mContext.registerReceiverForAllUsers(mReceiver, filter, null, null);
                  mIsRecovering = false;
             }
@@ -1269,11 +1378,11 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             updateState(NfcAdapter.STATE_TURNING_OFF);
 
             /* Sometimes mDeviceHost.deinitialize() hangs, use a watch-dog.
-             * Implemented with a new thread (instead of a Handler or AsyncTask),
+             * The watchdog runs on its own thread (instead of a Handler or AsyncTask),
              * because the UI Thread and AsyncTask thread-pools can also get hung
              * when the NFC controller stops responding */
-            WatchDogThread watchDog = new WatchDogThread("disableInternal", ROUTING_WATCHDOG_MS);
-            watchDog.start();
+            NfcWatchdog.Handle watchDog =
+                    mWatchdog.start("disableInternal", ROUTING_WATCHDOG_MS);
 
             if (mIsWlcEnabled) {
                 if (mNfcCharging.NfcChargingOnGoing == true) {
@@ -1718,31 +1827,40 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 throws RemoteException {
             NfcPermissions.enforceUserPermissions(mContext);
 
-            if (debounceMs == 0 && mDebounceTagNativeHandle != INVALID_NATIVE_HANDLE
-                && nativeHandle == mDebounceTagNativeHandle) {
-              // Remove any previous messages and immediately debounce.
-              mHandler.removeMessages(MSG_TAG_DEBOUNCE);
-              mHandler.sendEmptyMessage(MSG_TAG_DEBOUNCE);
-              return true;
+            if (debounceMs == 0) {
+                TagDebounceCache.Entry entry = mDebounceCache.findByHandle(nativeHandle);
+                if (entry != null) {
+                    // Remove any previous messages and immediately debounce.
+                    mHandler.removeMessages(MSG_TAG_DEBOUNCE, entry);
+                    mHandler.sendMessage(mHandler.obtainMessage(MSG_TAG_DEBOUNCE, entry));
+                    return true;
+                }
             }
 
             TagEndpoint tag = (TagEndpoint) findAndRemoveObject(nativeHandle);
             if (tag != null) {
-                // Store UID and params
-                int uidLength = tag.getUid().length;
-                synchronized (NfcService.this) {
-                    mDebounceTagDebounceMs = debounceMs;
-                    mDebounceTagNativeHandle = nativeHandle;
-                    mDebounceTagUid = new byte[uidLength];
-                    mDebounceTagRemovedCallback = callback;
-                    System.arraycopy(tag.getUid(), 0, mDebounceTagUid, 0, uidLength);
+                // Store UID, NDEF message and params
+                TagDebounceCache.Entry entry = new TagDebounceCache.Entry(
+                        tag.getUid().clone(), nativeHandle, debounceMs,
+                        getCachedNdefMessage(tag), callback);
+                List<TagDebounceCache.Entry> dropped = mDebounceCache.put(entry);
+                for (int i = 0; i < dropped.size(); i++) {
+                    TagDebounceCache.Entry droppedEntry = dropped.get(i);
+                    mHandler.removeMessages(MSG_TAG_DEBOUNCE, droppedEntry);
+                    if (Arrays.equals(droppedEntry.uid, entry.uid)) {
+                        // Same tag ignored again, the new callback takes over.
+                        continue;
+                    }
+                    // Evicted to make room, report it as removed.
+                    mHandler.sendMessage(mHandler.obtainMessage(MSG_TAG_DEBOUNCE, droppedEntry));
                 }
 
                 // Disconnect from this tag; this should resume the normal
                 // polling loop (and enter listen mode for a while), before
                 // we pick up any tags again.
                 tag.disconnect();
-                mHandler.sendEmptyMessageDelayed(MSG_TAG_DEBOUNCE, debounceMs);
+                mHandler.sendMessageDelayed(
+                        mHandler.obtainMessage(MSG_TAG_DEBOUNCE, entry), debounceMs);
                 return true;
             } else {
                 return false;
@@ -2335,6 +2453,7 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             synchronized (NfcService.this) {
                 Log.i(TAG, "SE Service died");
                 mSEService = null;
+                mTransactionEventCache.invalidate("SE service died");
             }
         }
     }
@@ -2417,7 +2536,10 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             /* find the tag in the hmap */
             tag = (TagEndpoint) findObject(nativeHandle);
             if (tag != null) {
-                if (tag.reconnect()) {
+                invalidateNdefReadCache(nativeHandle);
+                boolean reconnected = tag.reconnect();
+                invalidateNdefReadCache(nativeHandle);
+                if (reconnected) {
                     return ErrorCodes.SUCCESS;
                 } else {
                     return ErrorCodes.ERROR_DISCONNECT;
@@ -2517,8 +2639,12 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 if (data.length > getMaxTransceiveLength(tag.getConnectedTechnology())) {
                     return new TransceiveResult(TransceiveResult.RESULT_EXCEEDED_LENGTH, null);
                 }
+                // Raw commands may change the NDEF contents behind our back
+                invalidateNdefReadCache(nativeHandle);
                 int[] targetLost = new int[1];
                 response = tag.transceive(data, raw, targetLost);
+                // Drops any read that completed while the command was in flight
+                invalidateNdefReadCache(nativeHandle);
                 int result;
                 if (response != null) {
                     result = TransceiveResult.RESULT_SUCCESS;
@@ -2550,6 +2676,13 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             /* find the tag in the hmap */
             tag = (TagEndpoint) findObject(nativeHandle);
             if (tag != null) {
+                if (tag.isPresent()) {
+                    NdefMessage cached = getCachedNdefRead(nativeHandle);
+                    if (cached != null) {
+                        return cached;
+                    }
+                }
+                int generation = getNdefReadGeneration(nativeHandle);
                 byte[] buf = tag.readNdef();
                 if (buf == null) {
                     return null;
@@ -2557,7 +2690,9 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
 
                 /* Create an NdefMessage */
                 try {
-                    return new NdefMessage(buf);
+                    NdefMessage msg = new NdefMessage(buf);
+                    putNdefReadCache(nativeHandle, msg, generation);
+                    return msg;
                 } catch (FormatException e) {
                     return null;
                 }
@@ -2588,7 +2723,11 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
 
             if (msg == null) return ErrorCodes.ERROR_INVALID_PARAM;
 
-            if (tag.writeNdef(msg.toByteArray())) {
+            invalidateNdefReadCache(nativeHandle);
+            boolean written = tag.writeNdef(msg.toByteArray());
+            // Drops any read that completed while the tag was being changed
+            invalidateNdefReadCache(nativeHandle);
+            if (written) {
                 return ErrorCodes.SUCCESS;
             } else {
                 return ErrorCodes.ERROR_IO;
@@ -2622,7 +2761,11 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 return ErrorCodes.ERROR_IO;
             }
 
-            if (tag.makeReadOnly()) {
+            invalidateNdefReadCache(nativeHandle);
+            boolean readOnly = tag.makeReadOnly();
+            // Drops any read that completed while the tag was being changed
+            invalidateNdefReadCache(nativeHandle);
+            if (readOnly) {
                 return ErrorCodes.SUCCESS;
             } else {
                 return ErrorCodes.ERROR_IO;
@@ -2650,7 +2793,11 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 return ErrorCodes.ERROR_IO;
             }
 
-            if (tag.formatNdef(key)) {
+            invalidateNdefReadCache(nativeHandle);
+            boolean formatted = tag.formatNdef(key);
+            // Drops any read that completed while the tag was being changed
+            invalidateNdefReadCache(nativeHandle);
+            if (formatted) {
                 return ErrorCodes.SUCCESS;
             } else {
                 return ErrorCodes.ERROR_IO;
@@ -2686,6 +2833,7 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 tag.removeTechnology(TagTechnology.NDEF);
                 tag.removeTechnology(TagTechnology.NDEF_FORMATABLE);
                 tag.findAndReadNdef();
+                seedNdefReadCache(tag);
                 // Build a new Tag object to return
                 try {
                     /* Avoid setting mCookieUpToDate to negative values */
@@ -2822,47 +2970,16 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         }
     }
 
-    class WatchDogThread extends Thread {
-        final Object mCancelWaiter = new Object();
-        final int mTimeout;
-        boolean mCanceled = false;
-
-        public WatchDogThread(String threadName, int timeout) {
-            super(threadName);
-            mTimeout = timeout;
-        }
-
-        @Override
-        public void run() {
-            try {
-                synchronized (mCancelWaiter) {
-                    mCancelWaiter.wait(mTimeout);
-                    if (mCanceled) {
-                        return;
-                    }
-                }
-            } catch (InterruptedException e) {
-                // Should not happen; fall-through to abort.
-                Log.w(TAG, "Watchdog thread interruped.");
-                interrupt();
-            }
-            if(mRoutingWakeLock.isHeld()){
-                Log.e(TAG, "Watchdog triggered, release lock before aborting.");
-                mRoutingWakeLock.release();
-            }
-            Log.e(TAG, "Watchdog triggered, aborting.");
-            NfcStatsLog.write(NfcStatsLog.NFC_STATE_CHANGED,
-                    NfcStatsLog.NFC_STATE_CHANGED__STATE__CRASH_RESTART);
-            storeNativeCrashLogs();
-            mDeviceHost.doAbort(getName());
-        }
-
-        public synchronized void cancel() {
-            synchronized (mCancelWaiter) {
-                mCanceled = true;
-                mCancelWaiter.notify();
-            }
+    private void onWatchdogExpired(String operation) {
+        if(mRoutingWakeLock.isHeld()){
+            Log.e(TAG, "Watchdog triggered, release lock before aborting.");
+            mRoutingWakeLock.release();
         }
+        Log.e(TAG, "Watchdog triggered for " + operation + ", aborting.");
+        NfcStatsLog.write(NfcStatsLog.NFC_STATE_CHANGED,
+                NfcStatsLog.NFC_STATE_CHANGED__STATE__CRASH_RESTART);
+        storeNativeCrashLogs();
+        mDeviceHost.doAbort(operation);
     }
 
     static byte[] hexStringToBytes(String s) {
@@ -2946,7 +3063,6 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             if (!isNfcEnabledOrShuttingDown()) {
                 return;
             }
-            WatchDogThread watchDog = new WatchDogThread("applyRouting", ROUTING_WATCHDOG_MS);
             if (mInProvisionMode) {
                 mInProvisionMode = Settings.Global.getInt(mContentResolver,
                         Settings.Global.DEVICE_PROVISIONED, 0) == 0;
@@ -2965,8 +3081,8 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 return;
             }
 
+            NfcWatchdog.Handle watchDog = mWatchdog.start("applyRouting", ROUTING_WATCHDOG_MS);
             try {
-                watchDog.start();
                 // Compute new polling parameters
                 NfcDiscoveryParameters newParams = computeDiscoveryParameters(mScreenState);
                 if (force || !newParams.equals(mCurrentDiscoveryParameters)) {
@@ -3069,6 +3185,8 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             // just in case the HashMap values are backed by the same array
             objectsToDisconnect = Arrays.copyOf(objectValues, objectValues.length);
             mObjectMap.clear();
+            mNdefReadCache.clear();
+            mNdefReadGenerations.clear();
         }
         for (Object o : objectsToDisconnect) {
             if (DBG) Log.d(TAG, "disconnecting " + o.getClass().getName());
@@ -3107,6 +3225,8 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 Log.w(TAG, "Handle not found");
             } else {
                 mObjectMap.remove(handle);
+                mNdefReadCache.remove(handle);
+                mNdefReadGenerations.remove(handle);
             }
             return device;
         }
@@ -3115,15 +3235,87 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
     void registerTagObject(TagEndpoint tag) {
         synchronized (this) {
             mObjectMap.put(tag.getHandle(), tag);
+            seedNdefReadCache(tag);
         }
     }
 
     void unregisterObject(int handle) {
         synchronized (this) {
             mObjectMap.remove(handle);
+            mNdefReadCache.remove(handle);
+            mNdefReadGenerations.remove(handle);
+        }
+    }
+
+    /**
+     * Seeds the NDEF read cache with the message read during discovery.
+     * Handles are reused, so any entry from a previous tag is replaced.
+     */
+    void seedNdefReadCache(TagEndpoint tag) {
+        NdefMessage msg = getCachedNdefMessage(tag);
+        synchronized (this) {
+            bumpNdefReadGenerationLocked(tag.getHandle());
+            if (msg != null) {
+                mNdefReadCache.put(tag.getHandle(), msg);
+            } else {
+                mNdefReadCache.remove(tag.getHandle());
+            }
         }
     }
 
+    NdefMessage getCachedNdefRead(int handle) {
+        synchronized (this) {
+            NdefMessage msg = mNdefReadCache.get(handle);
+            if (msg != null) {
+                mNdefReadCacheHits++;
+            } else {
+                mNdefReadCacheMisses++;
+            }
+            return msg;
+        }
+    }
+
+    /** Returns the generation to pass to {@link #putNdefReadCache} after reading. */
+    int getNdefReadGeneration(int handle) {
+        synchronized (this) {
+            return mNdefReadGenerations.getOrDefault(handle, 0);
+        }
+    }
+
+    void putNdefReadCache(int handle, NdefMessage msg, int generation) {
+        synchronized (this) {
+            // Only cache for tags that are still registered, and reads that did not race
+            // with an operation that may have changed the message.
+            if (mObjectMap.containsKey(handle)
+                    && mNdefReadGenerations.getOrDefault(handle, 0) == generation) {
+                mNdefReadCache.put(handle, msg);
+            }
+        }
+    }
+
+    void invalidateNdefReadCache(int handle) {
+        synchronized (this) {
+            mNdefReadCache.remove(handle);
+            bumpNdefReadGenerationLocked(handle);
+        }
+    }
+
+    private void bumpNdefReadGenerationLocked(int handle) {
+        mNdefReadGenerations.put(handle, ++mNdefReadGeneration);
+    }
+
+    private void dumpNdefReadCache(PrintWriter pw) {
+        int size;
+        int hits;
+        int misses;
+        synchronized (this) {
+            size = mNdefReadCache.size();
+            hits = mNdefReadCacheHits;
+            misses = mNdefReadCacheMisses;
+        }
+        pw.println("NdefReadCache: size=" + size + " hits=" + hits + " misses=" + misses);
+    }
+
     public int getAidRoutingTableSize ()
     {
         int aidTableSize = 0x00;
@@ -3231,6 +3423,29 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         sendMessage(MSG_UPDATE_TECHNOLOGY_AB_ROUTE, route);
     }
 
+    private void extendTagDebounce(TagDebounceCache.Entry entry) {
+        mHandler.removeMessages(MSG_TAG_DEBOUNCE, entry);
+        mHandler.sendMessageDelayed(
+                mHandler.obtainMessage(MSG_TAG_DEBOUNCE, entry), entry.debounceMs);
+    }
+
+    /**
+     * Returns the NDEF message read during discovery, as stored in the tech extras.
+     */
+    static NdefMessage getCachedNdefMessage(TagEndpoint tag) {
+        int[] techList = tag.getTechList();
+        Bundle[] techExtras = tag.getTechExtras();
+        if (techList == null || techExtras == null) {
+            return null;
+        }
+        for (int i = 0; i < techList.length && i < techExtras.length; i++) {
+            if (techList[i] == TagTechnology.NDEF && techExtras[i] != null) {
+                return techExtras[i].getParcelable(Ndef.EXTRA_NDEF_MSG);
+            }
+        }
+        return null;
+    }
+
     void sendMessage(int what, Object obj) {
         Message msg = mHandler.obtainMessage();
         msg.what = what;
@@ -3254,6 +3469,19 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         }
     }
 
+    /** Sends a coalesced RF field event to the packages of a user. */
+    private void sendRfFieldEvent(boolean fieldOn, int userId, List<String> packages) {
+        Intent intent = new Intent(fieldOn
+                ? ACTION_RF_FIELD_ON_DETECTED : ACTION_RF_FIELD_OFF_DETECTED);
+        intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
+        UserHandle user = UserHandle.of(userId);
+        // Manifest receivers only get explicit broadcasts, so each package is targeted.
+        for (String packageName : packages) {
+            intent.setPackage(packageName);
+            mContext.sendBroadcastAsUser(intent, user);
+        }
+    }
+
     final class NfcServiceHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
@@ -3343,14 +3571,6 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 case MSG_NDEF_TAG:
                     if (DBG) Log.d(TAG, "Tag detected, notifying applications");
                     TagEndpoint tag = (TagEndpoint) msg.obj;
-                    byte[] debounceTagUid;
-                    int debounceTagMs;
-                    ITagRemovedCallback debounceTagRemovedCallback;
-                    synchronized (NfcService.this) {
-                        debounceTagUid = mDebounceTagUid;
-                        debounceTagMs = mDebounceTagDebounceMs;
-                        debounceTagRemovedCallback = mDebounceTagRemovedCallback;
-                    }
                     ReaderModeParams readerParams = null;
                     int presenceCheckDelay = DEFAULT_PRESENCE_CHECK_DELAY;
                     DeviceHost.TagDisconnectedCallback callback =
@@ -3392,11 +3612,27 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                         dispatchTagEndpoint(tag, readerParams);
                         break;
                     }
+
+                    // If the UID matches a tag we're debouncing, drop it before reading NDEF.
+                    TagDebounceCache.Entry debounceEntry = mDebounceCache.findByUid(tag.getUid());
+                    if (debounceEntry != null) {
+                        extendTagDebounce(debounceEntry);
+                        tag.disconnect();
+                        return;
+                    }
+
+                    // Tech-based dispatch candidates only depend on the tech list,
+                    // so resolve them while the NDEF read is in flight.
+                    // Reader mode callbacks never go through tech dispatch.
+                    if (mIsRWCapable && (readerParams == null || readerParams.callback == null)) {
+                        mNfcDispatcher.prefetchTechCandidates(tag.getTechList());
+                    }
                     NdefMessage ndefMsg = tag.findAndReadNdef();
 
                     if (ndefMsg == null) {
                         // First try to see if this was a bad tag read
                         if (!tag.reconnect()) {
+                            mNfcDispatcher.cancelTechCandidates();
                             tag.disconnect();
                             if (mScreenState == ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED) {
                                 if (!sToast_debounce && mNotifyReadFailed) {
@@ -3411,32 +3647,15 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                         }
                     }
 
-                    if (debounceTagUid != null) {
-                        // If we're debouncing and the UID or the NDEF message of the tag match,
-                        // don't dispatch but drop it.
-                        if (Arrays.equals(debounceTagUid, tag.getUid()) ||
-                                (ndefMsg != null && ndefMsg.equals(mLastReadNdefMessage))) {
-                            mHandler.removeMessages(MSG_TAG_DEBOUNCE);
-                            mHandler.sendEmptyMessageDelayed(MSG_TAG_DEBOUNCE, debounceTagMs);
-                            tag.disconnect();
-                            return;
-                        } else {
-                            synchronized (NfcService.this) {
-                                mDebounceTagUid = null;
-                                mDebounceTagRemovedCallback = null;
-                                mDebounceTagNativeHandle = INVALID_NATIVE_HANDLE;
-                            }
-                            if (debounceTagRemovedCallback != null) {
-                                try {
-                                    debounceTagRemovedCallback.onTagRemoved();
-                                } catch (RemoteException e) {
-                                    // Ignore
-                                }
-                            }
-                        }
+                    // Tags with random UIDs can still be matched on their NDEF message.
+                    debounceEntry = mDebounceCache.findByNdef(ndefMsg);
+                    if (debounceEntry != null) {
+                        mNfcDispatcher.cancelTechCandidates();
+                        extendTagDebounce(debounceEntry);
+                        tag.disconnect();
+                        return;
                     }
-
-                    mLastReadNdefMessage = ndefMsg;
+                    mDebounceCache.recordMiss();
 
                     if (mIsWlcEnabled) {
                         if (DBG) Log.d(TAG, "Wlc enabled, check for WLC_CAP record");
@@ -3444,6 +3663,7 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                         if (!mNfcCharging.NfcChargingMode
                                 && (mNfcCharging.checkWlcCapMsg(ndefMsg) == true)) {
                             if (DBG) Log.d(TAG, "checkWlcCapMsg returned true");
+                            mNfcDispatcher.cancelTechCandidates();
                             if (mNfcCharging.startNfcCharging(tag)) {
                                 mNfcCharging.NfcChargingMode = true;
                                 if (DBG) Log.d(TAG, "Nfc charging mode started successfully");
@@ -3465,28 +3685,29 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                     break;
 
                 case MSG_RF_FIELD_ACTIVATED:
-                    Intent fieldOnIntent = new Intent(ACTION_RF_FIELD_ON_DETECTED);
-                    sendNfcPermissionProtectedBroadcast(fieldOnIntent);
+                    if (mRfFieldEventPublisher.onFieldChanged(true)) {
+                        publishRfFieldEvents();
+                    }
                     if (mIsSecureNfcEnabled) {
                         sendRequireUnlockIntent();
                     }
                     break;
                 case MSG_RF_FIELD_DEACTIVATED:
-                    Intent fieldOffIntent = new Intent(ACTION_RF_FIELD_OFF_DETECTED);
-                    sendNfcPermissionProtectedBroadcast(fieldOffIntent);
+                    if (mRfFieldEventPublisher.onFieldChanged(false)) {
+                        publishRfFieldEvents();
+                    }
+                    break;
+                case MSG_PUBLISH_RF_FIELD:
+                    publishRfFieldEvents();
                     break;
                 case MSG_RESUME_POLLING:
                     mNfcAdapter.resumePolling();
                     break;
                 case MSG_TAG_DEBOUNCE:
                     // Didn't see the tag again, tag is gone
-                    ITagRemovedCallback tagRemovedCallback;
-                    synchronized (NfcService.this) {
-                        mDebounceTagUid = null;
-                        tagRemovedCallback = mDebounceTagRemovedCallback;
-                        mDebounceTagRemovedCallback = null;
-                        mDebounceTagNativeHandle = INVALID_NATIVE_HANDLE;
-                    }
+                    TagDebounceCache.Entry expiredEntry = (TagDebounceCache.Entry) msg.obj;
+                    mDebounceCache.expire(expiredEntry);
+                    ITagRemovedCallback tagRemovedCallback = expiredEntry.removedCallback;
                     if (tagRemovedCallback != null) {
                         try {
                             tagRemovedCallback.onTagRemoved();
@@ -3496,6 +3717,10 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                     }
                     break;
 
+                case MSG_SETTLE_SCREEN_STATE:
+                    applySettledScreenState((Integer) msg.obj);
+                    break;
+
                 case MSG_APPLY_SCREEN_STATE:
                     mScreenState = (Integer)msg.obj;
                     Log.d(TAG, "MSG_APPLY_SCREEN_STATE " + mScreenState);
@@ -3534,7 +3759,9 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                         mCardEmulationManager.onOffHostAidSelected();
                     }
                     byte[][] data = (byte[][]) msg.obj;
-                    sendOffHostTransactionEvent(data[0], data[1], data[2]);
+                    // Fan out off the handler thread, in order for each reader.
+                    mTransactionEventDispatcher.dispatch(new String(data[2]),
+                            () -> sendOffHostTransactionEvent(data[0], data[1], data[2]));
                     break;
 
                 case MSG_PREFERRED_PAYMENT_CHANGED:
@@ -3578,8 +3805,17 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             }
         }
 
+        /** Runs on the transaction event dispatcher, not on the handler thread. */
         private void sendOffHostTransactionEvent(byte[] aid, byte[] data, byte[] readerByteArray) {
-            if (!isSEServiceAvailable() || mNfcEventInstalledPackages.isEmpty()) {
+            HashMap<Integer, List<String>> nfcEventInstalledPackages;
+            synchronized (NfcService.this) {
+                nfcEventInstalledPackages = new HashMap<>(mNfcEventInstalledPackages);
+            }
+            if (!isSEServiceAvailable() || nfcEventInstalledPackages.isEmpty()) {
+                return;
+            }
+            ISecureElementService seService = mSEService;
+            if (seService == null) {
                 return;
             }
 
@@ -3590,13 +3826,21 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 for (byte b : aid) {
                     aidString.append(String.format("%02X", b));
                 }
-                for (int userId : mNfcEventInstalledPackages.keySet()) {
-                    List<String> packagesOfUser = mNfcEventInstalledPackages.get(userId);
-                    String[] installedPackages = new String[packagesOfUser.size()];
-                    boolean[] nfcAccess = mSEService.isNfcEventAllowed(reader, aid,
-                            packagesOfUser.toArray(installedPackages), userId);
+                for (int userId : nfcEventInstalledPackages.keySet()) {
+                    List<String> packagesOfUser = nfcEventInstalledPackages.get(userId);
+                    String[] installedPackages =
+                            packagesOfUser.toArray(new String[packagesOfUser.size()]);
+                    String accessKey = TransactionEventCache.makeAccessKey(reader,
+                            aidString.toString(), installedPackages, userId);
+                    boolean[] nfcAccess = mTransactionEventCache.getAccess(accessKey);
                     if (nfcAccess == null) {
-                        continue;
+                        int generation = mTransactionEventCache.getGeneration();
+                        nfcAccess = seService.isNfcEventAllowed(reader, aid,
+                                installedPackages, userId);
+                        if (nfcAccess == null) {
+                            continue;
+                        }
+                        mTransactionEventCache.putAccess(accessKey, nfcAccess, generation);
                     }
                     Intent intent = new Intent(NfcAdapter.ACTION_TRANSACTION_DETECTED);
                     intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
@@ -3611,7 +3855,12 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                     final BroadcastOptions options = BroadcastOptions.makeBasic();
                     options.setBackgroundActivityStartsAllowed(true);
 
-                    Map<String, Integer> hasIntentPackages = mContext
+                    String receiversKey = TransactionEventCache.makeReceiversKey(url, userId);
+                    Map<String, Integer> hasIntentPackages =
+                            mTransactionEventCache.getReceivers(receiversKey);
+                    if (hasIntentPackages == null) {
+                        int generation = mTransactionEventCache.getGeneration();
+                        hasIntentPackages = mContext
                             .getPackageManager()
                             .queryBroadcastReceiversAsUser(intent, 0, UserHandle.of(userId))
                             .stream()
@@ -3626,6 +3875,9 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                                           }
                                           return packageName1;
                                       }));
+                        mTransactionEventCache.putReceivers(receiversKey, hasIntentPackages,
+                                generation);
+                    }
                     if (DBG) {
                         String[] packageNames = hasIntentPackages
                                 .keySet().toArray(new String[hasIntentPackages.size()]);
@@ -3680,16 +3932,15 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             }
         }
 
-        private void sendNfcPermissionProtectedBroadcast(Intent intent) {
-            if (mNfcEventInstalledPackages.isEmpty()) {
-                return;
+        private void publishRfFieldEvents() {
+            HashMap<Integer, List<String>> nfcEventInstalledPackages;
+            synchronized (NfcService.this) {
+                nfcEventInstalledPackages = new HashMap<>(mNfcEventInstalledPackages);
             }
-            intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
-            for (int userId : mNfcEventInstalledPackages.keySet()) {
-                for (String packageName : mNfcEventInstalledPackages.get(userId)) {
-                    intent.setPackage(packageName);
-                    mContext.sendBroadcastAsUser(intent, UserHandle.of(userId));
-                }
+            if (mRfFieldEventPublisher.publish(nfcEventInstalledPackages,
+                    SystemClock.elapsedRealtime())) {
+                sendEmptyMessageDelayed(MSG_PUBLISH_RF_FIELD,
+                        RfFieldEventPublisher.COALESCE_WINDOW_MS);
             }
         }
 
@@ -3945,6 +4196,7 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 }
                 applyScreenState(mScreenStateHelper.checkScreenState());
             } else if (action.equals(Intent.ACTION_USER_SWITCHED)) {
+                UserContextCache.invalidateAll();
                 int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE, 0);
                 mUserId = userId;
                 updatePackageCache();
@@ -3959,7 +4211,10 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                             UserHandle.of(ActivityManager.getCurrentUser()), /*flags=*/0))
                             .startNotification();
                 }
+            } else if (action.equals(Intent.ACTION_USER_REMOVED)) {
+                UserContextCache.invalidateAll();
             } else if (action.equals(Intent.ACTION_USER_ADDED)) {
+                UserContextCache.invalidateAll();
                 int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE, 0);
                 setPaymentForegroundPreference(userId);
 
@@ -3978,6 +4233,8 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             UserHandle user = intent.getParcelableExtra(Intent.EXTRA_USER);
+            // Profiles were added, removed or changed their quiet mode.
+            UserContextCache.invalidateAll();
 
             // User should be filled for below intents, check the existence.
             if (user == null) {
@@ -3998,24 +4255,40 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         }
     };
 
+    private final PackageChangeMonitor.Listener mPackageListener =
+            new PackageChangeMonitor.Listener() {
+        @Override
+        public void onPackagesChanged(List<PackageChangeMonitor.PackageDelta> deltas) {
+            // Runs on the package monitor thread, once per batch of package events.
+            // Only installs and removals matter here, not component changes or restarts.
+            boolean installChanges = false;
+            boolean removals = false;
+            for (PackageChangeMonitor.PackageDelta delta : deltas) {
+                installChanges |= delta.hasInstallChanges();
+                removals |= delta.fullRescan || !delta.removedPackages.isEmpty();
+            }
+            if (!installChanges) {
+                return;
+            }
+            updatePackageCache();
+            if (removals && renewTagAppPrefList()) storeTagAppPrefList();
+        }
+    };
+
     private final BroadcastReceiver mOwnerReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            if (action.equals(Intent.ACTION_PACKAGE_REMOVED) ||
-                    action.equals(Intent.ACTION_PACKAGE_ADDED) ||
-                    action.equals(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE) ||
-                    action.equals(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE)) {
-                updatePackageCache();
-                if (action.equals(Intent.ACTION_PACKAGE_REMOVED)
-                        && renewTagAppPrefList()) storeTagAppPrefList();
-            } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
+            if (action.equals(Intent.ACTION_SHUTDOWN)) {
                 if (DBG) Log.d(TAG, "Shutdown received with UserId: " +
                                  getSendingUser().getIdentifier());
                 if (!getSendingUser().equals(UserHandle.ALL)) {
                     return;
                 }
                 if (DBG) Log.d(TAG, "Device is shutting down.");
+                if (mIsHceCapable && mCardEmulationManager != null) {
+                    mCardEmulationManager.onShutdown();
+                }
                 if (mIsAlwaysOnSupported && mAlwaysOnState == NfcAdapter.STATE_ON) {
                     new EnableDisableTask().execute(TASK_DISABLE_ALWAYS_ON);
                 }
@@ -4036,7 +4309,26 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             }
         }
         if (DBG) Log.d(TAG, "applyScreenState(): screenState=" + screenState );
+        // Screen state flaps during pocket and AOD transitions; wait for it to settle
+        // so only the final state reconfigures discovery.
+        if (mHandler.hasMessages(MSG_SETTLE_SCREEN_STATE)) {
+            mHandler.removeMessages(MSG_SETTLE_SCREEN_STATE);
+            mScreenStateUpdatesSkipped++;
+        }
+        if (screenState == ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED
+                || mScreenStateSettleTimeMs <= 0) {
+            // Unlock must not be delayed, the user may be about to pay.
+            applySettledScreenState(screenState);
+        } else {
+            mHandler.sendMessageDelayed(
+                    mHandler.obtainMessage(MSG_SETTLE_SCREEN_STATE, screenState),
+                    mScreenStateSettleTimeMs);
+        }
+    }
+
+    private void applySettledScreenState(int screenState) {
         if (mScreenState != screenState) {
+            mScreenStateUpdatesApplied++;
             if (nci_version != NCI_VERSION_2_0) {
                 new ApplyRoutingTask().execute(Integer.valueOf(screenState));
             }
@@ -4162,6 +4454,11 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
         }
     }
 
+    /** Prints the stage traces of the last tag dispatches. */
+    void dumpDispatchTraces(PrintWriter pw) {
+        mNfcDispatcher.dumpDispatchTraces(pw);
+    }
+
     void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (mContext.checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -4200,6 +4497,8 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
             pw.println("mState=" + stateToString(mState));
             pw.println("mAlwaysOnState=" + stateToString(mAlwaysOnState));
             pw.println("mScreenState=" + ScreenStateHelper.screenStateToString(mScreenState));
+            pw.println("mScreenStateUpdatesApplied=" + mScreenStateUpdatesApplied
+                    + " mScreenStateUpdatesSkipped=" + mScreenStateUpdatesSkipped);
             pw.println("mIsSecureNfcEnabled=" + mIsSecureNfcEnabled);
             pw.println("mIsReaderOptionEnabled=" + mIsReaderOptionEnabled);
             pw.println("mIsAlwaysOnSupported=" + mIsAlwaysOnSupported);
@@ -4214,6 +4513,16 @@ public class NfcService implements DeviceHostListener, ForegroundUtils.Callback
                 mCardEmulationManager.dump(fd, pw, args);
             }
             mNfcDispatcher.dump(fd, pw, args);
+            mDebounceCache.dump(pw);
+            mWatchdog.dump(pw);
+            mPackageChangeMonitor.dump(pw);
+            mTransactionEventCache.dump(pw);
+            mTransactionEventDispatcher.dump(pw);
+            mRfFieldEventPublisher.dump(pw);
+            synchronized (mEnablePhaseDurations) {
+                pw.println("Enable phase durations (ms): " + mEnablePhaseDurations);
+            }
+            dumpNdefReadCache(pw);
             if (mState == NfcAdapter.STATE_ON) {
                 mRoutingTableParser.dump(mDeviceHost, pw);
             }
@@ -105,6 +105,9 @@ public class NfcShellCommand extends BasicShellCommandHandler {
                     boolean enable = getNextArgRequiredTrueOrFalse("enable", "disable");
                     mNfcService.mNfcAdapter.setObserveMode(enable);
                     return 0;
+                case "dump-dispatch-traces":
+                    mNfcService.dumpDispatchTraces(pw);
+                    return 0;
                 default:
                     return handleDefaultCommands(cmd);
             }
@@ -155,6 +158,8 @@ public class NfcShellCommand extends BasicShellCommandHandler {
         pw.println("    Enable or disable observe mode.");
         pw.println("  set-reader-mode enable-polling|disable-polling");
         pw.println("    Enable or reader mode polling");
+        pw.println("  dump-dispatch-traces");
+        pw.println("    Print the stages and timing of the last tag dispatches.");
     }
 
     @Override
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single long-lived watchdog for operations that may hang in the NFC controller.
+ *
+ * Operations register a deadline with {@link #start} and cancel it through the
+ * returned {@link Handle}. Expiry runs on a dedicated thread, so a hung UI thread
+ * or AsyncTask pool does not keep it from firing. Durations of completed
+ * operations are kept as per-operation histograms for dumpsys.
+ */
+class NfcWatchdog {
+    /** Called on the watchdog thread when an operation misses its deadline. */
+    interface Listener {
+        void onWatchdogExpired(String operation);
+    }
+
+    /** Upper bounds of the duration histogram buckets, the last bucket is open-ended. */
+    static final long[] BUCKET_LIMITS_MS = {10, 50, 100, 500, 1000, 5000};
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final Listener mListener;
+
+    // Synchronized on this
+    private final TreeMap<String, Stats> mStats = new TreeMap<>();
+
+    private static final class Stats {
+        final int[] buckets = new int[BUCKET_LIMITS_MS.length + 1];
+        long maxMs;
+        int expired;
+    }
+
+    /** Deadline of a single operation. */
+    final class Handle {
+        private final String mOperation;
+        private final long mStartMs;
+        private final ScheduledFuture<?> mFuture;
+
+        private Handle(String operation, long startMs, ScheduledFuture<?> future) {
+            mOperation = operation;
+            mStartMs = startMs;
+            mFuture = future;
+        }
+
+        /** Cancels the deadline and records the duration. Safe to call more than once. */
+        void cancel() {
+            if (mFuture.cancel(false)) {
+                record(mOperation, SystemClock.elapsedRealtime() - mStartMs);
+            }
+        }
+    }
+
+    NfcWatchdog(Listener listener) {
+        mListener = listener;
+        mExecutor = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "NfcWatchdog"));
+        mExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Starts the watchdog for {@code operation}, which must be cancelled within timeoutMs. */
+    Handle start(String operation, int timeoutMs) {
+        long startMs = SystemClock.elapsedRealtime();
+        ScheduledFuture<?> future = mExecutor.schedule(
+                () -> expire(operation), timeoutMs, TimeUnit.MILLISECONDS);
+        return new Handle(operation, startMs, future);
+    }
+
+    private void expire(String operation) {
+        synchronized (this) {
+            getStats(operation).expired++;
+        }
+        mListener.onWatchdogExpired(operation);
+    }
+
+    @VisibleForTesting
+    synchronized void record(String operation, long durationMs) {
+        Stats stats = getStats(operation);
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_MS.length && durationMs >= BUCKET_LIMITS_MS[bucket]) {
+            bucket++;
+        }
+        stats.buckets[bucket]++;
+        stats.maxMs = Math.max(stats.maxMs, durationMs);
+    }
+
+    private Stats getStats(String operation) {
+        Stats stats = mStats.get(operation);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(operation, stats);
+        }
+        return stats;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Watchdog operation durations (ms):");
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            Stats stats = entry.getValue();
+            StringBuilder sb = new StringBuilder("  " + entry.getKey() + ":");
+            long lower = 0;
+            for (int i = 0; i < stats.buckets.length; i++) {
+                if (i < BUCKET_LIMITS_MS.length) {
+                    sb.append(" [" + lower + "-" + BUCKET_LIMITS_MS[i] + ")=");
+                    lower = BUCKET_LIMITS_MS[i];
+                } else {
+                    sb.append(" [" + lower + "+)=");
+                }
+                sb.append(stats.buckets[i]);
+            }
+            sb.append(" max=" + stats.maxMs + " expired=" + stats.expired);
+            pw.println(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.UserHandle;
+import android.sysprop.NfcProperties;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Single receiver of package and user switch broadcasts for the NFC component caches.
+ *
+ * Broadcasts are decoded once into per-user package deltas, which are batched until
+ * no new event arrives for {@link #SETTLE_TIME_MS}. Each batch is then handed to every
+ * listener on a shared background thread, so an app install costs every cache one
+ * update instead of one scan per broadcast and receiver. Listeners used to run on
+ * the main thread and must not rely on it.
+ *
+ * There is one monitor per context, so components built with the same context share
+ * the receivers while tests with their own context get their own monitor.
+ */
+public class PackageChangeMonitor {
+    static final String TAG = "PackageChangeMonitor";
+    static final boolean DBG = NfcProperties.debug_enabled().orElse(true);
+    static final int SETTLE_TIME_MS = 200;
+
+    /** Listener of package changes, called on the monitor thread, not the main thread. */
+    public interface Listener {
+        void onPackagesChanged(List<PackageDelta> deltas);
+
+        default void onUserSwitched(int userId) {}
+    }
+
+    /** Packages of a single user that changed since the previous batch. */
+    public static final class PackageDelta {
+        public final int userId;
+        /** Packages that were added, updated or became available. */
+        public final Set<String> changedPackages = new LinkedHashSet<>();
+        /** Packages that had components enabled or disabled. */
+        public final Set<String> componentChangedPackages = new LinkedHashSet<>();
+        /** Packages that were launched for the first time or restarted, unchanged. */
+        public final Set<String> restartedPackages = new LinkedHashSet<>();
+        /** Packages that were removed or became unavailable. */
+        public final Set<String> removedPackages = new LinkedHashSet<>();
+        /** Set when the affected packages are unknown and the user must be rescanned. */
+        public boolean fullRescan;
+
+        PackageDelta(int userId) {
+            this.userId = userId;
+        }
+
+        /** Returns all affected packages, including the ones that were only restarted. */
+        public Set<String> getPackages() {
+            Set<String> packages = getInstalledOrComponentChanges();
+            packages.addAll(restartedPackages);
+            return packages;
+        }
+
+        /** Returns the packages that were installed, updated, removed or had components changed. */
+        public Set<String> getInstalledOrComponentChanges() {
+            Set<String> packages = new LinkedHashSet<>(changedPackages);
+            packages.addAll(componentChangedPackages);
+            packages.addAll(removedPackages);
+            return packages;
+        }
+
+        /** Returns true if packages were installed, updated or removed. */
+        public boolean hasInstallChanges() {
+            return fullRescan || !changedPackages.isEmpty() || !removedPackages.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "PackageDelta{user=" + userId + " changed=" + changedPackages
+                    + " componentChanged=" + componentChangedPackages
+                    + " restarted=" + restartedPackages + " removed=" + removedPackages
+                    + " fullRescan=" + fullRescan + "}";
+        }
+    }
+
+    private static final WeakHashMap<Context, PackageChangeMonitor> sInstances =
+            new WeakHashMap<>();
+
+    private final Handler mHandler;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    // Only accessed on the monitor thread
+    private final SparseArray<PackageDelta> mPendingDeltas = new SparseArray<>();
+    // Only written on the monitor thread
+    private volatile int mEventCount;
+    private volatile int mBatchCount;
+
+    private final Runnable mFlushRunnable = this::flush;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_USER_SWITCHED.equals(action)) {
+                int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE, 0);
+                for (Listener listener : mListeners) {
+                    listener.onUserSwitched(userId);
+                }
+                return;
+            }
+            mEventCount++;
+            if (decode(intent, getSendingUser())) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.postDelayed(mFlushRunnable, SETTLE_TIME_MS);
+            }
+        }
+    };
+
+    /**
+     * Returns the monitor of this context, registering its receivers with
+     * {@code context} on first use.
+     */
+    public static synchronized PackageChangeMonitor getInstance(Context context) {
+        PackageChangeMonitor monitor = sInstances.get(context);
+        if (monitor == null) {
+            monitor = new PackageChangeMonitor(context);
+            sInstances.put(context, monitor);
+        }
+        return monitor;
+    }
+
+    private PackageChangeMonitor(Context context) {
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_FIRST_LAUNCH);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_RESTARTED);
+        intentFilter.addDataScheme("package");
+        context.registerReceiverForAllUsers(mReceiver, intentFilter, null, mHandler);
+
+        // Register for events related to sdcard operations
+        IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiverForAllUsers(mReceiver, sdFilter, null, mHandler);
+
+        IntentFilter userFilter = new IntentFilter();
+        userFilter.addAction(Intent.ACTION_USER_SWITCHED);
+        context.registerReceiverForAllUsers(mReceiver, userFilter, null, mHandler);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /** Adds the packages of this broadcast to the pending deltas, returns false if none. */
+    private boolean decode(Intent intent, UserHandle sendingUser) {
+        String action = intent.getAction();
+        if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+            boolean removed = Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action);
+            String[] packages = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+            int[] uids = intent.getIntArrayExtra(Intent.EXTRA_CHANGED_UID_LIST);
+            if (packages == null || uids == null || packages.length != uids.length) {
+                getPendingDelta(ActivityManager.getCurrentUser()).fullRescan = true;
+                return true;
+            }
+            for (int i = 0; i < packages.length; i++) {
+                addPackage(UserHandle.getUserHandleForUid(uids[i]).getIdentifier(),
+                        packages[i], removed ? Intent.ACTION_PACKAGE_REMOVED
+                                : Intent.ACTION_PACKAGE_ADDED);
+            }
+            return packages.length > 0;
+        }
+
+        boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+        if (replacing && (Intent.ACTION_PACKAGE_ADDED.equals(action)
+                || Intent.ACTION_PACKAGE_REMOVED.equals(action))) {
+            // ACTION_PACKAGE_REPLACED follows once the update is complete.
+            if (DBG) Log.d(TAG, "Ignoring package intent due to package being replaced.");
+            return false;
+        }
+        int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+        int userId = uid != -1 ? UserHandle.getUserHandleForUid(uid).getIdentifier()
+                : sendingUser.getIdentifier();
+        String packageName = intent.getData() != null
+                ? intent.getData().getSchemeSpecificPart() : null;
+        if (userId < 0) {
+            return false;
+        }
+        if (packageName == null) {
+            getPendingDelta(userId).fullRescan = true;
+        } else {
+            addPackage(userId, packageName, action);
+        }
+        return true;
+    }
+
+    private void addPackage(int userId, String packageName, String action) {
+        PackageDelta delta = getPendingDelta(userId);
+        if (Intent.ACTION_PACKAGE_CHANGED.equals(action)) {
+            delta.componentChangedPackages.add(packageName);
+        } else if (Intent.ACTION_PACKAGE_FIRST_LAUNCH.equals(action)
+                || Intent.ACTION_PACKAGE_RESTARTED.equals(action)) {
+            delta.restartedPackages.add(packageName);
+        } else if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
+            // The latest event wins when a package is removed and added again in a batch.
+            delta.changedPackages.remove(packageName);
+            delta.componentChangedPackages.remove(packageName);
+            delta.restartedPackages.remove(packageName);
+            delta.removedPackages.add(packageName);
+        } else {
+            delta.removedPackages.remove(packageName);
+            delta.changedPackages.add(packageName);
+        }
+    }
+
+    private PackageDelta getPendingDelta(int userId) {
+        PackageDelta delta = mPendingDeltas.get(userId);
+        if (delta == null) {
+            delta = new PackageDelta(userId);
+            mPendingDeltas.put(userId, delta);
+        }
+        return delta;
+    }
+
+    private void flush() {
+        if (mPendingDeltas.size() == 0) {
+            return;
+        }
+        ArrayList<PackageDelta> deltas = new ArrayList<>(mPendingDeltas.size());
+        for (int i = 0; i < mPendingDeltas.size(); i++) {
+            deltas.add(mPendingDeltas.valueAt(i));
+        }
+        mPendingDeltas.clear();
+        mBatchCount++;
+        if (DBG) Log.d(TAG, "Dispatching " + deltas);
+        List<PackageDelta> batch = Collections.unmodifiableList(deltas);
+        for (Listener listener : mListeners) {
+            try {
+                listener.onPackagesChanged(batch);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Listener failed to handle package changes", e);
+            }
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Package change monitor: events=" + mEventCount + " batches=" + mBatchCount
+                + " listeners=" + mListeners.size());
+    }
+}
@@ -17,10 +17,8 @@
 package com.android.nfc;
 
 import android.app.ActivityManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -35,11 +33,17 @@ import android.util.Log;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -54,40 +58,75 @@ public class RegisteredComponentCache {
     final Context mContext;
     final String mAction;
     final String mMetaDataName;
-    final AtomicReference<BroadcastReceiver> mReceiver;
+    final AtomicReference<PackageChangeMonitor.Listener> mListener;
+
+    final TechListCache mTechListCache;
+    final UserContextCache mUserContextCache;
 
     // synchronized on this
     private ArrayList<ComponentInfo> mComponents = new ArrayList<>();
+    // Built from mComponents whenever it is replaced, synchronized on this
+    private TechListIndex mTechListIndex = new TechListIndex(mComponents);
+
+    // Components of the current user grouped by package, synchronized on mUpdateLock
+    private final Object mUpdateLock = new Object();
+    private final LinkedHashMap<String, ArrayList<ComponentInfo>> mPackageComponents =
+            new LinkedHashMap<>();
+    private int mComponentsUserId = -1;
+    // Counted down under mUpdateLock once initialize() has published the first scan
+    private final CountDownLatch mInitialized = new CountDownLatch(1);
 
+    /**
+     * Creates the cache and starts monitoring packages. The components are scanned by
+     * {@link #initialize}, which lookups wait for.
+     */
     public RegisteredComponentCache(Context context, String action, String metaDataName) {
         mContext = context;
         mAction = action;
         mMetaDataName = metaDataName;
+        mUserContextCache = new UserContextCache(context);
+        mTechListCache = new TechListCache(new File(context.getFilesDir(), "techlist_cache.bin"));
 
-        generateComponentsList();
+        final PackageChangeMonitor.Listener listener = new PackageChangeMonitor.Listener() {
+            @Override
+            public void onPackagesChanged(List<PackageChangeMonitor.PackageDelta> deltas) {
+                synchronized (mUpdateLock) {
+                    // The first scan sees any change made before it.
+                    if (mInitialized.getCount() > 0) {
+                        return;
+                    }
+                    // Components are only resolved for the current user.
+                    int currentUser = ActivityManager.getCurrentUser();
+                    for (PackageChangeMonitor.PackageDelta delta : deltas) {
+                        if (delta.userId != currentUser) {
+                            continue;
+                        }
+                        if (delta.fullRescan) {
+                            generateComponentsList();
+                        } else {
+                            // Restarts do not change the registered activities.
+                            Set<String> packages = delta.getInstalledOrComponentChanges();
+                            if (!packages.isEmpty()) {
+                                updatePackages(packages);
+                            }
+                        }
+                    }
+                }
+            }
 
-        final BroadcastReceiver receiver = new BroadcastReceiver() {
             @Override
-            public void onReceive(Context context1, Intent intent) {
-                generateComponentsList();
+            public void onUserSwitched(int userId) {
+                synchronized (mUpdateLock) {
+                    if (mInitialized.getCount() > 0) {
+                        return;
+                    }
+                    // Generate a new list upon switching users as well
+                    generateComponentsList();
+                }
             }
         };
-        mReceiver = new AtomicReference<BroadcastReceiver>(receiver);
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
-        intentFilter.addDataScheme("package");
-        mContext.registerReceiverForAllUsers(receiver, intentFilter, null, null);
-        // Register for events related to sdcard installation.
-        IntentFilter sdFilter = new IntentFilter();
-        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
-        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
-        mContext.registerReceiverForAllUsers(receiver, sdFilter, null, null);
-        // Generate a new list upon switching users as well
-        IntentFilter userFilter = new IntentFilter();
-        userFilter.addAction(Intent.ACTION_USER_SWITCHED);
-        mContext.registerReceiverForAllUsers(receiver, userFilter, null, null);
+        mListener = new AtomicReference<PackageChangeMonitor.Listener>(listener);
+        PackageChangeMonitor.getInstance(mContext).addListener(listener);
     }
 
     public static class ComponentInfo {
@@ -127,11 +166,36 @@ public class RegisteredComponentCache {
         }
     }
 
+    /**
+     * Loads the tech list cache and scans the components of the current user. This
+     * does not need the controller, so NfcService runs it while the controller is
+     * being initialized.
+     */
+    void initialize() {
+        synchronized (mUpdateLock) {
+            try {
+                mTechListCache.load();
+                generateComponentsList();
+            } finally {
+                mInitialized.countDown();
+            }
+        }
+    }
+
+    private void waitForInitialize() {
+        try {
+            mInitialized.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * @return a collection of {@link RegisteredComponentCache.ComponentInfo} objects for all
      * registered authenticators.
      */
     public ArrayList<ComponentInfo> getComponents() {
+        waitForInitialize();
         synchronized (this) {
             // It's safe to return a reference here since mComponents is always replaced and
             // never updated when it changes.
@@ -139,19 +203,27 @@ public class RegisteredComponentCache {
         }
     }
 
+    /** Returns the tech index of the current components. */
+    TechListIndex getTechListIndex() {
+        waitForInitialize();
+        synchronized (this) {
+            return mTechListIndex;
+        }
+    }
+
     /**
      * Stops the monitoring of package additions, removals and changes.
      */
     public void close() {
-        final BroadcastReceiver receiver = mReceiver.getAndSet(null);
-        if (receiver != null) {
-            mContext.unregisterReceiver(receiver);
+        final PackageChangeMonitor.Listener listener = mListener.getAndSet(null);
+        if (listener != null) {
+            PackageChangeMonitor.getInstance(mContext).removeListener(listener);
         }
     }
 
     @Override
     protected void finalize() throws Throwable {
-        if (mReceiver.get() != null) {
+        if (mListener.get() != null) {
             Log.e(TAG, "RegisteredServicesCache finalized without being closed");
         }
         close();
@@ -164,28 +236,111 @@ public class RegisteredComponentCache {
         }
     }
 
-    void generateComponentsList() {
-        PackageManager pm;
+    private PackageManager getCurrentUserPackageManager() {
         try {
             UserHandle currentUser = UserHandle.of(ActivityManager.getCurrentUser());
-            pm = mContext.createPackageContextAsUser("android", 0,
-                    currentUser).getPackageManager();
+            return mUserContextCache.getPackageManager(currentUser);
         } catch (NameNotFoundException e) {
             Log.e(TAG, "Could not create user package context");
-            return;
+            return null;
         }
-        ArrayList<ComponentInfo> components = new ArrayList<ComponentInfo>();
-        List<ResolveInfo> resolveInfos = pm.queryIntentActivitiesAsUser(new Intent(mAction),
-                ResolveInfoFlags.of(PackageManager.GET_META_DATA),
-                UserHandle.of(ActivityManager.getCurrentUser()));
-        for (ResolveInfo resolveInfo : resolveInfos) {
-            try {
-                parseComponentInfo(pm, resolveInfo, components);
-            } catch (XmlPullParserException e) {
-                Log.w(TAG, "Unable to load component info " + resolveInfo.toString(), e);
-            } catch (IOException e) {
-                Log.w(TAG, "Unable to load component info " + resolveInfo.toString(), e);
+    }
+
+    /** Rescans the components of all packages of the current user. */
+    void generateComponentsList() {
+        synchronized (mUpdateLock) {
+            PackageManager pm = getCurrentUserPackageManager();
+            if (pm == null) {
+                return;
+            }
+            int currentUser = ActivityManager.getCurrentUser();
+            List<ResolveInfo> resolveInfos = pm.queryIntentActivitiesAsUser(new Intent(mAction),
+                    ResolveInfoFlags.of(PackageManager.GET_META_DATA),
+                    UserHandle.of(currentUser));
+            HashSet<String> keys = new HashSet<>();
+            mPackageComponents.clear();
+            for (ResolveInfo resolveInfo : resolveInfos) {
+                String key = addComponents(pm, resolveInfo);
+                if (key != null) {
+                    keys.add(key);
+                }
+            }
+            mComponentsUserId = currentUser;
+            mTechListCache.retainAll(currentUser, keys);
+            mTechListCache.writeIfDirty();
+            publishComponentsLocked();
+        }
+    }
+
+    /**
+     * Rescans the components of the given packages of the current user only, falling
+     * back to a full rescan if the current user changed since the last scan.
+     */
+    void updatePackages(Set<String> packageNames) {
+        synchronized (mUpdateLock) {
+            if (mComponentsUserId != ActivityManager.getCurrentUser()) {
+                generateComponentsList();
+                return;
+            }
+            PackageManager pm = getCurrentUserPackageManager();
+            if (pm == null) {
+                return;
+            }
+            for (String packageName : packageNames) {
+                mPackageComponents.remove(packageName);
+                mTechListCache.removePackage(packageName);
+                List<ResolveInfo> resolveInfos = pm.queryIntentActivitiesAsUser(
+                        new Intent(mAction).setPackage(packageName),
+                        ResolveInfoFlags.of(PackageManager.GET_META_DATA),
+                        UserHandle.of(mComponentsUserId));
+                for (ResolveInfo resolveInfo : resolveInfos) {
+                    addComponents(pm, resolveInfo);
+                }
+            }
+            mTechListCache.writeIfDirty();
+            publishComponentsLocked();
+        }
+    }
+
+    /**
+     * Adds the components of one activity to mPackageComponents, from the tech list
+     * cache if its package is unchanged. Returns the cache key of the activity.
+     */
+    private String addComponents(PackageManager pm, ResolveInfo resolveInfo) {
+        ActivityInfo ai = resolveInfo.activityInfo;
+        ArrayList<ComponentInfo> components =
+                mPackageComponents.computeIfAbsent(ai.packageName, k -> new ArrayList<>());
+        String key = TechListCache.makeKey(pm, ai);
+        List<String[]> techLists = mTechListCache.get(key);
+        if (techLists != null) {
+            for (String[] techs : techLists) {
+                components.add(new ComponentInfo(resolveInfo, techs));
             }
+            return key;
+        }
+        ArrayList<ComponentInfo> parsed = new ArrayList<>();
+        try {
+            parseComponentInfo(pm, resolveInfo, parsed);
+        } catch (XmlPullParserException e) {
+            Log.w(TAG, "Unable to load component info " + resolveInfo.toString(), e);
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load component info " + resolveInfo.toString(), e);
+            return null;
+        }
+        components.addAll(parsed);
+        techLists = new ArrayList<>(parsed.size());
+        for (ComponentInfo component : parsed) {
+            techLists.add(component.techs);
+        }
+        mTechListCache.put(key, techLists);
+        return key;
+    }
+
+    private void publishComponentsLocked() {
+        ArrayList<ComponentInfo> components = new ArrayList<ComponentInfo>();
+        for (ArrayList<ComponentInfo> packageComponents : mPackageComponents.values()) {
+            components.addAll(packageComponents);
         }
 
         if (VDBG) {
@@ -203,9 +358,18 @@ public class RegisteredComponentCache {
             dump(removedComponents);
         }
 
+        TechListIndex index = new TechListIndex(components);
         synchronized (this) {
             mComponents = components;
+            mTechListIndex = index;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println("Tech list components: " + mComponents.size());
         }
+        mTechListCache.dump(pw);
     }
 
     void parseComponentInfo(PackageManager pm, ResolveInfo info,
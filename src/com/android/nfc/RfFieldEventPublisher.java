@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces RF field on/off events before they are broadcast to the packages holding
+ * NFC_TRANSACTION_EVENT.
+ *
+ * The first change after a quiet period is published at once. Changes arriving while
+ * a publish window is open are folded into the latest state, which is published when
+ * the window ends. Each package is only told about state changes, at most once per
+ * {@link #MIN_PACKAGE_INTERVAL_MS}, so flapping fields near readers do not flood
+ * apps. Expiry of the window is driven by the caller, which must call
+ * {@link #publish} again after {@link #COALESCE_WINDOW_MS} while it returns true.
+ */
+class RfFieldEventPublisher {
+    static final long COALESCE_WINDOW_MS = 100;
+    static final long MIN_PACKAGE_INTERVAL_MS = 250;
+
+    interface Sender {
+        /** Sends the field event to these packages of the user. */
+        void send(boolean fieldOn, int userId, List<String> packages);
+    }
+
+    private static final class PackageState {
+        boolean fieldOn;
+        long lastSentMs;
+    }
+
+    private final Sender mSender;
+
+    // All fields below are only accessed on the NFC handler thread, except in dump.
+    private boolean mFieldOn;
+    private boolean mWindowOpen;
+    // Last state told to each package, keyed by user id and package name.
+    private HashMap<String, PackageState> mPackageStates = new HashMap<>();
+    private volatile long mFieldEvents;
+    private volatile long mCoalesced;
+    private volatile long mBroadcasts;
+    private volatile long mDeliveries;
+    private volatile long mRateLimited;
+
+    RfFieldEventPublisher(Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * Records a field change. Returns true if the caller should {@link #publish} now,
+     * false if the change is folded into the open window.
+     */
+    boolean onFieldChanged(boolean fieldOn) {
+        mFieldEvents++;
+        mFieldOn = fieldOn;
+        if (mWindowOpen) {
+            mCoalesced++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the current field state to the packages that were not told about it yet.
+     *
+     * @param packages the eligible packages of each user
+     * @param nowMs the current time, in the elapsed realtime base
+     * @return true if the window stays open and the caller must publish again after
+     *         {@link #COALESCE_WINDOW_MS}
+     */
+    boolean publish(Map<Integer, List<String>> packages, long nowMs) {
+        HashMap<String, PackageState> states = new HashMap<>();
+        boolean sent = false;
+        boolean deferred = false;
+        for (Map.Entry<Integer, List<String>> entry : packages.entrySet()) {
+            int userId = entry.getKey();
+            ArrayList<String> targets = new ArrayList<>();
+            for (String packageName : entry.getValue()) {
+                String key = userId + "/" + packageName;
+                PackageState state = mPackageStates.get(key);
+                if (state == null) {
+                    state = new PackageState();
+                    // A package that was never told the field is on needs no off event.
+                    state.lastSentMs = Long.MIN_VALUE;
+                }
+                states.put(key, state);
+                if (state.fieldOn == mFieldOn) {
+                    continue;
+                }
+                if (state.lastSentMs != Long.MIN_VALUE
+                        && nowMs - state.lastSentMs < MIN_PACKAGE_INTERVAL_MS) {
+                    mRateLimited++;
+                    deferred = true;
+                    continue;
+                }
+                state.fieldOn = mFieldOn;
+                state.lastSentMs = nowMs;
+                targets.add(packageName);
+            }
+            if (!targets.isEmpty()) {
+                mSender.send(mFieldOn, userId, targets);
+                mBroadcasts++;
+                mDeliveries += targets.size();
+                sent = true;
+            }
+        }
+        // Forget packages that are no longer eligible.
+        mPackageStates = states;
+        mWindowOpen = sent || deferred;
+        return mWindowOpen;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("RF field events: received=" + mFieldEvents + " coalesced=" + mCoalesced
+                + " broadcasts=" + mBroadcasts + " deliveries=" + mDeliveries
+                + " rateLimited=" + mRateLimited);
+    }
+}
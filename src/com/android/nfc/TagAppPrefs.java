@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.util.SparseArray;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The tag intent app preferences seen by a single tag dispatch.
+ *
+ * The preferences of each user are read from the {@link Store} once, and packages
+ * without a preference are allowed by default. These defaults are recorded in one
+ * batch per user when the dispatch calls {@link #flush}.
+ */
+class TagAppPrefs {
+    interface Store {
+        /** Returns the preferences of this user, by package name. */
+        Map<String, Boolean> getTagAppPrefs(int userId);
+
+        /** Allows these packages of the user unless they already have a preference. */
+        void addAllowedTagApps(int userId, Set<String> packages);
+    }
+
+    private final Store mStore;
+    private final SparseArray<Map<String, Boolean>> mPrefs = new SparseArray<>();
+    private final SparseArray<Set<String>> mNewPackages = new SparseArray<>();
+
+    TagAppPrefs(Store store) {
+        mStore = store;
+    }
+
+    /** Returns the preference of this package, or null if it has none yet. */
+    Boolean get(int userId, String pkg) {
+        Map<String, Boolean> prefs = mPrefs.get(userId);
+        if (prefs == null) {
+            prefs = mStore.getTagAppPrefs(userId);
+            mPrefs.put(userId, prefs);
+        }
+        Boolean allowed = prefs.get(pkg);
+        if (allowed == null) {
+            Set<String> newPackages = mNewPackages.get(userId);
+            if (newPackages == null) {
+                newPackages = new LinkedHashSet<>();
+                mNewPackages.put(userId, newPackages);
+            }
+            // Default sets allow to the preference list
+            newPackages.add(pkg);
+        }
+        return allowed;
+    }
+
+    /** Returns true unless the package of this user was muted. */
+    boolean isAllowed(int userId, String pkg) {
+        Boolean allowed = get(userId, pkg);
+        return allowed == null || allowed;
+    }
+
+    /** Stores the default preference of the packages seen without one. */
+    void flush() {
+        for (int i = 0; i < mNewPackages.size(); i++) {
+            mStore.addAllowedTagApps(mNewPackages.keyAt(i), mNewPackages.valueAt(i));
+        }
+        mNewPackages.clear();
+    }
+}
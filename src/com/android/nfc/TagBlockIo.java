@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.DeviceHost.TagEndpoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes ranges of memory blocks of NFC-V (ISO 15693) and Type 2 tags.
+ *
+ * Reads use READ MULTIPLE BLOCKS and FAST_READ so a range takes a few frames instead
+ * of one per block. Tags that reject them are read with the single block commands for
+ * the rest of the range. Writes go one block at a time, as the multiple block writes
+ * are optional and rarely supported, but without leaving the caller in between.
+ *
+ * Frames are built and received in a pair of direct buffers owned by the instance and
+ * reused for every frame, so native code reads and writes them in place and a range
+ * costs no allocation per frame. Not thread safe, the tag calls it under its lock.
+ */
+public final class TagBlockIo {
+    /**
+     * Sends the remaining bytes of {@code request} and writes the response at the
+     * position of {@code response}. Returns the response length, or a negative
+     * TRANSCEIVE_* status of {@link TagEndpoint}.
+     */
+    public interface Transceiver {
+        int transceive(ByteBuffer request, ByteBuffer response);
+    }
+
+    public static final int TYPE2_PAGE_SIZE = 4;
+    // ISO 15693 allows blocks of up to 32 bytes
+    public static final int MAX_NFCV_BLOCK_SIZE = 32;
+
+    // Keeps responses within the 253 bytes RF buffer of the controllers
+    static final int MAX_RESPONSE_LENGTH = 240;
+    static final int MAX_NFCV_BLOCKS_PER_READ = 32;
+    static final int BUFFER_SIZE = 256;
+
+    static final byte NFCV_FLAGS_ADDRESSED = 0x22; // high data rate, addressed
+    static final byte NFCV_READ_SINGLE_BLOCK = 0x20;
+    static final byte NFCV_WRITE_SINGLE_BLOCK = 0x21;
+    static final byte NFCV_READ_MULTIPLE_BLOCKS = 0x23;
+    static final byte TYPE2_READ = 0x30;
+    static final byte TYPE2_FAST_READ = 0x3A;
+    static final byte TYPE2_WRITE = (byte) 0xA2;
+    static final int TYPE2_PAGES_PER_READ = 4;
+
+    private final Transceiver mTag;
+    private final ByteBuffer mRequest = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer mResponse = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public TagBlockIo(Transceiver tag) {
+        mTag = tag;
+    }
+
+    private static boolean isTagLost(int[] returnCode) {
+        return returnCode != null && returnCode.length > 0 && returnCode[0] == 1;
+    }
+
+    /** Clears the request buffer and starts an addressed NFC-V command in it. */
+    private void startNfcVCommand(byte command, byte[] uid) {
+        mRequest.clear();
+        mRequest.put(NFCV_FLAGS_ADDRESSED).put(command).put(uid);
+    }
+
+    /**
+     * Sends the request built in the request buffer. Returns the response length, or
+     * a negative status with {@code returnCode[0]} set to 1 if the tag was lost.
+     */
+    private int transceive(int[] returnCode) {
+        mRequest.flip();
+        mResponse.clear();
+        int length = mTag.transceive(mRequest, mResponse);
+        if (returnCode != null && returnCode.length > 0) {
+            returnCode[0] = length == TagEndpoint.TRANSCEIVE_TAG_LOST ? 1 : 0;
+        }
+        return length;
+    }
+
+    /** Copies response bytes from {@code offset} into {@code out}. */
+    private void getResponse(int offset, byte[] out, int outOffset, int length) {
+        mResponse.position(offset);
+        mResponse.get(out, outOffset, length);
+    }
+
+    /**
+     * Returns {@code count} blocks of an NFC-V tag from {@code firstBlock}, or null on
+     * failure, with {@code returnCode[0]} set to 1 if the tag was lost.
+     */
+    public byte[] readNfcV(byte[] uid, int firstBlock, int count, int blockSize,
+            int[] returnCode) {
+        if (firstBlock < 0 || count <= 0 || firstBlock + count > 256 || blockSize <= 0
+                || blockSize > MAX_NFCV_BLOCK_SIZE) {
+            return null;
+        }
+        byte[] out = new byte[count * blockSize];
+        int maxBlocks = Math.min(MAX_NFCV_BLOCKS_PER_READ,
+                Math.max(1, MAX_RESPONSE_LENGTH / blockSize));
+        boolean multiple = count > 1;
+        int done = 0;
+        while (done < count) {
+            int block = firstBlock + done;
+            int blocks = multiple ? Math.min(maxBlocks, count - done) : 1;
+            if (blocks > 1) {
+                startNfcVCommand(NFCV_READ_MULTIPLE_BLOCKS, uid);
+                mRequest.put((byte) block).put((byte) (blocks - 1));
+            } else {
+                startNfcVCommand(NFCV_READ_SINGLE_BLOCK, uid);
+                mRequest.put((byte) block);
+            }
+            int length = transceive(returnCode);
+            // The first byte holds the response flags, bit 0 set on error.
+            if (length < 1 + blocks * blockSize || (mResponse.get(0) & 0x01) != 0) {
+                if (blocks > 1 && !isTagLost(returnCode)) {
+                    multiple = false;
+                    continue;
+                }
+                return null;
+            }
+            getResponse(1, out, done * blockSize, blocks * blockSize);
+            done += blocks;
+        }
+        return out;
+    }
+
+    /** Writes whole blocks of an NFC-V tag from {@code firstBlock}. */
+    public boolean writeNfcV(byte[] uid, int firstBlock, int blockSize, byte[] data,
+            int[] returnCode) {
+        if (firstBlock < 0 || blockSize <= 0 || blockSize > MAX_NFCV_BLOCK_SIZE
+                || data.length == 0
+                || data.length % blockSize != 0
+                || firstBlock + data.length / blockSize > 256) {
+            return false;
+        }
+        for (int offset = 0; offset < data.length; offset += blockSize) {
+            startNfcVCommand(NFCV_WRITE_SINGLE_BLOCK, uid);
+            mRequest.put((byte) (firstBlock + offset / blockSize));
+            mRequest.put(data, offset, blockSize);
+            int length = transceive(returnCode);
+            if (length < 1 || (mResponse.get(0) & 0x01) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns {@code count} pages of a Type 2 tag from {@code firstPage}, or null on
+     * failure, with {@code returnCode[0]} set to 1 if the tag was lost.
+     */
+    public byte[] readType2(int firstPage, int count, int[] returnCode) {
+        if (firstPage < 0 || count <= 0 || firstPage + count > 256) {
+            return null;
+        }
+        byte[] out = new byte[count * TYPE2_PAGE_SIZE];
+        boolean fastRead = count > TYPE2_PAGES_PER_READ;
+        int maxPages = MAX_RESPONSE_LENGTH / TYPE2_PAGE_SIZE;
+        int done = 0;
+        while (done < count) {
+            int page = firstPage + done;
+            int pages;
+            mRequest.clear();
+            if (fastRead) {
+                pages = Math.min(maxPages, count - done);
+                mRequest.put(TYPE2_FAST_READ).put((byte) page).put((byte) (page + pages - 1));
+            } else {
+                // READ returns four pages, only the ones asked for are kept.
+                pages = Math.min(TYPE2_PAGES_PER_READ, count - done);
+                mRequest.put(TYPE2_READ).put((byte) page);
+            }
+            if (transceive(returnCode) < pages * TYPE2_PAGE_SIZE) {
+                // A NACK to FAST_READ is followed by a reconnect in native code.
+                if (fastRead && !isTagLost(returnCode)) {
+                    fastRead = false;
+                    continue;
+                }
+                return null;
+            }
+            getResponse(0, out, done * TYPE2_PAGE_SIZE, pages * TYPE2_PAGE_SIZE);
+            done += pages;
+        }
+        return out;
+    }
+
+    /** Writes whole pages of a Type 2 tag from {@code firstPage}. */
+    public boolean writeType2(int firstPage, byte[] data, int[] returnCode) {
+        if (firstPage < 0 || data.length == 0 || data.length % TYPE2_PAGE_SIZE != 0
+                || firstPage + data.length / TYPE2_PAGE_SIZE > 256) {
+            return false;
+        }
+        for (int offset = 0; offset < data.length; offset += TYPE2_PAGE_SIZE) {
+            mRequest.clear();
+            mRequest.put(TYPE2_WRITE).put((byte) (firstPage + offset / TYPE2_PAGE_SIZE));
+            mRequest.put(data, offset, TYPE2_PAGE_SIZE);
+            // A NACK comes back as a failure, an ACK as a short response.
+            if (transceive(returnCode) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
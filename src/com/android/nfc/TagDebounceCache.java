@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.ITagRemovedCallback;
+import android.nfc.NdefMessage;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded LRU cache of tags that were ignored through {@link android.nfc.NfcAdapter#ignore}.
+ *
+ * Each entry is keyed by the tag UID and also remembers the NDEF message that was read
+ * when the tag was dispatched, so that tags with random UIDs are still debounced.
+ * Expiry is driven by the caller, which schedules one debounce message per entry.
+ */
+class TagDebounceCache {
+    static final int DEFAULT_MAX_ENTRIES = 16;
+
+    static final class Entry {
+        final byte[] uid;
+        final int nativeHandle;
+        final int debounceMs;
+        final NdefMessage ndefMessage;
+        final ITagRemovedCallback removedCallback;
+
+        Entry(byte[] uid, int nativeHandle, int debounceMs, NdefMessage ndefMessage,
+                ITagRemovedCallback removedCallback) {
+            this.uid = uid;
+            this.nativeHandle = nativeHandle;
+            this.debounceMs = debounceMs;
+            this.ndefMessage = ndefMessage;
+            this.removedCallback = removedCallback;
+        }
+    }
+
+    private final int mMaxEntries;
+
+    // The least recently seen tag is evicted first. Synchronized on this.
+    private final LruCache<String, Entry> mEntries;
+    // Collects the entries replaced or evicted while put() runs.
+    private List<Entry> mDropped;
+
+    private int mUidHits;
+    private int mNdefHits;
+    private int mMisses;
+    private int mExpirations;
+
+    TagDebounceCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    TagDebounceCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+        mEntries = new LruCache<String, Entry>(maxEntries) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue,
+                    Entry newValue) {
+                if (mDropped != null) {
+                    mDropped.add(oldValue);
+                }
+            }
+        };
+    }
+
+    private static String keyOf(byte[] uid) {
+        return Arrays.toString(uid);
+    }
+
+    /**
+     * Adds an entry, replacing any entry with the same UID.
+     *
+     * @return the entries that were dropped to make room, the replaced one first.
+     */
+    synchronized List<Entry> put(Entry entry) {
+        List<Entry> dropped = new ArrayList<>();
+        mDropped = dropped;
+        try {
+            mEntries.put(keyOf(entry.uid), entry);
+        } finally {
+            mDropped = null;
+        }
+        return dropped;
+    }
+
+    /** Returns the entry for this UID and counts a hit, or null. */
+    synchronized Entry findByUid(byte[] uid) {
+        if (uid == null || mEntries.size() == 0) {
+            return null;
+        }
+        Entry entry = mEntries.get(keyOf(uid));
+        if (entry != null) {
+            mUidHits++;
+        }
+        return entry;
+    }
+
+    /** Returns the entry whose NDEF message equals {@code message} and counts a hit, or null. */
+    synchronized Entry findByNdef(NdefMessage message) {
+        if (message == null || mEntries.size() == 0) {
+            return null;
+        }
+        int hash = message.hashCode();
+        for (Entry entry : mEntries.snapshot().values()) {
+            if (entry.ndefMessage != null && entry.ndefMessage.hashCode() == hash
+                    && entry.ndefMessage.equals(message)) {
+                // Refresh the access order for the matching entry.
+                mEntries.get(keyOf(entry.uid));
+                mNdefHits++;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    synchronized Entry findByHandle(int nativeHandle) {
+        for (Entry entry : mEntries.snapshot().values()) {
+            if (entry.nativeHandle == nativeHandle) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** Counts a tag that was read while at least one tag was being debounced. */
+    synchronized void recordMiss() {
+        if (mEntries.size() != 0) {
+            mMisses++;
+        }
+    }
+
+    /** Removes an expired entry, unless it was already replaced or evicted. */
+    synchronized void expire(Entry entry) {
+        String key = keyOf(entry.uid);
+        if (mEntries.get(key) == entry) {
+            mEntries.remove(key);
+            mExpirations++;
+        }
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("TagDebounceCache: size=" + mEntries.size() + "/" + mMaxEntries
+                + " uidHits=" + mUidHits + " ndefHits=" + mNdefHits + " misses=" + mMisses
+                + " evictions=" + mEntries.evictionCount() + " expirations=" + mExpirations);
+    }
+}
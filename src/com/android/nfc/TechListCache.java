@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.UserHandle;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Persistent cache of the tech lists parsed from the TECH_DISCOVERED meta-data of
+ * activities.
+ *
+ * Entries are keyed by activity, uid, package version code and last update time, so
+ * an entry is only used while the package is unchanged. This spares parsing the
+ * meta-data XML of every activity at boot and on user switch.
+ */
+class TechListCache {
+    static final String TAG = "TechListCache";
+    static final int VERSION = 1;
+
+    private final AtomicFile mFile;
+    // Synchronized on this
+    private final HashMap<String, List<String[]>> mEntries = new HashMap<>();
+    private boolean mDirty;
+    private int mHits;
+    private int mMisses;
+
+    TechListCache(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Returns the cache key of an activity, or null if its package can't be looked up.
+     */
+    static String makeKey(PackageManager pm, ActivityInfo ai) {
+        if (ai == null || ai.applicationInfo == null) {
+            return null;
+        }
+        PackageInfo pi;
+        try {
+            pi = pm.getPackageInfo(ai.packageName, 0);
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+        if (pi == null) {
+            return null;
+        }
+        return ai.packageName + "/" + ai.name + ":" + ai.applicationInfo.uid
+                + ":" + pi.getLongVersionCode() + ":" + pi.lastUpdateTime;
+    }
+
+    /** Loads the cache, keeping it empty if it is missing or from another build. */
+    synchronized void load() {
+        mEntries.clear();
+        if (!mFile.getBaseFile().exists()) {
+            return;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            byte[] data = mFile.readFully();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            if (parcel.readInt() != VERSION || !Build.FINGERPRINT.equals(parcel.readString())) {
+                Log.i(TAG, "Cache is from another version, ignoring");
+                return;
+            }
+            int count = parcel.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = parcel.readString();
+                int listCount = parcel.readInt();
+                ArrayList<String[]> techLists = new ArrayList<>(listCount);
+                for (int j = 0; j < listCount; j++) {
+                    techLists.add(parcel.createStringArray());
+                }
+                mEntries.put(key, techLists);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not read tech list cache, trashing.", e);
+            mEntries.clear();
+            mFile.delete();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** Returns the tech lists cached for this key, or null. */
+    synchronized List<String[]> get(String key) {
+        List<String[]> techLists = key == null ? null : mEntries.get(key);
+        if (techLists == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return techLists;
+    }
+
+    synchronized void put(String key, List<String[]> techLists) {
+        if (key == null) {
+            return;
+        }
+        mEntries.put(key, techLists);
+        mDirty = true;
+    }
+
+    /** Drops the entries of every activity of this package. */
+    synchronized void removePackage(String packageName) {
+        String prefix = packageName + "/";
+        mDirty |= mEntries.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Drops the entries of this user whose key is not in {@code keys}, after a full
+     * scan of the user. Entries of other users are kept for their next scan.
+     */
+    synchronized void retainAll(int userId, Set<String> keys) {
+        mDirty |= mEntries.keySet().removeIf(
+                key -> getUserId(key) == userId && !keys.contains(key));
+    }
+
+    private static int getUserId(String key) {
+        try {
+            return UserHandle.getUserHandleForUid(Integer.parseInt(key.split(":")[1]))
+                    .getIdentifier();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /** Writes the cache if it changed since it was loaded or last written. */
+    synchronized void writeIfDirty() {
+        if (!mDirty) {
+            return;
+        }
+        Parcel parcel = Parcel.obtain();
+        FileOutputStream fos = null;
+        try {
+            parcel.writeInt(VERSION);
+            parcel.writeString(Build.FINGERPRINT);
+            parcel.writeInt(mEntries.size());
+            for (HashMap.Entry<String, List<String[]>> entry : mEntries.entrySet()) {
+                parcel.writeString(entry.getKey());
+                parcel.writeInt(entry.getValue().size());
+                for (String[] techs : entry.getValue()) {
+                    parcel.writeStringArray(techs);
+                }
+            }
+            fos = mFile.startWrite();
+            fos.write(parcel.marshall());
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing tech list cache", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Tech list cache: size=" + mEntries.size() + " hits=" + mHits
+                + " misses=" + mMisses);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.tech.IsoDep;
+import android.nfc.tech.MifareClassic;
+import android.nfc.tech.MifareUltralight;
+import android.nfc.tech.Ndef;
+import android.nfc.tech.NdefFormatable;
+import android.nfc.tech.NfcA;
+import android.nfc.tech.NfcB;
+import android.nfc.tech.NfcBarcode;
+import android.nfc.tech.NfcF;
+import android.nfc.tech.NfcV;
+
+import com.android.nfc.RegisteredComponentCache.ComponentInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of the TECH_DISCOVERED components by the tag technologies they accept.
+ *
+ * Each known technology is one bit of a mask, and the index holds the exported
+ * components matching each of the 2^k masks, so a tag is resolved with a single
+ * lookup instead of matching every tech filter. Tags with a technology outside
+ * {@link #KNOWN_TECHS} are not indexed and must be matched against
+ * {@link #components}. The index is immutable and rebuilt when the components change.
+ */
+class TechListIndex {
+    // Sorted, the index of a tech is its bit in a mask.
+    static final String[] KNOWN_TECHS = sortedTechs();
+
+    /** The components this index was built from, in registration order. */
+    final List<ComponentInfo> components;
+
+    // Matching components of each tag tech mask, in registration order.
+    private final List<ComponentInfo>[] mCandidates;
+
+    private static String[] sortedTechs() {
+        String[] techs = {
+                IsoDep.class.getName(),
+                MifareClassic.class.getName(),
+                MifareUltralight.class.getName(),
+                Ndef.class.getName(),
+                NdefFormatable.class.getName(),
+                NfcA.class.getName(),
+                NfcB.class.getName(),
+                NfcBarcode.class.getName(),
+                NfcF.class.getName(),
+                NfcV.class.getName(),
+        };
+        Arrays.sort(techs);
+        return techs;
+    }
+
+    /** Returns the mask of these techs, or -1 if one of them is not a known tech. */
+    static int maskOf(String[] techs) {
+        int mask = 0;
+        for (String tech : techs) {
+            int bit = Arrays.binarySearch(KNOWN_TECHS, tech);
+            if (bit < 0) {
+                return -1;
+            }
+            mask |= 1 << bit;
+        }
+        return mask;
+    }
+
+    @SuppressWarnings("unchecked")
+    TechListIndex(List<ComponentInfo> components) {
+        this.components = components;
+        int size = components.size();
+        int[] filterMasks = new int[size];
+        for (int i = 0; i < size; i++) {
+            ComponentInfo info = components.get(i);
+            String[] techs = info.techs;
+            // Empty filters never match, and unknown techs only match unindexed tags.
+            filterMasks[i] = techs == null || techs.length == 0
+                    || !info.resolveInfo.activityInfo.exported ? -1 : maskOf(techs);
+        }
+        mCandidates = new List[1 << KNOWN_TECHS.length];
+        for (int mask = 0; mask < mCandidates.length; mask++) {
+            ArrayList<ComponentInfo> candidates = null;
+            for (int i = 0; i < size; i++) {
+                if (filterMasks[i] != -1 && (filterMasks[i] & ~mask) == 0) {
+                    if (candidates == null) {
+                        candidates = new ArrayList<>();
+                    }
+                    candidates.add(components.get(i));
+                }
+            }
+            mCandidates[mask] = candidates == null
+                    ? Collections.emptyList() : Collections.unmodifiableList(candidates);
+        }
+    }
+
+    /**
+     * Returns the exported components whose tech filter is covered by the tag techs,
+     * or null if the tag has a technology that is not indexed.
+     */
+    List<ComponentInfo> getCandidates(String[] tagTechs) {
+        int mask = maskOf(tagTechs);
+        return mask < 0 ? null : mCandidates[mask];
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Cache of the lookups made for each off-host transaction event: the SE access
+ * control decision of the packages holding NFC_TRANSACTION_EVENT, and the broadcast
+ * receivers resolved for the event intent.
+ *
+ * Both lookups are IPCs, and transit gates send events at a high rate with the same
+ * reader and AID. The cache is cleared whenever packages, the SE service or the
+ * execution environments change. Lookups started before a clear are not stored, so
+ * a stale result never outlives the clear.
+ */
+class TransactionEventCache {
+    static final int MAX_ENTRIES = 32;
+
+    // All fields synchronized on this.
+    private final LruCache<String, boolean[]> mAccess = new LruCache<>(MAX_ENTRIES);
+    private final LruCache<String, Map<String, Integer>> mReceivers =
+            new LruCache<>(MAX_ENTRIES);
+    private int mGeneration;
+    private int mAccessHits;
+    private int mAccessMisses;
+    private int mReceiverHits;
+    private int mReceiverMisses;
+    private int mInvalidations;
+    private String mLastInvalidation;
+
+    static String makeAccessKey(String reader, String aid, String[] packages, int userId) {
+        return reader + "|" + aid + "|" + userId + "|" + String.join(",", packages);
+    }
+
+    static String makeReceiversKey(String uri, int userId) {
+        return uri + "|" + userId;
+    }
+
+    /** Returns the generation to pass to the put methods after a lookup. */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns a copy of the cached access decision, or null. */
+    synchronized boolean[] getAccess(String key) {
+        boolean[] access = mAccess.get(key);
+        if (access == null) {
+            mAccessMisses++;
+            return null;
+        }
+        mAccessHits++;
+        return access.clone();
+    }
+
+    synchronized void putAccess(String key, boolean[] access, int generation) {
+        if (generation == mGeneration) {
+            mAccess.put(key, access.clone());
+        }
+    }
+
+    /** Returns the cached receiver packages and their uids, or null. */
+    synchronized Map<String, Integer> getReceivers(String key) {
+        Map<String, Integer> receivers = mReceivers.get(key);
+        if (receivers == null) {
+            mReceiverMisses++;
+            return null;
+        }
+        mReceiverHits++;
+        return receivers;
+    }
+
+    synchronized void putReceivers(String key, Map<String, Integer> receivers, int generation) {
+        if (generation == mGeneration) {
+            mReceivers.put(key, Collections.unmodifiableMap(receivers));
+        }
+    }
+
+    synchronized void invalidate(String reason) {
+        mGeneration++;
+        mAccess.evictAll();
+        mReceivers.evictAll();
+        mInvalidations++;
+        mLastInvalidation = reason;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Transaction event cache: access hits=" + mAccessHits
+                + " misses=" + mAccessMisses + " receiver hits=" + mReceiverHits
+                + " misses=" + mReceiverMisses + " invalidations=" + mInvalidations
+                + " last=" + mLastInvalidation);
+    }
+}
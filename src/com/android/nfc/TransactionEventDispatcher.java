@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the fan-out of off-host transaction events away from the NFC handler thread.
+ *
+ * Events of the same reader run one at a time in arrival order, while events of
+ * different readers may run in parallel. Each reader queues at most
+ * {@link #MAX_PENDING_PER_READER} events; when a reader is overloaded its oldest
+ * pending event is dropped, so apps are told about the most recent transactions.
+ */
+class TransactionEventDispatcher {
+    static final String TAG = "TransactionEventDispatcher";
+    static final int MAX_PENDING_PER_READER = 32;
+    static final int THREAD_COUNT = 2;
+
+    private final Executor mExecutor;
+
+    // All fields below synchronized on this
+    // Pending events of each reader, present while the reader has a drain running.
+    private final HashMap<String, ArrayDeque<Runnable>> mQueues = new HashMap<>();
+    private int mPending;
+    private int mMaxPending;
+    private long mDispatched;
+    private long mDropped;
+
+    TransactionEventDispatcher() {
+        this(Executors.newFixedThreadPool(THREAD_COUNT,
+                r -> new Thread(r, "NfcTransactionEvent")));
+    }
+
+    TransactionEventDispatcher(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /** Queues the fan-out of an event of this reader. */
+    void dispatch(String reader, Runnable event) {
+        synchronized (this) {
+            ArrayDeque<Runnable> queue = mQueues.get(reader);
+            boolean start = queue == null;
+            if (start) {
+                queue = new ArrayDeque<>();
+                mQueues.put(reader, queue);
+            } else if (queue.size() >= MAX_PENDING_PER_READER) {
+                queue.pollFirst();
+                mPending--;
+                mDropped++;
+                Log.w(TAG, "Too many pending events of " + reader + ", dropping the oldest");
+            }
+            queue.addLast(event);
+            mPending++;
+            mMaxPending = Math.max(mMaxPending, mPending);
+            if (!start) {
+                return;
+            }
+        }
+        mExecutor.execute(() -> drain(reader));
+    }
+
+    private void drain(String reader) {
+        while (true) {
+            Runnable event;
+            synchronized (this) {
+                ArrayDeque<Runnable> queue = mQueues.get(reader);
+                event = queue.pollFirst();
+                if (event == null) {
+                    mQueues.remove(reader);
+                    return;
+                }
+                mPending--;
+            }
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to dispatch transaction event of " + reader, e);
+            }
+            synchronized (this) {
+                mDispatched++;
+            }
+        }
+    }
+
+    /** Returns the number of events waiting to be dispatched. */
+    synchronized int getQueueDepth() {
+        return mPending;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Transaction event dispatch: queueDepth=" + mPending
+                + " maxQueueDepth=" + mMaxPending + " dispatched=" + mDispatched
+                + " dropped=" + mDropped);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of the per-user PackageManager and of the active profiles of the current user.
+ *
+ * Creating a package context for a user builds a new Context each time, which tag
+ * dispatch and the service caches used to do for every user on every call. All
+ * caches are dropped by {@link #invalidateAll} when users or profiles are added,
+ * removed, switched or change their quiet mode, which covers every profile type
+ * through {@link android.content.Intent#ACTION_PROFILE_AVAILABLE} and
+ * {@link android.content.Intent#ACTION_PROFILE_UNAVAILABLE}, not only managed ones.
+ */
+public class UserContextCache {
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+
+    private final Context mContext;
+
+    // All fields below synchronized on this
+    private final SparseArray<PackageManager> mPackageManagers = new SparseArray<>();
+    private List<UserHandle> mActiveUsers;
+    // Current user the active users were resolved for
+    private int mActiveUsersOwner = -1;
+    private int mGeneration = sGeneration.get();
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    public UserContextCache(Context context) {
+        mContext = context;
+    }
+
+    /** Drops the cached contexts and users of every cache, on any user or profile change. */
+    public static void invalidateAll() {
+        sGeneration.incrementAndGet();
+    }
+
+    private void validateLocked() {
+        int generation = sGeneration.get();
+        if (generation != mGeneration) {
+            mGeneration = generation;
+            mPackageManagers.clear();
+            mActiveUsers = null;
+            mInvalidations++;
+        }
+    }
+
+    /** Returns the PackageManager of this user, as seen from the "android" package. */
+    public PackageManager getPackageManager(UserHandle user) throws NameNotFoundException {
+        int userId = user.getIdentifier();
+        int generation;
+        synchronized (this) {
+            validateLocked();
+            generation = mGeneration;
+            PackageManager pm = mPackageManagers.get(userId);
+            if (pm != null) {
+                mHits++;
+                return pm;
+            }
+            mMisses++;
+        }
+        PackageManager pm = mContext.createPackageContextAsUser("android", 0, user)
+                .getPackageManager();
+        synchronized (this) {
+            validateLocked();
+            // Not cached if the users changed while the context was created.
+            if (generation == mGeneration) {
+                mPackageManagers.put(userId, pm);
+            }
+        }
+        return pm;
+    }
+
+    /** Returns a new list of the enabled profiles of the current user not in quiet mode. */
+    public List<UserHandle> getActiveUserHandles() {
+        int currentUser = ActivityManager.getCurrentUser();
+        int generation;
+        synchronized (this) {
+            validateLocked();
+            generation = mGeneration;
+            if (mActiveUsers != null && mActiveUsersOwner == currentUser) {
+                mHits++;
+                return new ArrayList<>(mActiveUsers);
+            }
+            mMisses++;
+        }
+        UserManager um = mContext.createContextAsUser(UserHandle.of(currentUser), /*flags=*/0)
+                .getSystemService(UserManager.class);
+        List<UserHandle> activeUsers = new ArrayList<>();
+        for (UserHandle uh : um.getEnabledProfiles()) {
+            if (!um.isQuietModeEnabled(uh)) {
+                activeUsers.add(uh);
+            }
+        }
+        synchronized (this) {
+            validateLocked();
+            if (generation == mGeneration) {
+                mActiveUsers = activeUsers;
+                mActiveUsersOwner = currentUser;
+            }
+        }
+        return new ArrayList<>(activeUsers);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("User context cache: hits=" + mHits + " misses=" + mMisses
+                + " invalidations=" + mInvalidations);
+    }
+}
@@ -49,11 +49,13 @@ import android.util.proto.ProtoOutputStream;
 import com.android.nfc.ForegroundUtils;
 import com.android.nfc.NfcPermissions;
 import com.android.nfc.NfcService;
+import com.android.nfc.UserContextCache;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import com.android.nfc.R;
 
@@ -106,6 +108,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     final WalletRoleObserver mWalletRoleObserver;
     final EnabledNfcFServices mEnabledNfcFServices;
     final Context mContext;
+    final UserContextCache mUserContextCache;
     final CardEmulationInterface mCardEmulationInterface;
     final NfcFCardEmulationInterface mNfcFCardEmulationInterface;
     final PowerManager mPowerManager;
@@ -114,12 +117,16 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     final ForegroundUtils mForegroundUtils;
     private int mForegroundUid;
 
+    // Counted down once initializeServiceCaches() has run
+    private final CountDownLatch mServiceCachesReady = new CountDownLatch(1);
+
     RoutingOptionManager mRoutingOptionManager;
     final byte[] mOffHostRouteUicc;
     final byte[] mOffHostRouteEse;
 
     public CardEmulationManager(Context context) {
         mContext = context;
+        mUserContextCache = new UserContextCache(context);
         mCardEmulationInterface = new CardEmulationInterface();
         mNfcFCardEmulationInterface = new NfcFCardEmulationInterface();
         mForegroundUtils = ForegroundUtils.getInstance(
@@ -137,16 +144,37 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
                 mWalletRoleObserver, this);
         mEnabledNfcFServices = new EnabledNfcFServices(
                 context, mNfcFServicesCache, mT3tIdentifiersCache, this);
-        mServiceCache.initialize();
-        mNfcFServicesCache.initialize();
         mPowerManager = context.getSystemService(PowerManager.class);
         mRoutingOptionManager = RoutingOptionManager.getInstance();
         mOffHostRouteEse = mRoutingOptionManager.getOffHostRouteEse();
         mOffHostRouteUicc = mRoutingOptionManager.getOffHostRouteUicc();
         mForegroundUid = Process.INVALID_UID;
-        int currentUser = ActivityManager.getCurrentUser();
-        mAidCache.onWalletRoleHolderChanged(
-                mWalletRoleObserver.getDefaultWalletRoleHolder(currentUser), currentUser);
+    }
+
+    /**
+     * Parses the registered HCE and HCE-F services and seeds the wallet role holder.
+     * This does not need the controller, so NfcService runs it in parallel with its
+     * initialization. Binder calls, user switches and {@link #onNfcEnabled()} wait
+     * for it to complete.
+     */
+    public void initializeServiceCaches() {
+        try {
+            mServiceCache.initialize();
+            mNfcFServicesCache.initialize();
+            int currentUser = ActivityManager.getCurrentUser();
+            mAidCache.onWalletRoleHolderChanged(
+                    mWalletRoleObserver.getDefaultWalletRoleHolder(currentUser), currentUser);
+        } finally {
+            mServiceCachesReady.countDown();
+        }
+    }
+
+    private void waitForServiceCaches() {
+        try {
+            mServiceCachesReady.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public INfcCardEmulation getNfcCardEmulationInterface() {
@@ -212,6 +240,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     }
 
     public void onUserSwitched(int userId) {
+        waitForServiceCaches();
         mWalletRoleObserver.onUserSwitched(userId);
         // for HCE
         mServiceCache.onUserSwitched();
@@ -224,6 +253,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     }
 
     public void onManagedProfileChanged() {
+        waitForServiceCaches();
         // for HCE
         mServiceCache.onManagedProfileChanged();
         // for HCE-F
@@ -231,6 +261,8 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     }
 
     public void onNfcEnabled() {
+        // The routing table is generated from the parsed services
+        waitForServiceCaches();
         // for HCE
         mAidCache.onNfcEnabled();
         // for HCE-F
@@ -247,6 +279,12 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         mEnabledNfcFServices.onNfcDisabled();
     }
 
+    /** Persists pending service settings before the device shuts down. */
+    public void onShutdown() {
+        mServiceCache.flushPendingWrites();
+        mNfcFServicesCache.flushPendingWrites();
+    }
+
     public void onSecureNfcToggled() {
         mAidCache.onSecureNfcToggled();
         mT3tIdentifiersCache.onSecureNfcToggled();
@@ -255,6 +293,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         mServiceCache.dump(fd, pw, args);
         mNfcFServicesCache.dump(fd, pw ,args);
+        ServiceInfoParseCache.getInstance().dump(pw);
         mPreferredServices.dump(fd, pw, args);
         mEnabledNfcFServices.dump(fd, pw, args);
         mAidCache.dump(fd, pw, args);
@@ -369,8 +408,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
             ComponentName lastFoundPaymentService = null;
             PackageManager pm;
             try {
-                pm = mContext.createPackageContextAsUser("android", /*flags=*/0,
-                    UserHandle.of(userId)).getPackageManager();
+                pm = mUserContextCache.getPackageManager(UserHandle.of(userId));
             } catch (NameNotFoundException e) {
                 Log.e(TAG, "Could not create user package context");
                 return;
@@ -534,6 +572,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean isDefaultServiceForCategory(int userId, ComponentName service,
                 String category) {
+            waitForServiceCaches();
             NfcPermissions.enforceUserPermissions(mContext);
             NfcPermissions.validateUserId(userId);
             if (!isServiceRegistered(userId, service)) {
@@ -551,6 +590,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean isDefaultServiceForAid(int userId,
                 ComponentName service, String aid) throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isServiceRegistered(userId, service)) {
@@ -562,6 +602,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean setDefaultServiceForCategory(int userId,
                 ComponentName service, String category) throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceAdminPermissions(mContext);
             if (!isServiceRegistered(userId, service)) {
@@ -573,6 +614,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean setDefaultForNextTap(int userId, ComponentName service)
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateProfileId(mContext, userId);
             NfcPermissions.enforceAdminPermissions(mContext);
             if (service != null && !isServiceRegistered(userId, service)) {
@@ -584,6 +626,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean setShouldDefaultToObserveModeForService(int userId,
             ComponentName service, boolean enable) {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             if (!isServiceRegistered(userId, service)) {
                 return false;
@@ -595,6 +638,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean registerAidGroupForService(int userId,
                 ComponentName service, AidGroup aidGroup) throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isServiceRegistered(userId, service)) {
@@ -615,6 +659,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @FlaggedApi(android.nfc.Flags.FLAG_NFC_READ_POLLING_LOOP)
         public boolean registerPollingLoopFilterForService(int userId, ComponentName service,
                 String pollingLoopFilter, boolean autoTransact) throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isServiceRegistered(userId, service)) {
@@ -627,6 +672,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
         @Override
         public boolean setOffHostForService(int userId, ComponentName service, String offHostSE) {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isServiceRegistered(userId, service)) {
@@ -643,6 +689,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
         @Override
         public boolean unsetOffHostForService(int userId, ComponentName service) {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isServiceRegistered(userId, service)) {
@@ -659,6 +706,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public AidGroup getAidGroupForService(int userId,
                 ComponentName service, String category) throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isServiceRegistered(userId, service)) {
@@ -671,6 +719,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean removeAidGroupForService(int userId,
                 ComponentName service, String category) throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isServiceRegistered(userId, service)) {
@@ -688,6 +737,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public List<ApduServiceInfo> getServices(int userId, String category)
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateProfileId(mContext, userId);
             NfcPermissions.enforceAdminPermissions(mContext);
             return mServiceCache.getServicesForCategory(userId, category);
@@ -696,6 +746,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean setPreferredService(ComponentName service)
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isServiceRegistered( UserHandle.getUserHandleForUid(
                     Binder.getCallingUid()).getIdentifier(), service)) {
@@ -708,6 +759,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
         @Override
         public boolean unsetPreferredService() throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.enforceUserPermissions(mContext);
             return mPreferredServices.unregisteredPreferredForegroundService(
                     Binder.getCallingUid());
@@ -715,11 +767,13 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
         @Override
         public boolean supportsAidPrefixRegistration() throws RemoteException {
+            waitForServiceCaches();
             return mAidCache.supportsAidPrefixRegistration();
         }
 
         @Override
         public ApduServiceInfo getPreferredPaymentService(int userId) throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             NfcPermissions.enforcePreferredPaymentInfoPermissions(mContext);
@@ -729,6 +783,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean setServiceEnabledForCategoryOther(int userId,
                 ComponentName app, boolean status) throws RemoteException {
+            waitForServiceCaches();
             if (!mContext.getResources().getBoolean(R.bool.enable_service_for_category_other))
               return false;
             NfcPermissions.enforceUserPermissions(mContext);
@@ -738,6 +793,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
         @Override
         public boolean isDefaultPaymentRegistered() throws RemoteException {
+            waitForServiceCaches();
             if (mWalletRoleObserver.isWalletRoleFeatureEnabled()) {
                 int callingUserId = Binder.getCallingUserHandle().getIdentifier();
                 return mWalletRoleObserver
@@ -750,6 +806,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
         @Override
         public boolean overrideRoutingTable(int userHandle, String protocol, String technology) {
+            waitForServiceCaches();
             Log.d(TAG, "overrideRoutingTable. userHandle " + userHandle + ", protocol " + protocol +
                     ", technology " + technology);
 
@@ -777,6 +834,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
         @Override
         public boolean recoverRoutingTable(int userHandle) {
+            waitForServiceCaches();
             Log.d(TAG, "recoverRoutingTable. userHandle " + userHandle);
 
             if (!mForegroundUtils.isInForeground(Binder.getCallingUid())) {
@@ -849,6 +907,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public String getSystemCodeForService(int userId, ComponentName service)
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isNfcFServiceInstalled(userId, service)) {
@@ -862,6 +921,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         public boolean registerSystemCodeForService(int userId, ComponentName service,
                 String systemCode)
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isNfcFServiceInstalled(userId, service)) {
@@ -874,6 +934,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean removeSystemCodeForService(int userId, ComponentName service)
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isNfcFServiceInstalled(userId, service)) {
@@ -886,6 +947,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public String getNfcid2ForService(int userId, ComponentName service)
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isNfcFServiceInstalled(userId, service)) {
@@ -898,6 +960,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean setNfcid2ForService(int userId,
                 ComponentName service, String nfcid2) throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateUserId(userId);
             NfcPermissions.enforceUserPermissions(mContext);
             if (!isNfcFServiceInstalled(userId, service)) {
@@ -910,6 +973,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public boolean enableNfcFForegroundService(ComponentName service)
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.enforceUserPermissions(mContext);
             if (isNfcFServiceInstalled(UserHandle.getUserHandleForUid(
                     Binder.getCallingUid()).getIdentifier(), service)) {
@@ -921,6 +985,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
         @Override
         public boolean disableNfcFForegroundService() throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.enforceUserPermissions(mContext);
             return mEnabledNfcFServices.unregisteredEnabledForegroundService(
                     Binder.getCallingUid());
@@ -929,6 +994,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public List<NfcFServiceInfo> getNfcFServices(int userId)
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.validateProfileId(mContext, userId);
             NfcPermissions.enforceUserPermissions(mContext);
             return mNfcFServicesCache.getServices(userId);
@@ -937,6 +1003,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         @Override
         public int getMaxNumOfRegisterableSystemCodes()
                 throws RemoteException {
+            waitForServiceCaches();
             NfcPermissions.enforceUserPermissions(mContext);
             return NfcService.getInstance().getLfT3tMax();
         }
@@ -987,6 +1054,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
     @Override
     public void onWalletRoleHolderChanged(String holder, int userId) {
+        waitForServiceCaches();
         mPreferredServices.onWalletRoleHolderChanged(holder, userId);
         mAidCache.onWalletRoleHolderChanged(holder, userId);
     }
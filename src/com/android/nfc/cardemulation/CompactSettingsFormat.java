@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.nfc.cardemulation.AidGroup;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary format of the card emulation settings files.
+ *
+ * A file starts with a magic number, a format version and the settings type,
+ * followed by length-prefixed records written with {@link DataOutputStream}.
+ * Unlike parcels the format does not depend on the build, so it is the primary copy
+ * of the settings. The XML files are still written behind every change, with
+ * {@link #XML_MIGRATED_ATTRIBUTE} set on the root element, so they stay a current
+ * fallback if the compact file can't be read and a downgrade finds the latest
+ * settings. An XML file without the marker was written by a build without the
+ * compact format and is migrated again.
+ */
+class CompactSettingsFormat {
+    static final String TAG = "CompactSettingsFormat";
+
+    static final int MAGIC = 0x4e464353; // "NFCS"
+    static final int VERSION = 1;
+
+    static final int TYPE_DYNAMIC_AIDS = 1;
+    static final int TYPE_OTHER_STATUS = 2;
+    static final int TYPE_DYNAMIC_SYSTEM_CODE_NFCID2 = 3;
+
+    // Upper bound of any record count, a larger count means the file is corrupt.
+    static final int MAX_COUNT = 1 << 20;
+
+    /** Attribute of the root element of XML files written when migrating them. */
+    static final String XML_MIGRATED_ATTRIBUTE = "migrated-to-compact";
+
+    /** Reads the settings of one file in either format. */
+    interface SettingsReader {
+        /** Reads the compact file, returns false if it is missing or unreadable. */
+        boolean readCompact();
+
+        /** Reads the XML file. */
+        void readXml();
+    }
+
+    private CompactSettingsFormat() {}
+
+    /** Writes the header of a file of this type and returns the stream for the records. */
+    static DataOutputStream startWrite(OutputStream os, int type) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(type);
+        return out;
+    }
+
+    /**
+     * Returns the records of a file of this type, or null if the file does not exist.
+     *
+     * @throws IOException if the file can't be read or has another format or type
+     */
+    static DataInputStream startRead(AtomicFile file, int type) throws IOException {
+        if (!file.getBaseFile().exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readFully()));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Bad magic");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+        if (in.readInt() != type) {
+            throw new IOException("Unexpected settings type");
+        }
+        return in;
+    }
+
+    /**
+     * Loads settings from the compact file, or from the XML file if it was not migrated
+     * yet or the compact file can't be read. Returns true if the XML file was read and
+     * both files must be written to complete the migration.
+     */
+    static boolean load(AtomicFile xmlFile, SettingsReader reader) {
+        if (isXmlMigrated(xmlFile) && reader.readCompact()) {
+            return false;
+        }
+        reader.readXml();
+        return xmlFile.getBaseFile().exists();
+    }
+
+    /**
+     * Returns false if the XML file exists without the migration marker, i.e. was last
+     * written by a build without the compact format.
+     */
+    static boolean isXmlMigrated(AtomicFile xmlFile) {
+        if (!xmlFile.getBaseFile().exists()) {
+            return true;
+        }
+        try (FileInputStream fis = xmlFile.openRead()) {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(fis, null);
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.START_TAG
+                    && eventType != XmlPullParser.END_DOCUMENT) {
+                eventType = parser.next();
+            }
+            return eventType == XmlPullParser.START_TAG
+                    && parser.getAttributeValue(null, XML_MIGRATED_ATTRIBUTE) != null;
+        } catch (IOException | XmlPullParserException e) {
+            // Prefer the compact file over an XML file that can't be parsed.
+            Log.e(TAG, "Could not read " + xmlFile.getBaseFile(), e);
+            return true;
+        }
+    }
+
+    static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void writeAidGroup(DataOutputStream out, AidGroup group) throws IOException {
+        out.writeUTF(group.getCategory());
+        List<String> aids = group.getAids();
+        out.writeInt(aids.size());
+        for (String aid : aids) {
+            out.writeUTF(aid);
+        }
+    }
+
+    static AidGroup readAidGroup(DataInputStream in) throws IOException {
+        String category = in.readUTF();
+        int count = readCount(in);
+        ArrayList<String> aids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            aids.add(in.readUTF());
+        }
+        return new AidGroup(aids, category);
+    }
+}
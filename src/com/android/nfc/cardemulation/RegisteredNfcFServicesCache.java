@@ -17,11 +17,9 @@
 package com.android.nfc.cardemulation;
 
 import android.app.ActivityManager;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.PackageManager.ResolveInfoFlags;
@@ -41,23 +39,26 @@ import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.nfc.PackageChangeMonitor;
+import com.android.nfc.UserContextCache;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReference;
 
 public class RegisteredNfcFServicesCache {
     static final String XML_INDENT_OUTPUT_FEATURE = "http://xmlpull.org/v1/doc/features.html#indent-output";
@@ -66,7 +67,8 @@ public class RegisteredNfcFServicesCache {
     private static final boolean VDBG = false; // turn on for local testing.
 
     final Context mContext;
-    final AtomicReference<BroadcastReceiver> mReceiver;
+    final UserContextCache mUserContextCache;
+    final PackageChangeMonitor.Listener mPackageListener;
 
     final Object mLock = new Object();
     // All variables below synchronized on mLock
@@ -79,6 +81,10 @@ public class RegisteredNfcFServicesCache {
     final SparseArray<UserServices> mUserServices = new SparseArray<UserServices>();
     final Callback mCallback;
     final AtomicFile mDynamicSystemCodeNfcid2File;
+    final AtomicFile mDynamicSystemCodeNfcid2BinaryFile;
+    final WriteBehindFile mDynamicSystemCodeNfcid2Writer;
+    final WriteBehindFile mDynamicSystemCodeNfcid2BinaryWriter;
+    final ServiceInfoParseCache mParseCache = ServiceInfoParseCache.getInstance();
     boolean mActivated = false;
     boolean mUserSwitched = false;
 
@@ -137,61 +143,41 @@ public class RegisteredNfcFServicesCache {
 
     public RegisteredNfcFServicesCache(Context context, Callback callback) {
         mContext = context;
+        mUserContextCache = new UserContextCache(context);
         mCallback = callback;
 
         refreshUserProfilesLocked();
 
-        final BroadcastReceiver receiver = new BroadcastReceiver() {
+        mPackageListener = new PackageChangeMonitor.Listener() {
             @Override
-            public void onReceive(Context context, Intent intent) {
-                final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
-                String action = intent.getAction();
-                if (DBG) Log.d(TAG, "Intent action: " + action);
-                if (uid != -1) {
-                    boolean replaced = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false) &&
-                            (Intent.ACTION_PACKAGE_ADDED.equals(action) ||
-                             Intent.ACTION_PACKAGE_REMOVED.equals(action));
-                    if (!replaced) {
-                        int currentUser = ActivityManager.getCurrentUser();
-                        if (currentUser == getProfileParentId(UserHandle.
-                                getUserHandleForUid(uid).getIdentifier())) {
-                            invalidateCache(UserHandle.getUserHandleForUid(uid).getIdentifier());
-                        } else {
-                            // Cache will automatically be updated on user switch
-                        }
+            public void onPackagesChanged(List<PackageChangeMonitor.PackageDelta> deltas) {
+                int currentUser = ActivityManager.getCurrentUser();
+                for (PackageChangeMonitor.PackageDelta delta : deltas) {
+                    if (currentUser == getProfileParentId(delta.userId)) {
+                        invalidateCache(delta.userId);
                     } else {
-                        if (DBG) Log.d(TAG,
-                                "Ignoring package intent due to package being replaced.");
+                        // Cache will automatically be updated on user switch
                     }
                 }
             }
         };
-        mReceiver = new AtomicReference<BroadcastReceiver>(receiver);
-
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_FIRST_LAUNCH);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_RESTARTED);
-        intentFilter.addDataScheme("package");
-        mContext.registerReceiverForAllUsers(mReceiver.get(), intentFilter, null, null);
-
-        // Register for events related to sdcard operations
-        IntentFilter sdFilter = new IntentFilter();
-        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
-        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
-        mContext.registerReceiverForAllUsers(mReceiver.get(), sdFilter, null, null);
+        PackageChangeMonitor.getInstance(mContext).addListener(mPackageListener);
 
         File dataDir = mContext.getFilesDir();
         mDynamicSystemCodeNfcid2File =
                 new AtomicFile(new File(dataDir, "dynamic_systemcode_nfcid2.xml"));
+        mDynamicSystemCodeNfcid2BinaryFile =
+                new AtomicFile(new File(dataDir, "dynamic_systemcode_nfcid2.bin"));
+        mDynamicSystemCodeNfcid2Writer = new WriteBehindFile(mDynamicSystemCodeNfcid2File,
+                mLock, this::serializeDynamicSystemCodeNfcid2Locked);
+        mDynamicSystemCodeNfcid2BinaryWriter = new WriteBehindFile(
+                mDynamicSystemCodeNfcid2BinaryFile, mLock,
+                this::serializeDynamicSystemCodeNfcid2BinaryLocked);
     }
 
     void initialize() {
         synchronized (mLock) {
-            readDynamicSystemCodeNfcid2Locked();
+            loadDynamicSystemCodeNfcid2Locked();
             for (UserHandle uh : mUserHandles) {
                 invalidateCache(uh.getIdentifier());
             }
@@ -236,8 +222,7 @@ public class RegisteredNfcFServicesCache {
         if (DBG) Log.d(TAG, "getInstalledServices");
         PackageManager pm;
         try {
-            pm = mContext.createPackageContextAsUser("android", 0,
-                    UserHandle.of(userId)).getPackageManager();
+            pm = mUserContextCache.getPackageManager(UserHandle.of(userId));
         } catch (NameNotFoundException e) {
             Log.e(TAG, "Could not create user package context");
             return null;
@@ -268,7 +253,12 @@ public class RegisteredNfcFServicesCache {
                             android.Manifest.permission.BIND_NFC_SERVICE);
                     continue;
                 }
-                NfcFServiceInfo service = new NfcFServiceInfo(pm, resolvedService);
+                String cacheKey = ServiceInfoParseCache.makeKey(pm, resolvedService, "nfcf");
+                NfcFServiceInfo service = mParseCache.get(cacheKey, NfcFServiceInfo.CREATOR);
+                if (service == null) {
+                    service = new NfcFServiceInfo(pm, resolvedService);
+                    mParseCache.put(cacheKey, service);
+                }
                 if (service != null) {
                     validServices.add(service);
                 }
@@ -416,6 +406,74 @@ public class RegisteredNfcFServicesCache {
         }
     }
 
+    /**
+     * Loads the dynamic System Codes and NFCID2s from the compact file, falling back to
+     * the XML file and migrating it if it was not migrated yet or the compact file is
+     * unreadable.
+     */
+    private void loadDynamicSystemCodeNfcid2Locked() {
+        if (CompactSettingsFormat.load(mDynamicSystemCodeNfcid2File,
+                new CompactSettingsFormat.SettingsReader() {
+                    @Override
+                    public boolean readCompact() {
+                        return readDynamicSystemCodeNfcid2BinaryLocked();
+                    }
+
+                    @Override
+                    public void readXml() {
+                        readDynamicSystemCodeNfcid2Locked();
+                    }
+                })) {
+            Log.i(TAG, "Migrating dynamic System Code, NFCID2 to compact format");
+            mDynamicSystemCodeNfcid2BinaryWriter.scheduleWrite();
+            mDynamicSystemCodeNfcid2Writer.scheduleWrite();
+        }
+    }
+
+    private boolean readDynamicSystemCodeNfcid2BinaryLocked() {
+        try {
+            DataInputStream in = CompactSettingsFormat.startRead(
+                    mDynamicSystemCodeNfcid2BinaryFile,
+                    CompactSettingsFormat.TYPE_DYNAMIC_SYSTEM_CODE_NFCID2);
+            if (in == null) {
+                return false;
+            }
+            // Apply the settings only once the whole file has been read.
+            int count = CompactSettingsFormat.readCount(in);
+            ArrayList<ComponentName> components = new ArrayList<>(count);
+            int[] uids = new int[count];
+            String[] systemCodes = new String[count];
+            String[] nfcid2s = new String[count];
+            for (int i = 0; i < count; i++) {
+                ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+                if (component == null) {
+                    throw new IOException("Invalid component");
+                }
+                components.add(component);
+                uids[i] = in.readInt();
+                systemCodes[i] = CompactSettingsFormat.readNullableString(in);
+                nfcid2s[i] = CompactSettingsFormat.readNullableString(in);
+            }
+            for (int i = 0; i < count; i++) {
+                int userId = UserHandle.getUserHandleForUid(uids[i]).getIdentifier();
+                UserServices userServices = findOrCreateUserLocked(userId);
+                if (systemCodes[i] != null) {
+                    userServices.dynamicSystemCode.put(components.get(i),
+                            new DynamicSystemCode(uids[i], systemCodes[i]));
+                }
+                if (nfcid2s[i] != null) {
+                    userServices.dynamicNfcid2.put(components.get(i),
+                            new DynamicNfcid2(uids[i], nfcid2s[i]));
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not read compact dynamic System Code, NFCID2 file, trashing.", e);
+            mDynamicSystemCodeNfcid2BinaryFile.delete();
+            return false;
+        }
+    }
+
     private void readDynamicSystemCodeNfcid2Locked() {
         if (DBG) Log.d(TAG, "readDynamicSystemCodeNfcid2Locked");
         FileInputStream fis = null;
@@ -504,52 +562,97 @@ public class RegisteredNfcFServicesCache {
         }
     }
 
-    private boolean writeDynamicSystemCodeNfcid2Locked() {
+    /**
+     * Schedules a write-behind of the dynamic System Codes and NFCID2s. The in-memory
+     * settings are the source of truth, a failed write is logged, shown in dumps and
+     * retried. The XML file is kept current as the fallback of the compact file and for
+     * downgrades.
+     */
+    private void writeDynamicSystemCodeNfcid2Locked() {
         if (DBG) Log.d(TAG, "writeDynamicSystemCodeNfcid2Locked");
-        FileOutputStream fos = null;
-        try {
-            fos = mDynamicSystemCodeNfcid2File.startWrite();
-            XmlSerializer out = Xml.newSerializer();
-            out.setOutput(fos, "utf-8");
-            out.startDocument(null, true);
-            out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
-            out.startTag(null, "services");
-            for (int i = 0; i < mUserServices.size(); i++) {
-                final UserServices userServices = mUserServices.valueAt(i);
-                for (Map.Entry<ComponentName, DynamicSystemCode> entry :
-                        userServices.dynamicSystemCode.entrySet()) {
+        mDynamicSystemCodeNfcid2BinaryWriter.scheduleWrite();
+        mDynamicSystemCodeNfcid2Writer.scheduleWrite();
+    }
+
+    private void serializeDynamicSystemCodeNfcid2BinaryLocked(OutputStream os)
+            throws IOException {
+        DataOutputStream out = CompactSettingsFormat.startWrite(os,
+                CompactSettingsFormat.TYPE_DYNAMIC_SYSTEM_CODE_NFCID2);
+        int count = 0;
+        for (int i = 0; i < mUserServices.size(); i++) {
+            final UserServices userServices = mUserServices.valueAt(i);
+            count += userServices.dynamicSystemCode.size();
+            for (ComponentName component : userServices.dynamicNfcid2.keySet()) {
+                if (!userServices.dynamicSystemCode.containsKey(component)) {
+                    count++;
+                }
+            }
+        }
+        out.writeInt(count);
+        for (int i = 0; i < mUserServices.size(); i++) {
+            final UserServices userServices = mUserServices.valueAt(i);
+            for (Map.Entry<ComponentName, DynamicSystemCode> entry :
+                    userServices.dynamicSystemCode.entrySet()) {
+                DynamicNfcid2 dynamicNfcid2 = userServices.dynamicNfcid2.get(entry.getKey());
+                out.writeUTF(entry.getKey().flattenToString());
+                out.writeInt(entry.getValue().uid);
+                CompactSettingsFormat.writeNullableString(out, entry.getValue().systemCode);
+                CompactSettingsFormat.writeNullableString(out,
+                        dynamicNfcid2 != null ? dynamicNfcid2.nfcid2 : null);
+            }
+            for (Map.Entry<ComponentName, DynamicNfcid2> entry :
+                    userServices.dynamicNfcid2.entrySet()) {
+                if (!userServices.dynamicSystemCode.containsKey(entry.getKey())) {
+                    out.writeUTF(entry.getKey().flattenToString());
+                    out.writeInt(entry.getValue().uid);
+                    CompactSettingsFormat.writeNullableString(out, null);
+                    CompactSettingsFormat.writeNullableString(out, entry.getValue().nfcid2);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private void serializeDynamicSystemCodeNfcid2Locked(OutputStream os) throws IOException {
+        XmlSerializer out = Xml.newSerializer();
+        out.setOutput(os, "utf-8");
+        out.startDocument(null, true);
+        out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
+        out.startTag(null, "services");
+        out.attribute(null, CompactSettingsFormat.XML_MIGRATED_ATTRIBUTE, "true");
+        for (int i = 0; i < mUserServices.size(); i++) {
+            final UserServices userServices = mUserServices.valueAt(i);
+            for (Map.Entry<ComponentName, DynamicSystemCode> entry :
+                    userServices.dynamicSystemCode.entrySet()) {
+                out.startTag(null, "service");
+                out.attribute(null, "component", entry.getKey().flattenToString());
+                out.attribute(null, "uid", Integer.toString(entry.getValue().uid));
+                out.attribute(null, "system-code", entry.getValue().systemCode);
+                if (userServices.dynamicNfcid2.containsKey(entry.getKey())) {
+                    out.attribute(null, "nfcid2",
+                            userServices.dynamicNfcid2.get(entry.getKey()).nfcid2);
+                }
+                out.endTag(null, "service");
+            }
+            for (Map.Entry<ComponentName, DynamicNfcid2> entry :
+                    userServices.dynamicNfcid2.entrySet()) {
+                if (!userServices.dynamicSystemCode.containsKey(entry.getKey())) {
                     out.startTag(null, "service");
                     out.attribute(null, "component", entry.getKey().flattenToString());
                     out.attribute(null, "uid", Integer.toString(entry.getValue().uid));
-                    out.attribute(null, "system-code", entry.getValue().systemCode);
-                    if (userServices.dynamicNfcid2.containsKey(entry.getKey())) {
-                        out.attribute(null, "nfcid2",
-                                userServices.dynamicNfcid2.get(entry.getKey()).nfcid2);
-                    }
+                    out.attribute(null, "nfcid2", entry.getValue().nfcid2);
                     out.endTag(null, "service");
                 }
-                for (Map.Entry<ComponentName, DynamicNfcid2> entry :
-                        userServices.dynamicNfcid2.entrySet()) {
-                    if (!userServices.dynamicSystemCode.containsKey(entry.getKey())) {
-                        out.startTag(null, "service");
-                        out.attribute(null, "component", entry.getKey().flattenToString());
-                        out.attribute(null, "uid", Integer.toString(entry.getValue().uid));
-                        out.attribute(null, "nfcid2", entry.getValue().nfcid2);
-                        out.endTag(null, "service");
-                    }
-                }
-            }
-            out.endTag(null, "services");
-            out.endDocument();
-            mDynamicSystemCodeNfcid2File.finishWrite(fos);
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error writing dynamic System Code, NFCID2", e);
-            if (fos != null) {
-                mDynamicSystemCodeNfcid2File.failWrite(fos);
             }
-            return false;
         }
+        out.endTag(null, "services");
+        out.endDocument();
+    }
+
+    /** Writes pending dynamic System Codes and NFCID2s now, e.g. on shutdown. */
+    public void flushPendingWrites() {
+        mDynamicSystemCodeNfcid2Writer.flush();
+        mDynamicSystemCodeNfcid2BinaryWriter.flush();
     }
 
     public boolean registerSystemCodeForService(int userId, int uid,
@@ -584,23 +687,12 @@ public class RegisteredNfcFServicesCache {
             }
             // Apply dynamic System Code mappings
             systemCode = systemCode.toUpperCase();
-            DynamicSystemCode oldDynamicSystemCode =
-                    userServices.dynamicSystemCode.get(componentName);
             DynamicSystemCode dynamicSystemCode = new DynamicSystemCode(uid, systemCode);
             userServices.dynamicSystemCode.put(componentName, dynamicSystemCode);
-            success = writeDynamicSystemCodeNfcid2Locked();
-            if (success) {
-                service.setDynamicSystemCode(systemCode);
-                newServices = new ArrayList<NfcFServiceInfo>(userServices.services.values());
-            } else {
-                Log.e(TAG, "Failed to persist System Code.");
-                // Undo registration
-                if (oldDynamicSystemCode == null) {
-                    userServices.dynamicSystemCode.remove(componentName);
-                } else {
-                    userServices.dynamicSystemCode.put(componentName, oldDynamicSystemCode);
-                }
-            }
+            writeDynamicSystemCodeNfcid2Locked();
+            service.setDynamicSystemCode(systemCode);
+            newServices = new ArrayList<NfcFServiceInfo>(userServices.services.values());
+            success = true;
         }
         if (success) {
             // Make callback without the lock held
@@ -660,22 +752,12 @@ public class RegisteredNfcFServicesCache {
             }
             // Apply dynamic NFCID2 mappings
             nfcid2 = nfcid2.toUpperCase();
-            DynamicNfcid2 oldDynamicNfcid2 = userServices.dynamicNfcid2.get(componentName);
             DynamicNfcid2 dynamicNfcid2 = new DynamicNfcid2(uid, nfcid2);
             userServices.dynamicNfcid2.put(componentName, dynamicNfcid2);
-            success = writeDynamicSystemCodeNfcid2Locked();
-            if (success) {
-                service.setDynamicNfcid2(nfcid2);
-                newServices = new ArrayList<NfcFServiceInfo>(userServices.services.values());
-            } else {
-                Log.e(TAG, "Failed to persist NFCID2.");
-                // Undo registration
-                if (oldDynamicNfcid2 == null) {
-                    userServices.dynamicNfcid2.remove(componentName);
-                } else {
-                    userServices.dynamicNfcid2.put(componentName, oldDynamicNfcid2);
-                }
-            }
+            writeDynamicSystemCodeNfcid2Locked();
+            service.setDynamicNfcid2(nfcid2);
+            newServices = new ArrayList<NfcFServiceInfo>(userServices.services.values());
+            success = true;
         }
         if (success) {
             // Make callback without the lock held
@@ -780,6 +862,8 @@ public class RegisteredNfcFServicesCache {
         } catch (IOException e) {
             pw.println("Failed to dump HCE-F services: " + e);
         }
+        mDynamicSystemCodeNfcid2Writer.dump(pw);
+        mDynamicSystemCodeNfcid2BinaryWriter.dump(pw);
     }
 
     /**
@@ -19,11 +19,9 @@ package com.android.nfc.cardemulation;
 import android.annotation.TargetApi;
 import android.annotation.FlaggedApi;
 import android.app.ActivityManager;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.PackageManager.ResolveInfoFlags;
@@ -42,21 +40,26 @@ import android.text.TextUtils;
 import android.util.AtomicFile;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.FastXmlSerializer;
+import com.android.nfc.PackageChangeMonitor;
+import com.android.nfc.UserContextCache;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -64,7 +67,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class is inspired by android.content.pm.RegisteredServicesCache
@@ -80,7 +86,8 @@ public class RegisteredServicesCache {
     private static final boolean VDBG = false; // turn on for local testing.
 
     final Context mContext;
-    final AtomicReference<BroadcastReceiver> mReceiver;
+    final UserContextCache mUserContextCache;
+    final PackageChangeMonitor.Listener mPackageListener;
 
     final Object mLock = new Object();
     // All variables below synchronized on mLock
@@ -91,9 +98,27 @@ public class RegisteredServicesCache {
 
     // mUserServices holds the card emulation services that are running for each user
     final SparseArray<UserServices> mUserServices = new SparseArray<UserServices>();
+    // Bumped each time the services of a user are replaced
+    @GuardedBy("mLock")
+    final SparseIntArray mServicesGenerations = new SparseIntArray();
+
+    // Runs every rescan in the order it was requested, whichever thread requested it, so
+    // a scan computed before a package change is never applied after the scan of that
+    // change.
+    private volatile Thread mScanThread;
+    private final ExecutorService mScanExecutor = Executors.newSingleThreadExecutor(
+            r -> mScanThread = new Thread(r, "ServicesScanner"));
     final Callback mCallback;
     final AtomicFile mDynamicSettingsFile;
     final AtomicFile mOthersFile;
+    final AtomicFile mDynamicSettingsBinaryFile;
+    final AtomicFile mOthersBinaryFile;
+    final WriteBehindFile mDynamicSettingsWriter;
+    final WriteBehindFile mOthersWriter;
+    final WriteBehindFile mDynamicSettingsBinaryWriter;
+    final WriteBehindFile mOthersBinaryWriter;
+    final ServicesSnapshot mSnapshot;
+    final ServiceInfoParseCache mParseCache = ServiceInfoParseCache.getInstance();
     public interface Callback {
         /**
          * ServicesUpdated for specific userId.
@@ -154,75 +179,129 @@ public class RegisteredServicesCache {
 
     public RegisteredServicesCache(Context context, Callback callback) {
         mContext = context;
+        mUserContextCache = new UserContextCache(context);
         mCallback = callback;
 
         refreshUserProfilesLocked();
 
-        final BroadcastReceiver receiver = new BroadcastReceiver() {
+        mPackageListener = new PackageChangeMonitor.Listener() {
             @Override
-            public void onReceive(Context context, Intent intent) {
-                final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
-                String action = intent.getAction();
-                if (VDBG) Log.d(TAG, "Intent action: " + action);
-
+            public void onPackagesChanged(List<PackageChangeMonitor.PackageDelta> deltas) {
                 if (RoutingOptionManager.getInstance().isRoutingTableOverrided()) {
                     if (DEBUG) Log.d(TAG, "Routing table overrided. Skip invalidateCache()");
                 }
-
-                if (uid != -1) {
-                    boolean replaced = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false) &&
-                            (Intent.ACTION_PACKAGE_ADDED.equals(action) ||
-                             Intent.ACTION_PACKAGE_REMOVED.equals(action));
-                    if (!replaced) {
-                        int currentUser = ActivityManager.getCurrentUser();
-                        if (currentUser == getProfileParentId(UserHandle.
-                                getUserHandleForUid(uid).getIdentifier())) {
-                            if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
-                                invalidateCache(UserHandle.
-                                        getUserHandleForUid(uid).getIdentifier(), true);
-                            } else {
-                                invalidateCache(UserHandle.
-                                        getUserHandleForUid(uid).getIdentifier(), false);
-                            }
-                        } else {
-                            // Cache will automatically be updated on user switch
-                        }
-                    } else {
-                        if (DEBUG) Log.d(TAG, "Ignoring package intent due to package being replaced.");
+                int currentUser = ActivityManager.getCurrentUser();
+                for (PackageChangeMonitor.PackageDelta delta : deltas) {
+                    if (currentUser != getProfileParentId(delta.userId)) {
+                        // Cache will automatically be updated on user switch
+                        continue;
+                    }
+                    if (delta.fullRescan) {
+                        scheduleScan(() -> scanUser(delta.userId,
+                                !delta.removedPackages.isEmpty()));
+                        continue;
+                    }
+                    for (String packageName : delta.getPackages()) {
+                        boolean removed = delta.removedPackages.contains(packageName);
+                        scheduleScan(() -> scanPackage(delta.userId, packageName, removed));
                     }
                 }
             }
         };
-        mReceiver = new AtomicReference<BroadcastReceiver>(receiver);
-
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_FIRST_LAUNCH);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_RESTARTED);
-        intentFilter.addDataScheme("package");
-        mContext.registerReceiverForAllUsers(mReceiver.get(), intentFilter, null, null);
-
-        // Register for events related to sdcard operations
-        IntentFilter sdFilter = new IntentFilter();
-        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
-        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
-        mContext.registerReceiverForAllUsers(mReceiver.get(), sdFilter, null, null);
 
         File dataDir = mContext.getFilesDir();
         mDynamicSettingsFile = new AtomicFile(new File(dataDir, "dynamic_aids.xml"));
         mOthersFile = new AtomicFile(new File(dataDir, "other_status.xml"));
+        mDynamicSettingsWriter = new WriteBehindFile(mDynamicSettingsFile, mLock,
+                this::serializeDynamicSettingsLocked);
+        mOthersWriter = new WriteBehindFile(mOthersFile, mLock, this::serializeOthersLocked);
+        mDynamicSettingsBinaryFile = new AtomicFile(new File(dataDir, "dynamic_aids.bin"));
+        mOthersBinaryFile = new AtomicFile(new File(dataDir, "other_status.bin"));
+        mDynamicSettingsBinaryWriter = new WriteBehindFile(mDynamicSettingsBinaryFile, mLock,
+                this::serializeDynamicSettingsBinaryLocked);
+        mOthersBinaryWriter = new WriteBehindFile(mOthersBinaryFile, mLock,
+                this::serializeOthersBinaryLocked);
+        mSnapshot = new ServicesSnapshot(new File(dataDir, "services_snapshot.bin"));
     }
 
     void initialize() {
+        List<UserHandle> userHandles;
         synchronized (mLock) {
-            readDynamicSettingsLocked();
-            readOthersLocked();
-            for (UserHandle uh : mUserHandles) {
-                invalidateCache(uh.getIdentifier(), false);
+            loadDynamicSettingsLocked();
+            loadOthersLocked();
+            userHandles = new ArrayList<>(mUserHandles);
+        }
+        mSnapshot.load();
+        ArrayList<Integer> restoredUsers = new ArrayList<>();
+        // Not under mLock, the callback takes the locks of its listeners.
+        runScan(() -> {
+            // Rescans of later changes are queued behind the restore, earlier ones are
+            // found by validateSnapshot().
+            PackageChangeMonitor.getInstance(mContext).addListener(mPackageListener);
+            for (UserHandle uh : userHandles) {
+                int userId = uh.getIdentifier();
+                ArrayList<ApduServiceInfo> services = mSnapshot.getServices(userId);
+                if (services != null) {
+                    Log.i(TAG, "Restored " + services.size() + " services of user " + userId
+                            + " from snapshot");
+                    updateServices(userId, services, false, getServicesGeneration(userId));
+                    restoredUsers.add(userId);
+                } else {
+                    scanUser(userId, false);
+                }
+            }
+        });
+        if (!restoredUsers.isEmpty()) {
+            // Off the boot path
+            scheduleScan(() -> validateSnapshot(restoredUsers));
+        }
+    }
+
+    /**
+     * Checks the restored services against the installed ones, and rescans the users
+     * whose services changed.
+     */
+    private void validateSnapshot(List<Integer> userIds) {
+        for (int userId : userIds) {
+            String state = getInstalledServicesState(userId);
+            if (state == null || !state.equals(mSnapshot.getState(userId))) {
+                Log.i(TAG, "Snapshot of user " + userId + " is stale, rescanning");
+                scanUser(userId, false);
+            }
+        }
+    }
+
+    /** Queues a rescan behind the ones already requested. */
+    private Future<?> scheduleScan(Runnable scan) {
+        return mScanExecutor.submit(() -> {
+            try {
+                scan.run();
+            } catch (RuntimeException e) {
+                // Most rescans are not waited for, so failures are logged here
+                Log.e(TAG, "Rescan failed", e);
+                throw e;
             }
+        });
+    }
+
+    /** Queues a rescan behind the ones already requested and waits for it. */
+    private void runScan(Runnable scan) {
+        if (Thread.currentThread() == mScanThread) {
+            scan.run();
+            return;
+        }
+        try {
+            scheduleScan(scan).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already logged by scheduleScan()
+        }
+    }
+
+    private int getServicesGeneration(int userId) {
+        synchronized (mLock) {
+            return mServicesGenerations.get(userId);
         }
     }
 
@@ -304,10 +383,47 @@ public class RegisteredServicesCache {
     }
 
     ArrayList<ApduServiceInfo> getInstalledServices(int userId) {
+        return getInstalledServices(userId, null, null);
+    }
+
+    /**
+     * @param packageName if not null, only the services of this package are resolved
+     */
+    private List<ResolveInfo> queryServices(PackageManager pm, int userId, String packageName,
+            boolean offHost, int flags) {
+        Intent intent = new Intent(offHost ? OffHostApduService.SERVICE_INTERFACE
+                : HostApduService.SERVICE_INTERFACE);
+        if (packageName != null) {
+            intent.setPackage(packageName);
+        }
+        return pm.queryIntentServicesAsUser(intent, ResolveInfoFlags.of(flags),
+                UserHandle.of(userId));
+    }
+
+    /** Returns the snapshot state of the installed services, without parsing them. */
+    private String getInstalledServicesState(int userId) {
         PackageManager pm;
         try {
-            pm = mContext.createPackageContextAsUser("android", 0,
-                    UserHandle.of(userId)).getPackageManager();
+            pm = mUserContextCache.getPackageManager(UserHandle.of(userId));
+        } catch (NameNotFoundException e) {
+            Log.e(TAG, "Could not create user package context");
+            return null;
+        }
+        List<ResolveInfo> resolvedServices =
+                new ArrayList<>(queryServices(pm, userId, null, false, 0));
+        resolvedServices.addAll(queryServices(pm, userId, null, true, 0));
+        return ServicesSnapshot.computeState(pm, resolvedServices);
+    }
+
+    /**
+     * @param packageName if not null, only the services of this package are returned
+     * @param stateOut if not null, receives the snapshot state of the returned services
+     */
+    private ArrayList<ApduServiceInfo> getInstalledServices(int userId, String packageName,
+            String[] stateOut) {
+        PackageManager pm;
+        try {
+            pm = mUserContextCache.getPackageManager(UserHandle.of(userId));
         } catch (NameNotFoundException e) {
             Log.e(TAG, "Could not create user package context");
             return null;
@@ -315,14 +431,15 @@ public class RegisteredServicesCache {
 
         ArrayList<ApduServiceInfo> validServices = new ArrayList<ApduServiceInfo>();
 
-        List<ResolveInfo> resolvedServices = new ArrayList<>(pm.queryIntentServicesAsUser(
-                new Intent(HostApduService.SERVICE_INTERFACE),
-                ResolveInfoFlags.of(PackageManager.GET_META_DATA), UserHandle.of(userId)));
+        List<ResolveInfo> resolvedServices = new ArrayList<>(
+                queryServices(pm, userId, packageName, false, PackageManager.GET_META_DATA));
 
-        List<ResolveInfo> resolvedOffHostServices = pm.queryIntentServicesAsUser(
-                new Intent(OffHostApduService.SERVICE_INTERFACE),
-                ResolveInfoFlags.of(PackageManager.GET_META_DATA), UserHandle.of(userId));
+        List<ResolveInfo> resolvedOffHostServices =
+                queryServices(pm, userId, packageName, true, PackageManager.GET_META_DATA);
         resolvedServices.addAll(resolvedOffHostServices);
+        if (stateOut != null) {
+            stateOut[0] = ServicesSnapshot.computeState(pm, resolvedServices);
+        }
 
         for (ResolveInfo resolvedService : resolvedServices) {
             try {
@@ -350,7 +467,13 @@ public class RegisteredServicesCache {
                             android.Manifest.permission.BIND_NFC_SERVICE);
                     continue;
                 }
-                ApduServiceInfo service = new ApduServiceInfo(pm, resolvedService, onHost);
+                String cacheKey = ServiceInfoParseCache.makeKey(pm, resolvedService,
+                        onHost ? "apdu-host" : "apdu-offhost");
+                ApduServiceInfo service = mParseCache.get(cacheKey, ApduServiceInfo.CREATOR);
+                if (service == null) {
+                    service = new ApduServiceInfo(pm, resolvedService, onHost);
+                    mParseCache.put(cacheKey, service);
+                }
                 if (service != null) {
                     validServices.add(service);
                 }
@@ -365,16 +488,64 @@ public class RegisteredServicesCache {
     }
 
     /**
-     * invalidateCache for specific userId.
+     * invalidateCache for specific userId, waiting for the rescan to complete.
      */
     public void invalidateCache(int userId, boolean validateInstalled) {
-        final ArrayList<ApduServiceInfo> validServices = getInstalledServices(userId);
+        runScan(() -> scanUser(userId, validateInstalled));
+    }
+
+    /** Rescans all services of this user. Runs on the scan thread. */
+    private void scanUser(int userId, boolean validateInstalled) {
+        int generation = getServicesGeneration(userId);
+        String[] state = new String[1];
+        final ArrayList<ApduServiceInfo> validServices =
+                getInstalledServices(userId, null, state);
         if (validServices == null) {
             return;
         }
+        // Snapshot the services as parsed, before dynamic settings are applied
+        mSnapshot.update(userId, state[0], validServices);
+        updateServices(userId, validServices, validateInstalled, generation);
+    }
+
+    /**
+     * Re-resolves only the services of one package and merges them with the
+     * snapshot of the services of the other packages, as they were parsed.
+     * Falls back to a full scan if this user has no snapshot. Runs on the scan thread.
+     */
+    private void scanPackage(int userId, String packageName, boolean validateInstalled) {
+        int generation = getServicesGeneration(userId);
+        String[] state = new String[1];
+        final ArrayList<ApduServiceInfo> packageServices =
+                getInstalledServices(userId, packageName, state);
+        if (packageServices == null) {
+            return;
+        }
+        ArrayList<ApduServiceInfo> validServices =
+                mSnapshot.updatePackage(userId, packageName, state[0], packageServices);
+        if (validServices == null) {
+            scanUser(userId, validateInstalled);
+            return;
+        }
+        // Not under mLock, the callback takes the locks of its listeners.
+        updateServices(userId, validServices, validateInstalled, generation);
+    }
+
+    /**
+     * Replaces the services of this user, applies their dynamic settings and
+     * notifies the callback. The services are dropped if those of the user were
+     * replaced since {@code generation} was read, as they may be older.
+     */
+    private void updateServices(int userId, ArrayList<ApduServiceInfo> validServices,
+            boolean validateInstalled, int generation) {
         ArrayList<ApduServiceInfo> toBeAdded = new ArrayList<>();
         ArrayList<ApduServiceInfo> toBeRemoved = new ArrayList<>();
         synchronized (mLock) {
+            if (mServicesGenerations.get(userId) != generation) {
+                Log.w(TAG, "Dropping services of user " + userId + " scanned before an update");
+                return;
+            }
+            mServicesGenerations.put(userId, generation + 1);
             UserServices userServices = findOrCreateUserLocked(userId);
 
             // Find removed services
@@ -530,6 +701,70 @@ public class RegisteredServicesCache {
         return result;
     }
 
+    /**
+     * Loads the dynamic settings from the compact file, falling back to the XML file
+     * and migrating it if it was not migrated yet or the compact file is unreadable.
+     */
+    private void loadDynamicSettingsLocked() {
+        if (CompactSettingsFormat.load(mDynamicSettingsFile,
+                new CompactSettingsFormat.SettingsReader() {
+                    @Override
+                    public boolean readCompact() {
+                        return readDynamicSettingsBinaryLocked();
+                    }
+
+                    @Override
+                    public void readXml() {
+                        readDynamicSettingsLocked();
+                    }
+                })) {
+            Log.i(TAG, "Migrating dynamic AIDs to compact format");
+            mDynamicSettingsBinaryWriter.scheduleWrite();
+            mDynamicSettingsWriter.scheduleWrite();
+        }
+    }
+
+    private boolean readDynamicSettingsBinaryLocked() {
+        try {
+            DataInputStream in = CompactSettingsFormat.startRead(mDynamicSettingsBinaryFile,
+                    CompactSettingsFormat.TYPE_DYNAMIC_AIDS);
+            if (in == null) {
+                return false;
+            }
+            // Apply the settings only once the whole file has been read.
+            int count = CompactSettingsFormat.readCount(in);
+            ArrayList<ComponentName> components = new ArrayList<>(count);
+            ArrayList<DynamicSettings> settings = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+                if (component == null) {
+                    throw new IOException("Invalid component");
+                }
+                DynamicSettings dynSettings = new DynamicSettings(in.readInt());
+                dynSettings.offHostSE = CompactSettingsFormat.readNullableString(in);
+                dynSettings.shouldDefaultToObserveModeStr =
+                        CompactSettingsFormat.readNullableString(in);
+                int groupCount = CompactSettingsFormat.readCount(in);
+                for (int j = 0; j < groupCount; j++) {
+                    AidGroup group = CompactSettingsFormat.readAidGroup(in);
+                    dynSettings.aidGroups.put(group.getCategory(), group);
+                }
+                components.add(component);
+                settings.add(dynSettings);
+            }
+            for (int i = 0; i < count; i++) {
+                DynamicSettings dynSettings = settings.get(i);
+                int userId = UserHandle.getUserHandleForUid(dynSettings.uid).getIdentifier();
+                findOrCreateUserLocked(userId).dynamicSettings.put(components.get(i), dynSettings);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not read compact dynamic AIDs file, trashing.", e);
+            mDynamicSettingsBinaryFile.delete();
+            return false;
+        }
+    }
+
     private void readDynamicSettingsLocked() {
         FileInputStream fis = null;
         try {
@@ -622,6 +857,61 @@ public class RegisteredServicesCache {
         }
     }
 
+    /**
+     * Loads the other service states from the compact file, falling back to the XML
+     * file and migrating it if it was not migrated yet or the compact file is unreadable.
+     */
+    private void loadOthersLocked() {
+        if (CompactSettingsFormat.load(mOthersFile,
+                new CompactSettingsFormat.SettingsReader() {
+                    @Override
+                    public boolean readCompact() {
+                        return readOthersBinaryLocked();
+                    }
+
+                    @Override
+                    public void readXml() {
+                        readOthersLocked();
+                    }
+                })) {
+            Log.i(TAG, "Migrating other service states to compact format");
+            mOthersBinaryWriter.scheduleWrite();
+            mOthersWriter.scheduleWrite();
+        }
+    }
+
+    private boolean readOthersBinaryLocked() {
+        try {
+            DataInputStream in = CompactSettingsFormat.startRead(mOthersBinaryFile,
+                    CompactSettingsFormat.TYPE_OTHER_STATUS);
+            if (in == null) {
+                return false;
+            }
+            // Apply the states only once the whole file has been read.
+            int count = CompactSettingsFormat.readCount(in);
+            ArrayList<ComponentName> components = new ArrayList<>(count);
+            ArrayList<OtherServiceStatus> states = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+                if (component == null) {
+                    throw new IOException("Invalid component");
+                }
+                components.add(component);
+                states.add(new OtherServiceStatus(in.readInt(), in.readBoolean()));
+            }
+            for (int i = 0; i < count; i++) {
+                OtherServiceStatus status = states.get(i);
+                int userId = UserHandle.getUserHandleForUid(status.uid).getIdentifier();
+                findOrCreateUserLocked(userId).others.put(components.get(i), status);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not read compact others file, trashing.", e);
+            mOthersBinaryFile.delete();
+            return false;
+        }
+    }
+
     private void readOthersLocked() {
         Log.d(TAG, "read others locked");
 
@@ -699,105 +989,150 @@ public class RegisteredServicesCache {
             }
         }
     }
-    private boolean writeDynamicSettingsLocked() {
-        FileOutputStream fos = null;
-        try {
-            fos = mDynamicSettingsFile.startWrite();
-            XmlSerializer out = Xml.newSerializer();
-            out.setOutput(fos, "utf-8");
-            out.startDocument(null, true);
-            out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
-            out.startTag(null, "services");
-            for (int i = 0; i < mUserServices.size(); i++) {
-                final UserServices user = mUserServices.valueAt(i);
-                for (Map.Entry<ComponentName, DynamicSettings> service :
-                        user.dynamicSettings.entrySet()) {
-                    out.startTag(null, "service");
-                    out.attribute(null, "component", service.getKey().flattenToString());
-                    out.attribute(null, "uid", Integer.toString(service.getValue().uid));
-                    if(service.getValue().offHostSE != null) {
-                        out.attribute(null, "offHostSE", service.getValue().offHostSE);
-                    }
-                    if (service.getValue().shouldDefaultToObserveModeStr != null) {
-                        out.attribute(null, "shouldDefaultToObserveMode",
-                                service.getValue().shouldDefaultToObserveModeStr);
-                    }
-                    for (AidGroup group : service.getValue().aidGroups.values()) {
-                        group.writeAsXml(out);
-                    }
-                    out.endTag(null, "service");
+    /**
+     * Schedules a write-behind of the dynamic settings. The in-memory settings are the
+     * source of truth, a failed write is logged, shown in dumps and retried. The XML
+     * file is kept current as the fallback of the compact file and for downgrades.
+     */
+    private void writeDynamicSettingsLocked() {
+        mDynamicSettingsBinaryWriter.scheduleWrite();
+        mDynamicSettingsWriter.scheduleWrite();
+    }
+
+    private void serializeDynamicSettingsBinaryLocked(OutputStream os) throws IOException {
+        DataOutputStream out = CompactSettingsFormat.startWrite(os,
+                CompactSettingsFormat.TYPE_DYNAMIC_AIDS);
+        int count = 0;
+        for (int i = 0; i < mUserServices.size(); i++) {
+            count += mUserServices.valueAt(i).dynamicSettings.size();
+        }
+        out.writeInt(count);
+        for (int i = 0; i < mUserServices.size(); i++) {
+            for (Map.Entry<ComponentName, DynamicSettings> service :
+                    mUserServices.valueAt(i).dynamicSettings.entrySet()) {
+                DynamicSettings dynSettings = service.getValue();
+                out.writeUTF(service.getKey().flattenToString());
+                out.writeInt(dynSettings.uid);
+                CompactSettingsFormat.writeNullableString(out, dynSettings.offHostSE);
+                CompactSettingsFormat.writeNullableString(out,
+                        dynSettings.shouldDefaultToObserveModeStr);
+                out.writeInt(dynSettings.aidGroups.size());
+                for (AidGroup group : dynSettings.aidGroups.values()) {
+                    CompactSettingsFormat.writeAidGroup(out, group);
                 }
             }
-            out.endTag(null, "services");
-            out.endDocument();
-            mDynamicSettingsFile.finishWrite(fos);
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error writing dynamic AIDs", e);
-            if (fos != null) {
-                mDynamicSettingsFile.failWrite(fos);
+        }
+        out.flush();
+    }
+
+    private void serializeDynamicSettingsLocked(OutputStream os) throws IOException {
+        XmlSerializer out = Xml.newSerializer();
+        out.setOutput(os, "utf-8");
+        out.startDocument(null, true);
+        out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
+        out.startTag(null, "services");
+        out.attribute(null, CompactSettingsFormat.XML_MIGRATED_ATTRIBUTE, "true");
+        for (int i = 0; i < mUserServices.size(); i++) {
+            final UserServices user = mUserServices.valueAt(i);
+            for (Map.Entry<ComponentName, DynamicSettings> service :
+                    user.dynamicSettings.entrySet()) {
+                out.startTag(null, "service");
+                out.attribute(null, "component", service.getKey().flattenToString());
+                out.attribute(null, "uid", Integer.toString(service.getValue().uid));
+                if(service.getValue().offHostSE != null) {
+                    out.attribute(null, "offHostSE", service.getValue().offHostSE);
+                }
+                if (service.getValue().shouldDefaultToObserveModeStr != null) {
+                    out.attribute(null, "shouldDefaultToObserveMode",
+                            service.getValue().shouldDefaultToObserveModeStr);
+                }
+                for (AidGroup group : service.getValue().aidGroups.values()) {
+                    group.writeAsXml(out);
+                }
+                out.endTag(null, "service");
             }
-            return false;
         }
+        out.endTag(null, "services");
+        out.endDocument();
     }
 
-    private boolean writeOthersLocked() {
+    private void writeOthersLocked() {
         Log.d(TAG, "write Others Locked()");
+        mOthersBinaryWriter.scheduleWrite();
+        mOthersWriter.scheduleWrite();
+    }
 
-        FileOutputStream fos = null;
-        try {
-            fos = mOthersFile.startWrite();
-            XmlSerializer out = new FastXmlSerializer();
-            out.setOutput(fos, "utf-8");
-            out.startDocument(null, true);
-            out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
-            out.startTag(null, "services");
-
-            Log.d(TAG, "userServices.size: " + mUserServices.size());
-            for (int i = 0; i < mUserServices.size(); i++) {
-                final UserServices user = mUserServices.valueAt(i);
-                int userId = mUserServices.keyAt(i);
-                // Checking for 1 times
-                Log.d(TAG, "userId: " + userId);
-                Log.d(TAG, "others size: " + user.others.size());
-                ArrayList<ComponentName> currentService = new ArrayList<ComponentName>();
-                for (Map.Entry<ComponentName, OtherServiceStatus> service :
-                        user.others.entrySet()) {
-                    Log.d(TAG, "component: " + service.getKey().flattenToString() +
-                            ", checked: " + service.getValue().checked);
-
-                    boolean hasDupe = false;
-                    for (ComponentName cn : currentService) {
-                        if (cn.equals(service.getKey())) {
-                            hasDupe = true;
-                            break;
-                        }
-                    }
-                    if (hasDupe) {
-                        continue;
-                    } else {
-                        Log.d(TAG, "Already written.");
-                        currentService.add(service.getKey());
-                    }
+    private void serializeOthersBinaryLocked(OutputStream os) throws IOException {
+        DataOutputStream out = CompactSettingsFormat.startWrite(os,
+                CompactSettingsFormat.TYPE_OTHER_STATUS);
+        int count = 0;
+        for (int i = 0; i < mUserServices.size(); i++) {
+            count += mUserServices.valueAt(i).others.size();
+        }
+        out.writeInt(count);
+        for (int i = 0; i < mUserServices.size(); i++) {
+            for (Map.Entry<ComponentName, OtherServiceStatus> service :
+                    mUserServices.valueAt(i).others.entrySet()) {
+                out.writeUTF(service.getKey().flattenToString());
+                out.writeInt(service.getValue().uid);
+                out.writeBoolean(service.getValue().checked);
+            }
+        }
+        out.flush();
+    }
 
-                    out.startTag(null, "service");
-                    out.attribute(null, "component", service.getKey().flattenToString());
-                    out.attribute(null, "uid", Integer.toString(service.getValue().uid));
-                    out.attribute(null, "checked", Boolean.toString(service.getValue().checked));
-                    out.endTag(null, "service");
+    private void serializeOthersLocked(OutputStream os) throws IOException {
+        XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(os, "utf-8");
+        out.startDocument(null, true);
+        out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
+        out.startTag(null, "services");
+        out.attribute(null, CompactSettingsFormat.XML_MIGRATED_ATTRIBUTE, "true");
+
+        Log.d(TAG, "userServices.size: " + mUserServices.size());
+        for (int i = 0; i < mUserServices.size(); i++) {
+            final UserServices user = mUserServices.valueAt(i);
+            int userId = mUserServices.keyAt(i);
+            // Checking for 1 times
+            Log.d(TAG, "userId: " + userId);
+            Log.d(TAG, "others size: " + user.others.size());
+            ArrayList<ComponentName> currentService = new ArrayList<ComponentName>();
+            for (Map.Entry<ComponentName, OtherServiceStatus> service :
+                    user.others.entrySet()) {
+                Log.d(TAG, "component: " + service.getKey().flattenToString() +
+                        ", checked: " + service.getValue().checked);
+
+                boolean hasDupe = false;
+                for (ComponentName cn : currentService) {
+                    if (cn.equals(service.getKey())) {
+                        hasDupe = true;
+                        break;
+                    }
                 }
+                if (hasDupe) {
+                    continue;
+                } else {
+                    Log.d(TAG, "Already written.");
+                    currentService.add(service.getKey());
+                }
+
+                out.startTag(null, "service");
+                out.attribute(null, "component", service.getKey().flattenToString());
+                out.attribute(null, "uid", Integer.toString(service.getValue().uid));
+                out.attribute(null, "checked", Boolean.toString(service.getValue().checked));
+                out.endTag(null, "service");
             }
-            out.endTag(null, "services");
-            out.endDocument();
-            mOthersFile.finishWrite(fos);
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error writing dynamic AIDs", e);
-            if (fos != null) {
-                mOthersFile.failWrite(fos);
-            }
-            return false;
         }
+        out.endTag(null, "services");
+        out.endDocument();
+    }
+
+    /** Writes pending dynamic settings and other service states now, e.g. on shutdown. */
+    public void flushPendingWrites() {
+        mDynamicSettingsWriter.flush();
+        mDynamicSettingsBinaryWriter.flush();
+        mOthersWriter.flush();
+        mOthersBinaryWriter.flush();
     }
 
     public boolean setOffHostSecureElement(int userId, int uid, ComponentName componentName,
@@ -829,12 +1164,7 @@ public class RegisteredServicesCache {
                 dynSettings = new DynamicSettings(uid);
             }
             dynSettings.offHostSE = offHostSE;
-            boolean success = writeDynamicSettingsLocked();
-            if (!success) {
-                Log.e(TAG, "Failed to persist AID group.");
-                dynSettings.offHostSE = null;
-                return false;
-            }
+            writeDynamicSettingsLocked();
 
             serviceInfo.setOffHostSecureElement(offHostSE);
             newServices = new ArrayList<ApduServiceInfo>(services.services.values());
@@ -870,12 +1200,7 @@ public class RegisteredServicesCache {
             DynamicSettings dynSettings = services.dynamicSettings.get(componentName);
             String offHostSE = dynSettings.offHostSE;
             dynSettings.offHostSE = null;
-            boolean success = writeDynamicSettingsLocked();
-            if (!success) {
-                Log.e(TAG, "Failed to persist AID group.");
-                dynSettings.offHostSE = offHostSE;
-                return false;
-            }
+            writeDynamicSettingsLocked();
 
             serviceInfo.resetOffHostSecureElement();
             newServices = new ArrayList<ApduServiceInfo>(services.services.values());
@@ -983,15 +1308,10 @@ public class RegisteredServicesCache {
                 services.dynamicSettings.put(componentName, dynSettings);
             }
             dynSettings.aidGroups.put(aidGroup.getCategory(), aidGroup);
-            success = writeDynamicSettingsLocked();
-            if (success) {
-                newServices =
-                    new ArrayList<ApduServiceInfo>(services.services.values());
-            } else {
-                Log.e(TAG, "Failed to persist AID group.");
-                // Undo registration
-                dynSettings.aidGroups.remove(aidGroup.getCategory());
-            }
+            writeDynamicSettingsLocked();
+            newServices =
+                new ArrayList<ApduServiceInfo>(services.services.values());
+            success = true;
         }
         if (success) {
             // Make callback without the lock held
@@ -1070,15 +1390,10 @@ public class RegisteredServicesCache {
                 // Remove from local cache
                 DynamicSettings dynSettings = services.dynamicSettings.get(componentName);
                 if (dynSettings != null) {
-                    AidGroup deletedGroup = dynSettings.aidGroups.remove(category);
-                    success = writeDynamicSettingsLocked();
-                    if (success) {
-                        newServices = new ArrayList<ApduServiceInfo>(services.services.values());
-                    } else {
-                        Log.e(TAG, "Could not persist deleted AID group.");
-                        dynSettings.aidGroups.put(category, deletedGroup);
-                        return false;
-                    }
+                    dynSettings.aidGroups.remove(category);
+                    writeDynamicSettingsLocked();
+                    newServices = new ArrayList<ApduServiceInfo>(services.services.values());
+                    success = true;
                 } else {
                     Log.e(TAG, "Could not find aid group in local cache.");
                 }
@@ -1120,7 +1435,8 @@ public class RegisteredServicesCache {
         service.setCategoryOtherServiceEnabled(checked);
         status.checked = checked;
 
-        return writeOthersLocked();
+        writeOthersLocked();
+        return true;
     }
 
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
@@ -1145,6 +1461,10 @@ public class RegisteredServicesCache {
         } catch (IOException e) {
             pw.println("Failed to dump HCE services: " + e);
         }
+        mDynamicSettingsWriter.dump(pw);
+        mDynamicSettingsBinaryWriter.dump(pw);
+        mOthersWriter.dump(pw);
+        mOthersBinaryWriter.dump(pw);
     }
 
     /**
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+
+/**
+ * Cache of parsed service metadata, shared by the HCE and HCE-F service caches.
+ *
+ * Entries are keyed by component, uid, package version code and last update time,
+ * so an entry can only be hit while the package is unchanged. Parsed infos are
+ * mutated at run-time (dynamic AIDs, other service state), so they are stored as
+ * parcels and every hit returns a fresh copy.
+ */
+class ServiceInfoParseCache {
+    static final int MAX_ENTRIES = 256;
+
+    private static ServiceInfoParseCache sInstance;
+
+    // Synchronized on this.
+    private final LruCache<String, byte[]> mEntries = new LruCache<>(MAX_ENTRIES);
+    private int mHits;
+    private int mMisses;
+
+    static synchronized ServiceInfoParseCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ServiceInfoParseCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cache key of a resolved service, or null if its package is gone.
+     *
+     * @param variant distinguishes different parsers of the same component
+     */
+    static String makeKey(PackageManager pm, ResolveInfo resolvedService, String variant) {
+        ServiceInfo si = resolvedService.serviceInfo;
+        PackageInfo pi;
+        try {
+            pi = pm.getPackageInfo(si.packageName, 0);
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+        return variant + ":" + si.packageName + "/" + si.name + ":" + si.applicationInfo.uid
+                + ":" + pi.getLongVersionCode() + ":" + pi.lastUpdateTime;
+    }
+
+    /** Returns a copy of the cached info for this key, or null. */
+    synchronized <T extends Parcelable> T get(String key, Parcelable.Creator<T> creator) {
+        byte[] data = key == null ? null : mEntries.get(key);
+        if (data == null) {
+            mMisses++;
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            mHits++;
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** Stores a freshly parsed info, before any run-time state is applied to it. */
+    synchronized void put(String key, Parcelable info) {
+        if (key == null) {
+            return;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            info.writeToParcel(parcel, 0);
+            mEntries.put(key, parcel.marshall());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        int total = mHits + mMisses;
+        pw.println("Service info parse cache: size=" + mEntries.size() + "/" + MAX_ENTRIES
+                + " hits=" + mHits + " misses=" + mMisses
+                + " hitRate=" + (total == 0 ? 0 : (mHits * 100 / total)) + "%");
+    }
+}
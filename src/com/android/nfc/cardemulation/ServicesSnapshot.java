@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Persisted snapshot of the parsed card emulation services of each user.
+ *
+ * At boot the snapshot is restored instead of re-parsing every service, and is
+ * then checked in the background against the installed services. Each user entry
+ * keeps a state string built from the resolved components and the last update time
+ * of their packages; any difference triggers a full rescan.
+ *
+ * The services are stored as parcels, whose format is only stable within a build,
+ * so the snapshot is discarded when the build fingerprint changes.
+ */
+class ServicesSnapshot {
+    static final String TAG = "ServicesSnapshot";
+    static final int VERSION = 1;
+
+    private static final class UserEntry {
+        final String state;
+        final byte[] services;
+
+        UserEntry(String state, byte[] services) {
+            this.state = state;
+            this.services = services;
+        }
+    }
+
+    private final AtomicFile mFile;
+    // Synchronized on this
+    private final SparseArray<UserEntry> mEntries = new SparseArray<>();
+
+    ServicesSnapshot(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /** Loads the snapshot, keeping it empty if it is missing or from another build. */
+    synchronized void load() {
+        mEntries.clear();
+        if (!mFile.getBaseFile().exists()) {
+            return;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            byte[] data = mFile.readFully();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            if (parcel.readInt() != VERSION || !Build.FINGERPRINT.equals(parcel.readString())) {
+                Log.i(TAG, "Snapshot is from another version, ignoring");
+                return;
+            }
+            int count = parcel.readInt();
+            for (int i = 0; i < count; i++) {
+                int userId = parcel.readInt();
+                String state = parcel.readString();
+                byte[] services = parcel.createByteArray();
+                mEntries.put(userId, new UserEntry(state, services));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not read services snapshot, trashing.", e);
+            mEntries.clear();
+            mFile.delete();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** Returns freshly unparcelled services of this user, or null if there is no entry. */
+    synchronized ArrayList<ApduServiceInfo> getServices(int userId) {
+        UserEntry entry = mEntries.get(userId);
+        if (entry == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(entry.services, 0, entry.services.length);
+            parcel.setDataPosition(0);
+            return parcel.createTypedArrayList(ApduServiceInfo.CREATOR);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not restore services of user " + userId, e);
+            mEntries.remove(userId);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    synchronized String getState(int userId) {
+        UserEntry entry = mEntries.get(userId);
+        return entry == null ? null : entry.state;
+    }
+
+    /**
+     * Stores the services of this user and writes the snapshot. Must be called
+     * before dynamic settings are applied to the services.
+     */
+    synchronized void update(int userId, String state, List<ApduServiceInfo> services) {
+        if (state == null) {
+            return;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(services);
+            mEntries.put(userId, new UserEntry(state, parcel.marshall()));
+        } finally {
+            parcel.recycle();
+        }
+        writeLocked();
+    }
+
+    /**
+     * Replaces the services and state of one package in the entry of this user, and
+     * returns the services of all packages as parsed. Returns null for users without
+     * an entry, which are left alone and need a full scan.
+     */
+    synchronized ArrayList<ApduServiceInfo> updatePackage(int userId, String packageName,
+            String packageState, List<ApduServiceInfo> packageServices) {
+        UserEntry entry = mEntries.get(userId);
+        if (entry == null || packageState == null) {
+            return null;
+        }
+        ArrayList<ApduServiceInfo> services = getServices(userId);
+        if (services == null) {
+            return null;
+        }
+        services.removeIf(
+                service -> packageName.equals(service.getComponent().getPackageName()));
+        services.addAll(packageServices);
+
+        String prefix = packageName + "/";
+        ArrayList<String> entries = new ArrayList<>();
+        for (String state : entry.state.split(",")) {
+            if (!state.isEmpty() && !state.startsWith(prefix)) {
+                entries.add(state);
+            }
+        }
+        for (String state : packageState.split(",")) {
+            if (!state.isEmpty()) {
+                entries.add(state);
+            }
+        }
+        Collections.sort(entries);
+        update(userId, String.join(",", entries), services);
+        return services;
+    }
+
+    private void writeLocked() {
+        Parcel parcel = Parcel.obtain();
+        FileOutputStream fos = null;
+        try {
+            parcel.writeInt(VERSION);
+            parcel.writeString(Build.FINGERPRINT);
+            parcel.writeInt(mEntries.size());
+            for (int i = 0; i < mEntries.size(); i++) {
+                UserEntry entry = mEntries.valueAt(i);
+                parcel.writeInt(mEntries.keyAt(i));
+                parcel.writeString(entry.state);
+                parcel.writeByteArray(entry.services);
+            }
+            fos = mFile.startWrite();
+            fos.write(parcel.marshall());
+            mFile.finishWrite(fos);
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing services snapshot", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Returns a string that changes whenever a service component is added or removed,
+     * or the package providing it is updated.
+     */
+    static String computeState(PackageManager pm, List<ResolveInfo> resolvedServices) {
+        HashMap<String, Long> updateTimes = new HashMap<>();
+        ArrayList<String> entries = new ArrayList<>();
+        for (ResolveInfo resolvedService : resolvedServices) {
+            ServiceInfo si = resolvedService.serviceInfo;
+            Long updateTime = updateTimes.get(si.packageName);
+            if (updateTime == null) {
+                try {
+                    updateTime = pm.getPackageInfo(si.packageName, 0).lastUpdateTime;
+                } catch (NameNotFoundException e) {
+                    updateTime = -1L;
+                }
+                updateTimes.put(si.packageName, updateTime);
+            }
+            entries.add(si.packageName + "/" + si.name + "@" + updateTime);
+        }
+        Collections.sort(entries);
+        return String.join(",", entries);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * Write-behind persister of a settings file.
+ *
+ * Changes only mark the file dirty; a single write of the latest state happens on
+ * a background thread after a short delay, or on {@link #flush}. The state is
+ * serialized under the owner's lock so every write is a consistent snapshot, and
+ * the file is replaced through {@link AtomicFile}, so a crash at any point leaves
+ * either the previous or the new content on disk. A failed write keeps the file
+ * dirty and is retried; it is logged and shown in dumps, since the change it
+ * persists has already been applied and acknowledged by the owner.
+ */
+class WriteBehindFile {
+    static final String TAG = "WriteBehindFile";
+    static final long DEFAULT_DELAY_MS = 500;
+
+    /** Writes the current state, called with the owner's lock held. */
+    interface Serializer {
+        void serialize(OutputStream out) throws IOException;
+    }
+
+    private static HandlerThread sThread;
+
+    private final AtomicFile mFile;
+    private final Object mLock;
+    private final Serializer mSerializer;
+    private final Handler mHandler;
+    private final long mDelayMs;
+    // Serializes file writes, taken before mLock
+    private final Object mWriteLock = new Object();
+    private final Runnable mFlushRunnable = this::flush;
+
+    // Synchronized on mLock
+    private boolean mDirty;
+    private boolean mScheduled;
+    private boolean mLastWriteFailed;
+    private int mRequests;
+    private int mWrites;
+
+    WriteBehindFile(AtomicFile file, Object lock, Serializer serializer) {
+        this(file, lock, serializer, new Handler(getThread().getLooper()), DEFAULT_DELAY_MS);
+    }
+
+    WriteBehindFile(AtomicFile file, Object lock, Serializer serializer, Handler handler,
+            long delayMs) {
+        mFile = file;
+        mLock = lock;
+        mSerializer = serializer;
+        mHandler = handler;
+        mDelayMs = delayMs;
+    }
+
+    private static synchronized HandlerThread getThread() {
+        if (sThread == null) {
+            sThread = new HandlerThread("NfcSettingsWriter");
+            sThread.start();
+        }
+        return sThread;
+    }
+
+    /** Marks the file dirty and schedules a write. Must be called with the owner's lock held. */
+    void scheduleWrite() {
+        mDirty = true;
+        mRequests++;
+        scheduleLocked();
+    }
+
+    private void scheduleLocked() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mDelayMs);
+        }
+    }
+
+    /**
+     * Writes the file now if it is dirty, e.g. on shutdown. Must not be called with
+     * the owner's lock held. Returns false if the write failed.
+     */
+    boolean flush() {
+        synchronized (mWriteLock) {
+            byte[] data;
+            synchronized (mLock) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mScheduled = false;
+                if (!mDirty) {
+                    return !mLastWriteFailed;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    mSerializer.serialize(out);
+                } catch (IOException | RuntimeException e) {
+                    // Retrying the same state won't help, wait for the next change.
+                    Log.e(TAG, "Error serializing " + mFile.getBaseFile(), e);
+                    mLastWriteFailed = true;
+                    return false;
+                }
+                data = out.toByteArray();
+                mDirty = false;
+            }
+
+            FileOutputStream fos = null;
+            try {
+                fos = mFile.startWrite();
+                fos.write(data);
+                mFile.finishWrite(fos);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing " + mFile.getBaseFile(), e);
+                if (fos != null) {
+                    mFile.failWrite(fos);
+                }
+                synchronized (mLock) {
+                    mDirty = true;
+                    mLastWriteFailed = true;
+                    scheduleLocked();
+                }
+                return false;
+            }
+            synchronized (mLock) {
+                mLastWriteFailed = false;
+                mWrites++;
+            }
+            return true;
+        }
+    }
+
+    int getWriteCount() {
+        synchronized (mLock) {
+            return mWrites;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(mFile.getBaseFile().getName() + ": requests=" + mRequests
+                    + " writes=" + mWrites + " dirty=" + mDirty
+                    + " lastWriteFailed=" + mLastWriteFailed);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.ResolveInfoFlags;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.nfc.NfcAdapter;
+import android.os.SystemClock;
+import android.os.UserHandle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public final class DispatchResolutionCacheTest {
+    private static final UserHandle USER = UserHandle.of(0);
+    private static final Intent INTENT = new Intent(NfcAdapter.ACTION_NDEF_DISCOVERED,
+            Uri.parse("https://example.com/kiosk"));
+
+    private PackageManager mPackageManager;
+
+    @Before
+    public void setUp() {
+        mPackageManager = mock(PackageManager.class);
+        when(mPackageManager.queryIntentActivitiesAsUser(any(Intent.class),
+                any(ResolveInfoFlags.class), any(UserHandle.class)))
+                .thenAnswer(invocation -> activities());
+    }
+
+    private static List<ResolveInfo> activities() {
+        ResolveInfo ri = new ResolveInfo();
+        ri.activityInfo = new ActivityInfo();
+        ri.activityInfo.packageName = "com.example.kiosk";
+        ri.activityInfo.exported = true;
+        List<ResolveInfo> activities = new ArrayList<>();
+        activities.add(ri);
+        return activities;
+    }
+
+    private void verifyQueries(int count) {
+        verify(mPackageManager, times(count)).queryIntentActivitiesAsUser(any(Intent.class),
+                any(ResolveInfoFlags.class), any(UserHandle.class));
+    }
+
+    @Test
+    public void testRepeatedLookupsHitTheCache() {
+        DispatchResolutionCache cache = new DispatchResolutionCache();
+
+        List<ResolveInfo> first = cache.queryExportedActivities(mPackageManager, INTENT, USER);
+        List<ResolveInfo> second = cache.queryExportedActivities(mPackageManager, INTENT, USER);
+
+        assertThat(second).isSameInstanceAs(first);
+        verifyQueries(1);
+    }
+
+    @Test
+    public void testInvalidationDuringLookupIsNotCached() {
+        DispatchResolutionCache cache = new DispatchResolutionCache();
+        // A package change arrives while PackageManager is being queried.
+        when(mPackageManager.queryIntentActivitiesAsUser(any(Intent.class),
+                any(ResolveInfoFlags.class), any(UserHandle.class)))
+                .thenAnswer(invocation -> {
+                    cache.invalidate();
+                    return activities();
+                });
+
+        assertThat(cache.queryExportedActivities(mPackageManager, INTENT, USER)).hasSize(1);
+        cache.queryExportedActivities(mPackageManager, INTENT, USER);
+
+        verifyQueries(2);
+    }
+
+    @Test
+    public void testInvalidationClearsEntries() {
+        DispatchResolutionCache cache = new DispatchResolutionCache();
+        cache.queryExportedActivities(mPackageManager, INTENT, USER);
+
+        cache.invalidate();
+        cache.queryExportedActivities(mPackageManager, INTENT, USER);
+
+        verifyQueries(2);
+    }
+
+    @Test
+    public void testEntriesExpire() {
+        DispatchResolutionCache cache = new DispatchResolutionCache(50);
+        cache.queryExportedActivities(mPackageManager, INTENT, USER);
+
+        SystemClock.sleep(100);
+        cache.queryExportedActivities(mPackageManager, INTENT, USER);
+
+        verifyQueries(2);
+    }
+
+    @Test
+    public void testUnexportedActivitiesAreFiltered() {
+        when(mPackageManager.queryIntentActivitiesAsUser(any(Intent.class),
+                any(ResolveInfoFlags.class), any(UserHandle.class)))
+                .thenAnswer(invocation -> {
+                    List<ResolveInfo> activities = activities();
+                    activities.get(0).activityInfo.exported = false;
+                    return activities;
+                });
+
+        assertThat(new DispatchResolutionCache()
+                .queryExportedActivities(mPackageManager, INTENT, USER)).isEmpty();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@RunWith(AndroidJUnit4.class)
+public final class DispatchTraceLogTest {
+    private final DispatchTraceLog mLog = new DispatchTraceLog();
+
+    private String dump() {
+        StringWriter out = new StringWriter();
+        mLog.dump(new PrintWriter(out, true));
+        return out.toString();
+    }
+
+    @Test
+    public void testStagesAreDumped() {
+        DispatchTraceLog.Trace trace = mLog.begin();
+        long start = trace.now();
+        trace.record(DispatchTraceLog.STAGE_OVERRIDES, start,
+                DispatchTraceLog.OUTCOME_FELL_THROUGH, "no foreground dispatch");
+        trace.record(DispatchTraceLog.STAGE_NDEF, start, DispatchTraceLog.OUTCOME_MATCHED, null);
+        mLog.end(trace, NfcDispatcher.DISPATCH_SUCCESS);
+
+        String dump = dump();
+        assertThat(dump).contains("last 1 of 1");
+        assertThat(dump).contains("overrides");
+        assertThat(dump).contains("fell-through (no foreground dispatch)");
+        assertThat(dump).contains("ndef");
+    }
+
+    @Test
+    public void testTracesAreRecycledWhenFull() {
+        DispatchTraceLog.Trace first = mLog.begin();
+        mLog.end(first, NfcDispatcher.DISPATCH_FAIL);
+        for (int i = 1; i < DispatchTraceLog.MAX_TRACES; i++) {
+            mLog.end(mLog.begin(), NfcDispatcher.DISPATCH_FAIL);
+        }
+
+        assertThat(mLog.begin()).isSameInstanceAs(first);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.nfc.NfcAdapter;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+public final class ForegroundDispatchMatcherTest {
+    private static final String TAG = ForegroundDispatchMatcherTest.class.getSimpleName();
+
+    private static final String NFC_A = "android.nfc.tech.NfcA";
+    private static final String ISO_DEP = "android.nfc.tech.IsoDep";
+    private static final String NDEF = "android.nfc.tech.Ndef";
+    private static final String UNKNOWN = "com.example.tech.Unknown";
+
+    private static String[] sorted(String... techs) {
+        Arrays.sort(techs);
+        return techs;
+    }
+
+    private static boolean isTechMatch(ForegroundDispatchMatcher matcher, String... tagTechs) {
+        String[] sortedTechs = sorted(tagTechs);
+        return matcher.isTechMatch(TechListIndex.maskOf(sortedTechs), sortedTechs);
+    }
+
+    @Test
+    public void testTechListsMatchSubsetsOfTheTag() {
+        ForegroundDispatchMatcher matcher = new ForegroundDispatchMatcher(null, null,
+                new String[][] {{NFC_A, ISO_DEP}, {}});
+
+        assertThat(isTechMatch(matcher, NFC_A, ISO_DEP, NDEF)).isTrue();
+        assertThat(isTechMatch(matcher, NFC_A, NDEF)).isFalse();
+    }
+
+    @Test
+    public void testUnknownTechsFallBackToNames() {
+        ForegroundDispatchMatcher matcher = new ForegroundDispatchMatcher(null, null,
+                new String[][] {{NFC_A, UNKNOWN}});
+
+        assertThat(isTechMatch(matcher, NFC_A, UNKNOWN)).isTrue();
+        assertThat(isTechMatch(matcher, NFC_A, NDEF)).isFalse();
+    }
+
+    @Test
+    public void testFiltersMatchByTypeAndScheme() throws Exception {
+        IntentFilter typeFilter = new IntentFilter(NfcAdapter.ACTION_NDEF_DISCOVERED,
+                "text/plain");
+        IntentFilter schemeFilter = new IntentFilter(NfcAdapter.ACTION_NDEF_DISCOVERED);
+        schemeFilter.addDataScheme("https");
+        IntentFilter tagFilter = new IntentFilter(NfcAdapter.ACTION_TAG_DISCOVERED);
+        ForegroundDispatchMatcher matcher = new ForegroundDispatchMatcher(null,
+                new IntentFilter[] {typeFilter, schemeFilter, tagFilter}, null);
+
+        Intent text = new Intent(NfcAdapter.ACTION_NDEF_DISCOVERED).setType("text/plain");
+        Intent https = new Intent(NfcAdapter.ACTION_NDEF_DISCOVERED,
+                Uri.parse("https://example.com"));
+        Intent http = new Intent(NfcAdapter.ACTION_NDEF_DISCOVERED,
+                Uri.parse("http://example.com"));
+        Intent tag = new Intent(NfcAdapter.ACTION_TAG_DISCOVERED);
+        assertThat(matcher.isFilterMatch(null, text, TAG)).isTrue();
+        assertThat(matcher.isFilterMatch(null, https, TAG)).isTrue();
+        assertThat(matcher.isFilterMatch(null, http, TAG)).isFalse();
+        assertThat(matcher.isFilterMatch(null, tag, TAG)).isTrue();
+        assertThat(matcher.isFilterMatch(null,
+                new Intent(NfcAdapter.ACTION_TECH_DISCOVERED), TAG)).isFalse();
+    }
+
+    @Test
+    public void testNoFiltersMatchOnlyWithoutTechLists() {
+        Intent tag = new Intent(NfcAdapter.ACTION_TAG_DISCOVERED);
+
+        assertThat(new ForegroundDispatchMatcher(null, null, null)
+                .isFilterMatch(null, tag, TAG)).isTrue();
+        assertThat(new ForegroundDispatchMatcher(null, null, new String[][] {{NFC_A}})
+                .isFilterMatch(null, tag, TAG)).isFalse();
+    }
+}
@@ -117,9 +117,10 @@ public final class NfcDispatcherTest {
             }
         };
 
-        InstrumentationRegistry.getInstrumentation().runOnMainSync(
-              () -> mNfcDispatcher = new NfcDispatcher(mockContext,
-                      new HandoverDataParser(), false));
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            mNfcDispatcher = new NfcDispatcher(mockContext, new HandoverDataParser(), false);
+            mNfcDispatcher.initializeTechListFilters();
+        });
         Assert.assertNotNull(mNfcDispatcher);
     }
 
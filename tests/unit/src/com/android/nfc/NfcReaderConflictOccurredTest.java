@@ -127,9 +127,10 @@ public final class NfcReaderConflictOccurredTest {
             }
         };
 
-        InstrumentationRegistry.getInstrumentation().runOnMainSync(
-              () -> mNfcDispatcher = new NfcDispatcher(
-                      mockContext, new HandoverDataParser(), false));
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            mNfcDispatcher = new NfcDispatcher(mockContext, new HandoverDataParser(), false);
+            mNfcDispatcher.initializeTechListFilters();
+        });
         Assert.assertNotNull(mNfcDispatcher);
     }
 
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@RunWith(AndroidJUnit4.class)
+public final class NfcWatchdogTest {
+    private static final String OPERATION = "applyRouting";
+
+    private final List<String> mExpired = new ArrayList<>();
+    private final CountDownLatch mExpiredLatch = new CountDownLatch(1);
+
+    private final NfcWatchdog mWatchdog = new NfcWatchdog(operation -> {
+        synchronized (mExpired) {
+            mExpired.add(operation);
+        }
+        mExpiredLatch.countDown();
+    });
+
+    private List<String> getExpired() {
+        synchronized (mExpired) {
+            return new ArrayList<>(mExpired);
+        }
+    }
+
+    private String dump() {
+        StringWriter out = new StringWriter();
+        mWatchdog.dump(new PrintWriter(out, true));
+        return out.toString();
+    }
+
+    /** Returns the sum of the histogram buckets of {@code operation}. */
+    private int getRecordedCount(String operation) {
+        int count = 0;
+        for (String line : dump().split("\n")) {
+            if (line.startsWith("  " + operation + ":")) {
+                Matcher bucket = Pattern.compile("\\)=(\\d+)").matcher(line);
+                while (bucket.find()) {
+                    count += Integer.parseInt(bucket.group(1));
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testCancelBeforeDeadlineDoesNotExpire() {
+        NfcWatchdog.Handle handle = mWatchdog.start(OPERATION, 200);
+        handle.cancel();
+        handle.cancel();
+
+        SystemClock.sleep(400);
+
+        assertThat(getExpired()).isEmpty();
+        assertThat(getRecordedCount(OPERATION)).isEqualTo(1);
+        assertThat(dump()).contains("expired=0");
+    }
+
+    @Test
+    public void testExpiryNotifiesOnce() throws Exception {
+        NfcWatchdog.Handle handle = mWatchdog.start(OPERATION, 10);
+
+        assertThat(mExpiredLatch.await(5, TimeUnit.SECONDS)).isTrue();
+        // Cancelling after expiry neither notifies again nor records a duration.
+        handle.cancel();
+        SystemClock.sleep(100);
+
+        assertThat(getExpired()).containsExactly(OPERATION);
+        assertThat(dump()).contains("  " + OPERATION + ": [0-10)=0 [10-50)=0 [50-100)=0"
+                + " [100-500)=0 [500-1000)=0 [1000-5000)=0 [5000+)=0 max=0 expired=1");
+    }
+
+    @Test
+    public void testDurationsAreRecordedInBuckets() {
+        mWatchdog.record(OPERATION, 0);
+        mWatchdog.record(OPERATION, 9);
+        mWatchdog.record(OPERATION, 10);
+        mWatchdog.record(OPERATION, 499);
+        mWatchdog.record(OPERATION, 5000);
+        mWatchdog.record(OPERATION, 60000);
+        mWatchdog.record("enableInternal", 700);
+
+        String dump = dump();
+
+        assertThat(dump).contains("  " + OPERATION + ": [0-10)=2 [10-50)=1 [50-100)=0"
+                + " [100-500)=1 [500-1000)=0 [1000-5000)=0 [5000+)=2 max=60000 expired=0");
+        assertThat(dump).contains("  enableInternal: [0-10)=0 [10-50)=0 [50-100)=0"
+                + " [100-500)=0 [500-1000)=1 [1000-5000)=0 [5000+)=0 max=700 expired=0");
+        assertThat(getExpired()).isEmpty();
+    }
+}
@@ -140,9 +140,11 @@ public final class RegisteredComponentCacheTest {
             }
         };
 
-        InstrumentationRegistry.getInstrumentation().runOnMainSync(
-                () -> mRegisteredComponentCache = new RegisteredComponentCache(mockContext,
-                        NfcAdapter.ACTION_TECH_DISCOVERED, NfcAdapter.ACTION_TECH_DISCOVERED));
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            mRegisteredComponentCache = new RegisteredComponentCache(mockContext,
+                    NfcAdapter.ACTION_TECH_DISCOVERED, NfcAdapter.ACTION_TECH_DISCOVERED);
+            mRegisteredComponentCache.initialize();
+        });
         Assert.assertNotNull(mRegisteredComponentCache);
     }
 
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public final class RfFieldEventPublisherTest {
+    private final List<String> mSent = new ArrayList<>();
+    private final HashMap<Integer, List<String>> mPackages = new HashMap<>();
+    private RfFieldEventPublisher mPublisher;
+
+    @Before
+    public void setUp() {
+        mPublisher = new RfFieldEventPublisher((fieldOn, userId, packages) ->
+                mSent.add((fieldOn ? "on" : "off") + userId + packages));
+        mPackages.put(0, List.of("com.a", "com.b"));
+        mPackages.put(10, List.of("com.a"));
+    }
+
+    @Test
+    public void testOneSendPerUser() {
+        assertThat(mPublisher.onFieldChanged(true)).isTrue();
+        assertThat(mPublisher.publish(mPackages, 0)).isTrue();
+
+        assertThat(mSent).containsExactly("on0[com.a, com.b]", "on10[com.a]");
+    }
+
+    @Test
+    public void testBurstIsCoalesced() {
+        mPublisher.onFieldChanged(true);
+        mPublisher.publish(mPackages, 0);
+        mSent.clear();
+
+        assertThat(mPublisher.onFieldChanged(false)).isFalse();
+        assertThat(mPublisher.onFieldChanged(true)).isFalse();
+        assertThat(mPublisher.onFieldChanged(false)).isFalse();
+
+        // Still rate limited at the end of the first window.
+        assertThat(mPublisher.publish(mPackages, RfFieldEventPublisher.COALESCE_WINDOW_MS))
+                .isTrue();
+        assertThat(mSent).isEmpty();
+
+        assertThat(mPublisher.publish(mPackages,
+                RfFieldEventPublisher.MIN_PACKAGE_INTERVAL_MS)).isTrue();
+        assertThat(mSent).containsExactly("off0[com.a, com.b]", "off10[com.a]");
+
+        // Nothing left to tell, the window closes.
+        mSent.clear();
+        assertThat(mPublisher.publish(mPackages,
+                2 * RfFieldEventPublisher.MIN_PACKAGE_INTERVAL_MS)).isFalse();
+        assertThat(mSent).isEmpty();
+        assertThat(mPublisher.onFieldChanged(true)).isTrue();
+    }
+
+    @Test
+    public void testOffIsNotSentToPackagesNeverToldOn() {
+        mPublisher.onFieldChanged(false);
+
+        assertThat(mPublisher.publish(mPackages, 0)).isFalse();
+        assertThat(mSent).isEmpty();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public final class TagAppPrefsTest {
+    private final List<String> mAllowed = new ArrayList<>();
+    private int mReads;
+    private TagAppPrefs mPrefs;
+
+    @Before
+    public void setUp() {
+        mPrefs = new TagAppPrefs(new TagAppPrefs.Store() {
+            @Override
+            public Map<String, Boolean> getTagAppPrefs(int userId) {
+                mReads++;
+                HashMap<String, Boolean> prefs = new HashMap<>();
+                prefs.put("com.muted", false);
+                prefs.put("com.allowed", true);
+                return prefs;
+            }
+
+            @Override
+            public void addAllowedTagApps(int userId, Set<String> packages) {
+                mAllowed.add(userId + ":" + packages);
+            }
+        });
+    }
+
+    @Test
+    public void testPrefsAreReadOncePerUser() {
+        assertThat(mPrefs.isAllowed(0, "com.muted")).isFalse();
+        assertThat(mPrefs.isAllowed(0, "com.allowed")).isTrue();
+        assertThat(mPrefs.isAllowed(10, "com.muted")).isFalse();
+
+        assertThat(mReads).isEqualTo(2);
+    }
+
+    @Test
+    public void testNewPackagesAreAllowedInOneBatch() {
+        assertThat(mPrefs.isAllowed(0, "com.new1")).isTrue();
+        assertThat(mPrefs.get(0, "com.new2")).isNull();
+        assertThat(mPrefs.isAllowed(0, "com.new1")).isTrue();
+        assertThat(mAllowed).isEmpty();
+
+        mPrefs.flush();
+        mPrefs.flush();
+
+        assertThat(mAllowed).containsExactly("0:[com.new1, com.new2]");
+    }
+}
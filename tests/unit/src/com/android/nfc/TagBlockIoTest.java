@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost.TagEndpoint;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public final class TagBlockIoTest {
+    private static final String TAG = TagBlockIoTest.class.getSimpleName();
+    private static final byte[] UID = {1, 2, 3, 4, 5, 6, (byte) 0xE0, 0x04};
+    private static final int BLOCK_SIZE = 4;
+    private static final int BLOCK_COUNT = 128;
+    // Time taken by one frame on the air, so the benchmark reflects frame counts
+    private static final long FRAME_DELAY_MS = 1;
+
+    /** Tag memory answering NFC-V and Type 2 commands. */
+    private static final class SimulatedTag implements TagBlockIo.Transceiver {
+        final byte[] memory = new byte[BLOCK_COUNT * BLOCK_SIZE];
+        final boolean bulk;
+        final Set<ByteBuffer> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean lost;
+        int frames;
+
+        SimulatedTag(boolean bulk) {
+            this.bulk = bulk;
+            for (int i = 0; i < memory.length; i++) {
+                memory[i] = (byte) i;
+            }
+        }
+
+        private byte[] blocks(int offset, int first, int count) {
+            byte[] response = new byte[offset + count * BLOCK_SIZE];
+            System.arraycopy(memory, first * BLOCK_SIZE, response, offset, count * BLOCK_SIZE);
+            return response;
+        }
+
+        @Override
+        public int transceive(ByteBuffer request, ByteBuffer response) {
+            buffers.add(request);
+            buffers.add(response);
+            frames++;
+            if (lost) {
+                return TagEndpoint.TRANSCEIVE_TAG_LOST;
+            }
+            byte[] data = new byte[request.remaining()];
+            request.get(data);
+            byte[] rx = respond(data);
+            if (rx == null) {
+                return TagEndpoint.TRANSCEIVE_FAILED;
+            }
+            response.put(rx);
+            return rx.length;
+        }
+
+        private byte[] respond(byte[] data) {
+            SystemClock.sleep(FRAME_DELAY_MS);
+            int nfcVBlock = data.length > 10 ? data[10] & 0xff : -1;
+            switch (data[0] == TagBlockIo.NFCV_FLAGS_ADDRESSED ? data[1] : data[0]) {
+                case TagBlockIo.NFCV_READ_SINGLE_BLOCK:
+                    return blocks(1, nfcVBlock, 1);
+                case TagBlockIo.NFCV_READ_MULTIPLE_BLOCKS:
+                    return bulk ? blocks(1, nfcVBlock, (data[11] & 0xff) + 1)
+                            : new byte[] {0x01, 0x01};
+                case TagBlockIo.NFCV_WRITE_SINGLE_BLOCK:
+                    System.arraycopy(data, 11, memory, nfcVBlock * BLOCK_SIZE, BLOCK_SIZE);
+                    return new byte[] {0x00};
+                case TagBlockIo.TYPE2_READ:
+                    return blocks(0, data[1] & 0xff, 4);
+                case TagBlockIo.TYPE2_FAST_READ:
+                    // A NACK is returned as a failure by native code.
+                    return bulk ? blocks(0, data[1] & 0xff, (data[2] & 0xff) - (data[1] & 0xff) + 1)
+                            : null;
+                case TagBlockIo.TYPE2_WRITE:
+                    System.arraycopy(data, 2, memory, (data[1] & 0xff) * BLOCK_SIZE, BLOCK_SIZE);
+                    return new byte[] {0x0A};
+                default:
+                    return null;
+            }
+        }
+    }
+
+    @Test
+    public void testNfcVReadFallsBackToSingleBlocks() {
+        SimulatedTag bulkTag = new SimulatedTag(true);
+        SimulatedTag singleTag = new SimulatedTag(false);
+        int[] returnCode = new int[1];
+
+        byte[] expected = Arrays.copyOfRange(bulkTag.memory, 8, 8 + 40 * BLOCK_SIZE);
+        assertThat(new TagBlockIo(bulkTag).readNfcV(UID, 2, 40, BLOCK_SIZE, returnCode))
+                .isEqualTo(expected);
+        assertThat(bulkTag.frames).isEqualTo(2);
+        assertThat(new TagBlockIo(singleTag).readNfcV(UID, 2, 40, BLOCK_SIZE, returnCode))
+                .isEqualTo(expected);
+        assertThat(singleTag.frames).isEqualTo(41);
+    }
+
+    @Test
+    public void testType2ReadFallsBackToRead() {
+        SimulatedTag bulkTag = new SimulatedTag(true);
+        SimulatedTag readTag = new SimulatedTag(false);
+        int[] returnCode = new int[1];
+
+        byte[] expected = Arrays.copyOfRange(bulkTag.memory, 4 * 4, 4 * 4 + 10 * BLOCK_SIZE);
+        assertThat(new TagBlockIo(bulkTag).readType2(4, 10, returnCode)).isEqualTo(expected);
+        assertThat(bulkTag.frames).isEqualTo(1);
+        assertThat(new TagBlockIo(readTag).readType2(4, 10, returnCode)).isEqualTo(expected);
+        assertThat(readTag.frames).isEqualTo(4);
+    }
+
+    @Test
+    public void testWritesCoverEveryBlock() {
+        SimulatedTag tag = new SimulatedTag(true);
+        byte[] data = new byte[3 * BLOCK_SIZE];
+        Arrays.fill(data, (byte) 0x5A);
+        int[] returnCode = new int[1];
+
+        assertThat(new TagBlockIo(tag).writeNfcV(UID, 10, BLOCK_SIZE, data, returnCode)).isTrue();
+        assertThat(new TagBlockIo(tag).writeType2(20, data, returnCode)).isTrue();
+        assertThat(new TagBlockIo(tag).writeType2(20, new byte[3], returnCode)).isFalse();
+
+        assertThat(Arrays.copyOfRange(tag.memory, 40, 52)).isEqualTo(data);
+        assertThat(Arrays.copyOfRange(tag.memory, 80, 92)).isEqualTo(data);
+        assertThat(tag.frames).isEqualTo(6);
+    }
+
+    @Test
+    public void testInvalidRangesAreRejected() {
+        SimulatedTag tag = new SimulatedTag(true);
+        int[] returnCode = new int[1];
+
+        assertThat(new TagBlockIo(tag).readNfcV(UID, 0, 255,
+                TagBlockIo.MAX_NFCV_BLOCK_SIZE + 1, returnCode)).isNull();
+        assertThat(new TagBlockIo(tag).readNfcV(UID, 0, 2, Integer.MAX_VALUE, returnCode))
+                .isNull();
+        assertThat(new TagBlockIo(tag).readNfcV(UID, 250, 10, BLOCK_SIZE, returnCode)).isNull();
+        assertThat(new TagBlockIo(tag).writeNfcV(UID, 0, TagBlockIo.MAX_NFCV_BLOCK_SIZE + 1,
+                new byte[TagBlockIo.MAX_NFCV_BLOCK_SIZE + 1], returnCode)).isFalse();
+        assertThat(new TagBlockIo(tag).readType2(255, 2, returnCode)).isNull();
+        assertThat(tag.frames).isEqualTo(0);
+    }
+
+    @Test
+    public void testFramesReuseTheSameDirectBuffers() {
+        SimulatedTag tag = new SimulatedTag(false);
+        TagBlockIo blockIo = new TagBlockIo(tag);
+        int[] returnCode = new int[1];
+
+        assertThat(blockIo.readNfcV(UID, 0, 8, BLOCK_SIZE, returnCode)).isNotNull();
+        assertThat(blockIo.writeType2(4, new byte[2 * BLOCK_SIZE], returnCode)).isTrue();
+
+        assertThat(tag.frames).isEqualTo(11);
+        assertThat(tag.buffers).hasSize(2);
+        for (ByteBuffer buffer : tag.buffers) {
+            assertThat(buffer.isDirect()).isTrue();
+        }
+    }
+
+    @Test
+    public void testTagLostIsReported() {
+        SimulatedTag tag = new SimulatedTag(true);
+        tag.lost = true;
+        int[] returnCode = new int[1];
+
+        assertThat(new TagBlockIo(tag).readType2(0, 16, returnCode)).isNull();
+
+        assertThat(returnCode[0]).isEqualTo(1);
+        // A lost tag is not retried with single page reads.
+        assertThat(tag.frames).isEqualTo(1);
+    }
+
+    @Test
+    public void testBulkReadThroughput() {
+        int[] returnCode = new int[1];
+        SimulatedTag bulkTag = new SimulatedTag(true);
+        SimulatedTag singleTag = new SimulatedTag(false);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        new TagBlockIo(bulkTag).readNfcV(UID, 0, BLOCK_COUNT, BLOCK_SIZE, returnCode);
+        long bulkNanos = SystemClock.elapsedRealtimeNanos() - start;
+        start = SystemClock.elapsedRealtimeNanos();
+        new TagBlockIo(singleTag).readNfcV(UID, 0, BLOCK_COUNT, BLOCK_SIZE, returnCode);
+        long singleNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        long bytes = BLOCK_COUNT * BLOCK_SIZE;
+        Log.i(TAG, "NFC-V read of " + bytes + " bytes: bulk "
+                + bytes * 1_000_000_000L / bulkNanos + " B/s in " + bulkTag.frames
+                + " frames, single block " + bytes * 1_000_000_000L / singleNanos
+                + " B/s in " + singleTag.frames + " frames");
+        assertThat(bulkTag.frames).isLessThan(singleTag.frames);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public final class TagDebounceCacheTest {
+    private TagDebounceCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new TagDebounceCache(2);
+    }
+
+    private static TagDebounceCache.Entry entry(int uid, NdefMessage msg) {
+        return new TagDebounceCache.Entry(new byte[] {(byte) uid}, uid, 1000, msg, null);
+    }
+
+    @Test
+    public void testMultipleTagsAreKept() {
+        TagDebounceCache.Entry first = entry(1, null);
+        TagDebounceCache.Entry second = entry(2, null);
+        assertThat(mCache.put(first)).isEmpty();
+        assertThat(mCache.put(second)).isEmpty();
+
+        assertThat(mCache.findByUid(new byte[] {1})).isSameInstanceAs(first);
+        assertThat(mCache.findByUid(new byte[] {2})).isSameInstanceAs(second);
+        assertThat(mCache.findByHandle(2)).isSameInstanceAs(second);
+    }
+
+    @Test
+    public void testLeastRecentlySeenTagIsEvicted() {
+        TagDebounceCache.Entry first = entry(1, null);
+        mCache.put(first);
+        mCache.put(entry(2, null));
+        // Seeing tag 1 again makes tag 2 the eldest entry.
+        mCache.findByUid(new byte[] {1});
+
+        List<TagDebounceCache.Entry> dropped = mCache.put(entry(3, null));
+
+        assertThat(dropped).hasSize(1);
+        assertThat(dropped.get(0).nativeHandle).isEqualTo(2);
+        assertThat(mCache.findByUid(new byte[] {1})).isSameInstanceAs(first);
+        assertThat(mCache.findByUid(new byte[] {2})).isNull();
+    }
+
+    @Test
+    public void testMatchByNdefMessage() {
+        NdefMessage msg = new NdefMessage(NdefRecord.createUri("https://www.android.com"));
+        TagDebounceCache.Entry first = entry(1, msg);
+        mCache.put(first);
+
+        NdefMessage sameMsg = new NdefMessage(NdefRecord.createUri("https://www.android.com"));
+        assertThat(mCache.findByNdef(sameMsg)).isSameInstanceAs(first);
+        assertThat(mCache.findByNdef(
+                new NdefMessage(NdefRecord.createUri("https://example.com")))).isNull();
+    }
+
+    @Test
+    public void testExpireIgnoresReplacedEntry() {
+        TagDebounceCache.Entry first = entry(1, null);
+        mCache.put(first);
+        TagDebounceCache.Entry replacement = entry(1, null);
+        assertThat(mCache.put(replacement)).containsExactly(first);
+
+        mCache.expire(first);
+        assertThat(mCache.findByUid(new byte[] {1})).isSameInstanceAs(replacement);
+
+        mCache.expire(replacement);
+        assertThat(mCache.size()).isEqualTo(0);
+    }
+}
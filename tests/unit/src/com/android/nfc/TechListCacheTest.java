@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public final class TechListCacheTest {
+    private static final String KEY_A = "com.example.a/.Main:10100:1:1000";
+    private static final String KEY_B = "com.example.b/.Main:10101:3:2000";
+    private static final String KEY_OTHER_USER = "com.example.a/.Main:1010100:1:1000";
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getCacheDir(), "techlist_cache_test.bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testWriteAndLoad() {
+        TechListCache cache = new TechListCache(mFile);
+        cache.put(KEY_A, List.of(new String[] {"android.nfc.tech.NfcA"},
+                new String[] {"android.nfc.tech.IsoDep", "android.nfc.tech.NfcB"}));
+        cache.writeIfDirty();
+
+        TechListCache loaded = new TechListCache(mFile);
+        loaded.load();
+        List<String[]> techLists = loaded.get(KEY_A);
+        assertThat(techLists).hasSize(2);
+        assertThat(techLists.get(1))
+                .asList().containsExactly("android.nfc.tech.IsoDep", "android.nfc.tech.NfcB");
+        assertThat(loaded.get(KEY_B)).isNull();
+    }
+
+    @Test
+    public void testRemovePackage() {
+        TechListCache cache = new TechListCache(mFile);
+        cache.put(KEY_A, List.of(new String[] {"android.nfc.tech.NfcA"}));
+        cache.put(KEY_B, List.of(new String[] {"android.nfc.tech.NfcB"}));
+
+        cache.removePackage("com.example.a");
+
+        assertThat(cache.get(KEY_A)).isNull();
+        assertThat(cache.get(KEY_B)).isNotNull();
+    }
+
+    @Test
+    public void testRetainAllKeepsOtherUsers() {
+        TechListCache cache = new TechListCache(mFile);
+        cache.put(KEY_A, List.of(new String[] {"android.nfc.tech.NfcA"}));
+        cache.put(KEY_B, List.of(new String[] {"android.nfc.tech.NfcB"}));
+        cache.put(KEY_OTHER_USER, List.of(new String[] {"android.nfc.tech.NfcA"}));
+
+        cache.retainAll(0, Set.of(KEY_B));
+
+        assertThat(cache.get(KEY_A)).isNull();
+        assertThat(cache.get(KEY_B)).isNotNull();
+        assertThat(cache.get(KEY_OTHER_USER)).isNotNull();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.RegisteredComponentCache.ComponentInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public final class TechListIndexTest {
+    private static final String TAG = TechListIndexTest.class.getSimpleName();
+    private static final int COMPONENT_COUNT = 500;
+    private static final int LOOKUP_COUNT = 1000;
+
+    private static final String NFC_A = "android.nfc.tech.NfcA";
+    private static final String ISO_DEP = "android.nfc.tech.IsoDep";
+    private static final String NDEF = "android.nfc.tech.Ndef";
+
+    private static ComponentInfo component(String name, boolean exported, String... techs) {
+        ActivityInfo activityInfo = new ActivityInfo();
+        activityInfo.packageName = "com.example." + name;
+        activityInfo.name = activityInfo.packageName + ".Main";
+        activityInfo.exported = exported;
+        ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.activityInfo = activityInfo;
+        return new ComponentInfo(resolveInfo, techs);
+    }
+
+    private static String[] sorted(String... techs) {
+        Arrays.sort(techs);
+        return techs;
+    }
+
+    private static List<ComponentInfo> linearMatch(List<ComponentInfo> components,
+            String[] tagTechs) {
+        ArrayList<ComponentInfo> matches = new ArrayList<>();
+        for (ComponentInfo info : components) {
+            if (info.techs.length == 0 || !info.resolveInfo.activityInfo.exported) {
+                continue;
+            }
+            boolean match = true;
+            for (String tech : info.techs) {
+                match &= Arrays.binarySearch(tagTechs, tech) >= 0;
+            }
+            if (match) {
+                matches.add(info);
+            }
+        }
+        return matches;
+    }
+
+    @Test
+    public void testCandidatesMatchSubsetsInOrder() {
+        ComponentInfo isoDep = component("a", true, NFC_A, ISO_DEP);
+        ComponentInfo nfcA = component("b", true, NFC_A);
+        ComponentInfo ndef = component("c", true, NDEF);
+        ComponentInfo hidden = component("d", false, NFC_A);
+        ComponentInfo empty = component("e", true);
+        TechListIndex index = new TechListIndex(List.of(isoDep, nfcA, ndef, hidden, empty));
+
+        assertThat(index.getCandidates(sorted(NFC_A, ISO_DEP)))
+                .containsExactly(isoDep, nfcA).inOrder();
+        assertThat(index.getCandidates(sorted(NFC_A))).containsExactly(nfcA);
+        assertThat(index.getCandidates(sorted(NDEF, NFC_A))).containsExactly(nfcA, ndef);
+    }
+
+    @Test
+    public void testUnknownTagTechIsNotIndexed() {
+        TechListIndex index = new TechListIndex(List.of(component("a", true, NFC_A)));
+
+        assertThat(index.getCandidates(sorted(NFC_A, "com.example.FutureTech"))).isNull();
+    }
+
+    /** Compares the index lookup with matching every filter of many components. */
+    @Test
+    public void testLookupBenchmark() {
+        String[] knownTechs = TechListIndex.KNOWN_TECHS;
+        ArrayList<ComponentInfo> components = new ArrayList<>(COMPONENT_COUNT);
+        for (int i = 0; i < COMPONENT_COUNT; i++) {
+            components.add(component(Integer.toString(i), true, sorted(
+                    knownTechs[i % knownTechs.length],
+                    knownTechs[(i / knownTechs.length) % knownTechs.length])));
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        TechListIndex index = new TechListIndex(components);
+        long buildNanos = SystemClock.elapsedRealtimeNanos() - start;
+        String[] tagTechs = sorted(NFC_A, ISO_DEP, NDEF);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        List<ComponentInfo> linear = null;
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            linear = linearMatch(components, tagTechs);
+        }
+        long linearNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        List<ComponentInfo> indexed = null;
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            indexed = index.getCandidates(tagTechs);
+        }
+        long indexNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, COMPONENT_COUNT + " components: build=" + buildNanos / 1000
+                + "us linear=" + linearNanos / LOOKUP_COUNT + "ns/lookup index="
+                + indexNanos / LOOKUP_COUNT + "ns/lookup");
+        assertThat(indexed).containsExactlyElementsIn(linear).inOrder();
+    }
+}
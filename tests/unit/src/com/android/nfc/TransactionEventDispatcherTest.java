@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public final class TransactionEventDispatcherTest {
+    // Tasks handed to the executor, run explicitly by the tests.
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private final List<String> mEvents = new ArrayList<>();
+    private TransactionEventDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new TransactionEventDispatcher(mTasks::add);
+    }
+
+    private void dispatch(String reader, String event) {
+        mDispatcher.dispatch(reader, () -> mEvents.add(event));
+    }
+
+    private void runTasks() {
+        while (!mTasks.isEmpty()) {
+            mTasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void testEventsOfReaderRunInOrderOnOneDrain() {
+        dispatch("eSE1", "a");
+        dispatch("eSE1", "b");
+        dispatch("eSE1", "c");
+
+        assertThat(mTasks).hasSize(1);
+        assertThat(mDispatcher.getQueueDepth()).isEqualTo(3);
+
+        runTasks();
+
+        assertThat(mEvents).containsExactly("a", "b", "c").inOrder();
+        assertThat(mDispatcher.getQueueDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void testReadersDrainIndependently() {
+        dispatch("eSE1", "a");
+        dispatch("SIM1", "b");
+
+        assertThat(mTasks).hasSize(2);
+    }
+
+    @Test
+    public void testOverloadDropsOldestEvent() {
+        for (int i = 0; i <= TransactionEventDispatcher.MAX_PENDING_PER_READER; i++) {
+            dispatch("eSE1", Integer.toString(i));
+        }
+
+        runTasks();
+
+        assertThat(mEvents).hasSize(TransactionEventDispatcher.MAX_PENDING_PER_READER);
+        assertThat(mEvents.get(0)).isEqualTo("1");
+    }
+}
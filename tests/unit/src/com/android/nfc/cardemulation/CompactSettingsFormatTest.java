@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.nfc.cardemulation.AidGroup;
+import android.nfc.cardemulation.CardEmulation;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.Xml;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public final class CompactSettingsFormatTest {
+    private static final String TAG = CompactSettingsFormatTest.class.getSimpleName();
+    private static final int SERVICE_COUNT = 1000;
+    private static final int AIDS_PER_SERVICE = 10;
+
+    private AtomicFile mFile;
+    private AtomicFile mXmlFile;
+
+    @Before
+    public void setUp() {
+        File dir = InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getCacheDir();
+        mFile = new AtomicFile(new File(dir, "compact_settings_test.bin"));
+        mFile.delete();
+        mXmlFile = new AtomicFile(new File(dir, "compact_settings_test.xml"));
+        mXmlFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        mXmlFile.delete();
+    }
+
+    /** Reads the test files as the services caches do, recording which one was read. */
+    private final class Reader implements CompactSettingsFormat.SettingsReader {
+        List<AidGroup> groups;
+        boolean readCompact;
+        boolean readXml;
+
+        @Override
+        public boolean readCompact() {
+            readCompact = true;
+            try {
+                if (CompactSettingsFormat.startRead(mFile,
+                        CompactSettingsFormat.TYPE_DYNAMIC_AIDS) == null) {
+                    return false;
+                }
+                groups = read();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void readXml() {
+            readXml = true;
+            try {
+                groups = readXmlGroups();
+            } catch (Exception e) {
+                groups = null;
+            }
+        }
+    }
+
+    private static List<AidGroup> createGroups() {
+        ArrayList<AidGroup> groups = new ArrayList<>(SERVICE_COUNT);
+        for (int i = 0; i < SERVICE_COUNT; i++) {
+            ArrayList<String> aids = new ArrayList<>(AIDS_PER_SERVICE);
+            for (int j = 0; j < AIDS_PER_SERVICE; j++) {
+                aids.add(String.format("A000000%04X%02X", i, j));
+            }
+            groups.add(new AidGroup(aids, CardEmulation.CATEGORY_OTHER));
+        }
+        return groups;
+    }
+
+    private void write(List<AidGroup> groups) throws IOException {
+        FileOutputStream fos = mFile.startWrite();
+        DataOutputStream out = CompactSettingsFormat.startWrite(fos,
+                CompactSettingsFormat.TYPE_DYNAMIC_AIDS);
+        out.writeInt(groups.size());
+        for (AidGroup group : groups) {
+            CompactSettingsFormat.writeAidGroup(out, group);
+        }
+        out.flush();
+        mFile.finishWrite(fos);
+    }
+
+    private void writeXml(List<AidGroup> groups, boolean migrated) throws IOException {
+        FileOutputStream fos = mXmlFile.startWrite();
+        XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(fos, "utf-8");
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "services");
+        if (migrated) {
+            serializer.attribute(null, CompactSettingsFormat.XML_MIGRATED_ATTRIBUTE, "true");
+        }
+        for (AidGroup group : groups) {
+            serializer.startTag(null, "service");
+            group.writeAsXml(serializer);
+            serializer.endTag(null, "service");
+        }
+        serializer.endTag(null, "services");
+        serializer.endDocument();
+        mXmlFile.finishWrite(fos);
+    }
+
+    private List<AidGroup> readXmlGroups() throws Exception {
+        ArrayList<AidGroup> groups = new ArrayList<>();
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(new ByteArrayInputStream(mXmlFile.readFully()), null);
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG && "aid-group".equals(parser.getName())) {
+                groups.add(AidGroup.createFromXml(parser));
+            }
+            eventType = parser.next();
+        }
+        return groups;
+    }
+
+    private static List<AidGroup> groupsWithAid(String aid) {
+        ArrayList<String> aids = new ArrayList<>();
+        aids.add(aid);
+        ArrayList<AidGroup> groups = new ArrayList<>();
+        groups.add(new AidGroup(aids, CardEmulation.CATEGORY_OTHER));
+        return groups;
+    }
+
+    private List<AidGroup> read() throws IOException {
+        DataInputStream in = CompactSettingsFormat.startRead(mFile,
+                CompactSettingsFormat.TYPE_DYNAMIC_AIDS);
+        int count = CompactSettingsFormat.readCount(in);
+        ArrayList<AidGroup> groups = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            groups.add(CompactSettingsFormat.readAidGroup(in));
+        }
+        return groups;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<AidGroup> groups = createGroups();
+        write(groups);
+
+        List<AidGroup> restored = read();
+
+        assertThat(restored).hasSize(SERVICE_COUNT);
+        for (int i = 0; i < SERVICE_COUNT; i++) {
+            assertThat(restored.get(i).getCategory()).isEqualTo(groups.get(i).getCategory());
+            assertThat(restored.get(i).getAids())
+                    .containsExactlyElementsIn(groups.get(i).getAids()).inOrder();
+        }
+    }
+
+    @Test
+    public void testMissingFileReturnsNull() throws IOException {
+        assertThat(CompactSettingsFormat.startRead(mFile,
+                CompactSettingsFormat.TYPE_DYNAMIC_AIDS)).isNull();
+    }
+
+    @Test
+    public void testOtherTypeIsRejected() throws IOException {
+        write(createGroups());
+        assertThrows(IOException.class, () -> CompactSettingsFormat.startRead(mFile,
+                CompactSettingsFormat.TYPE_OTHER_STATUS));
+    }
+
+    @Test
+    public void testXmlFileIsRejected() throws IOException {
+        FileOutputStream fos = mFile.startWrite();
+        fos.write("<?xml version='1.0' encoding='utf-8'?><services/>".getBytes());
+        mFile.finishWrite(fos);
+        assertThrows(IOException.class, () -> CompactSettingsFormat.startRead(mFile,
+                CompactSettingsFormat.TYPE_DYNAMIC_AIDS));
+    }
+
+    @Test
+    public void testLegacyXmlIsMigratedOnce() throws IOException {
+        writeXml(groupsWithAid("A0000001"), false);
+
+        Reader reader = new Reader();
+        assertThat(CompactSettingsFormat.load(mXmlFile, reader)).isTrue();
+        assertThat(reader.readXml).isTrue();
+        assertThat(reader.groups.get(0).getAids()).containsExactly("A0000001");
+
+        // The caches complete the migration by writing both files.
+        write(reader.groups);
+        writeXml(reader.groups, true);
+
+        reader = new Reader();
+        assertThat(CompactSettingsFormat.load(mXmlFile, reader)).isFalse();
+        assertThat(reader.readXml).isFalse();
+        assertThat(reader.groups.get(0).getAids()).containsExactly("A0000001");
+    }
+
+    @Test
+    public void testCompactFileIsPrimaryAfterMigration() throws IOException {
+        writeXml(groupsWithAid("A0000001"), true);
+        write(groupsWithAid("A0000002"));
+
+        Reader reader = new Reader();
+        assertThat(CompactSettingsFormat.load(mXmlFile, reader)).isFalse();
+
+        assertThat(reader.readCompact).isTrue();
+        assertThat(reader.readXml).isFalse();
+        assertThat(reader.groups.get(0).getAids()).containsExactly("A0000002");
+    }
+
+    @Test
+    public void testXmlWrittenAfterDowngradeWins() throws IOException {
+        write(groupsWithAid("A0000001"));
+        // A build without the compact format rewrites the XML file without the marker,
+        // whatever the file times are.
+        writeXml(groupsWithAid("A0000002"), false);
+        mXmlFile.getBaseFile().setLastModified(0);
+
+        Reader reader = new Reader();
+        assertThat(CompactSettingsFormat.load(mXmlFile, reader)).isTrue();
+
+        assertThat(reader.readCompact).isFalse();
+        assertThat(reader.groups.get(0).getAids()).containsExactly("A0000002");
+    }
+
+    @Test
+    public void testUnreadableCompactFileFallsBackToXml() throws IOException {
+        writeXml(groupsWithAid("A0000001"), true);
+        FileOutputStream fos = mFile.startWrite();
+        fos.write(new byte[] {1, 2, 3});
+        mFile.finishWrite(fos);
+
+        Reader reader = new Reader();
+        assertThat(CompactSettingsFormat.load(mXmlFile, reader)).isTrue();
+
+        assertThat(reader.readCompact).isTrue();
+        assertThat(reader.groups.get(0).getAids()).containsExactly("A0000001");
+    }
+
+    @Test
+    public void testNoFilesNeedNoMigration() {
+        Reader reader = new Reader();
+        assertThat(CompactSettingsFormat.load(mXmlFile, reader)).isFalse();
+        assertThat(reader.readXml).isTrue();
+    }
+
+    /** Compares loading 1,000 services with 10,000 dynamic AIDs from both formats. */
+    @Test
+    public void testLoadBenchmark() throws Exception {
+        List<AidGroup> groups = createGroups();
+        write(groups);
+
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(xml, "utf-8");
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "services");
+        for (AidGroup group : groups) {
+            serializer.startTag(null, "service");
+            group.writeAsXml(serializer);
+            serializer.endTag(null, "service");
+        }
+        serializer.endTag(null, "services");
+        serializer.endDocument();
+        byte[] xmlData = xml.toByteArray();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        int xmlGroups = 0;
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(new ByteArrayInputStream(xmlData), null);
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG && "aid-group".equals(parser.getName())
+                    && AidGroup.createFromXml(parser) != null) {
+                xmlGroups++;
+            }
+            eventType = parser.next();
+        }
+        long xmlNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        List<AidGroup> restored = read();
+        long compactNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "Loaded " + SERVICE_COUNT + " services, "
+                + SERVICE_COUNT * AIDS_PER_SERVICE + " AIDs: xml=" + xmlData.length
+                + "B/" + xmlNanos / 1000 + "us compact=" + mFile.getBaseFile().length()
+                + "B/" + compactNanos / 1000 + "us");
+        assertThat(xmlGroups).isEqualTo(SERVICE_COUNT);
+        assertThat(restored).hasSize(SERVICE_COUNT);
+    }
+}
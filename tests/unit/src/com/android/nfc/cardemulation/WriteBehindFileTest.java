@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+@RunWith(AndroidJUnit4.class)
+public final class WriteBehindFileTest {
+    // Long enough that writes in these tests only happen through flush().
+    private static final long DELAY_MS = 60_000;
+
+    private final Object mLock = new Object();
+    private File mBaseFile;
+    private AtomicFile mFile;
+    private HandlerThread mThread;
+    private WriteBehindFile mWriter;
+    private String mState;
+    private boolean mFailSerialize;
+
+    @Before
+    public void setUp() {
+        mBaseFile = new File(InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getCacheDir(), "write_behind_test.xml");
+        mFile = new AtomicFile(mBaseFile);
+        mFile.delete();
+        mThread = new HandlerThread("WriteBehindFileTest");
+        mThread.start();
+        mWriter = new WriteBehindFile(mFile, mLock, out -> {
+            if (mFailSerialize) {
+                throw new IOException("serialize failed");
+            }
+            out.write(mState.getBytes(StandardCharsets.UTF_8));
+        }, new Handler(mThread.getLooper()), DELAY_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quitSafely();
+        mFile.delete();
+    }
+
+    private void change(String state) {
+        synchronized (mLock) {
+            mState = state;
+            mWriter.scheduleWrite();
+        }
+    }
+
+    private String read() throws IOException {
+        return new String(mFile.readFully(), StandardCharsets.UTF_8);
+    }
+
+    private String dump() {
+        StringWriter out = new StringWriter();
+        mWriter.dump(new PrintWriter(out));
+        return out.toString();
+    }
+
+    @Test
+    public void testChangesAreCoalescedIntoOneWrite() throws IOException {
+        change("a");
+        change("b");
+        change("c");
+        assertThat(mBaseFile.exists()).isFalse();
+
+        assertThat(mWriter.flush()).isTrue();
+
+        assertThat(mWriter.getWriteCount()).isEqualTo(1);
+        assertThat(read()).isEqualTo("c");
+    }
+
+    private WriteBehindFile newWriter(long delayMs) {
+        return new WriteBehindFile(mFile, mLock,
+                out -> out.write(mState.getBytes(StandardCharsets.UTF_8)),
+                new Handler(mThread.getLooper()), delayMs);
+    }
+
+    @Test
+    public void testScheduledWriteRunsOnTheWriterThread() throws IOException {
+        WriteBehindFile writer = newWriter(10);
+        synchronized (mLock) {
+            mState = "a";
+            writer.scheduleWrite();
+            mState = "b";
+            writer.scheduleWrite();
+        }
+
+        long deadline = SystemClock.uptimeMillis() + 5_000;
+        while (writer.getWriteCount() == 0 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+
+        assertThat(writer.getWriteCount()).isEqualTo(1);
+        assertThat(read()).isEqualTo("b");
+    }
+
+    @Test
+    public void testFlushOnShutdownCancelsTheScheduledWrite() throws IOException {
+        WriteBehindFile writer = newWriter(100);
+        synchronized (mLock) {
+            mState = "pending";
+            writer.scheduleWrite();
+        }
+
+        // Shutdown flushes before the delayed write is due.
+        assertThat(writer.flush()).isTrue();
+        assertThat(read()).isEqualTo("pending");
+        SystemClock.sleep(300);
+
+        assertThat(writer.getWriteCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFlushWithoutChangesDoesNotWrite() {
+        assertThat(mWriter.flush()).isTrue();
+        assertThat(mWriter.getWriteCount()).isEqualTo(0);
+        assertThat(mBaseFile.exists()).isFalse();
+    }
+
+    @Test
+    public void testFailedWriteIsReportedAndKeepsPreviousContent() throws IOException {
+        change("committed");
+        mWriter.flush();
+
+        mFailSerialize = true;
+        change("failed");
+        assertThat(mWriter.flush()).isFalse();
+        assertThat(read()).isEqualTo("committed");
+        assertThat(dump()).contains("lastWriteFailed=true");
+
+        mFailSerialize = false;
+        change("recovered");
+        assertThat(mWriter.flush()).isTrue();
+        assertThat(read()).isEqualTo("recovered");
+        assertThat(dump()).contains("lastWriteFailed=false");
+    }
+}